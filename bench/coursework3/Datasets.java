@@ -0,0 +1,56 @@
+package coursework3;
+
+import java.util.SplittableRandom;
+
+/*
+ * Test data shared by the benchmarks
+ * Everything is generated from a fixed seed, so that every run
+ * (and every version of the code) is measured on the same data.
+ */
+final class Datasets {
+    private static final long SEED = 105;
+
+    private Datasets() {
+    }
+
+    /*
+     * Random volunteers
+     * @table: the tables of skill codes to use
+     * @num: how many
+     * @extreme: if true, every volunteer has the same skill 3 times
+     *   ("AAA", "BBB", ...), like the `random` command of @{Shell}.
+     *   Otherwise each skill is picked uniformly.
+     */
+    static Volunteer[] volunteers(SkillTable table, int num, boolean extreme) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        Volunteer[] volunteers = new Volunteer[num];
+        int skillNum = table.getSkillNum();
+        for (int i = 0; i < num; i++) {
+            char a = table.getSkillName(random.nextInt(skillNum));
+            if (extreme) {
+                volunteers[i] = table.getVolunteer(table.parse(a, a, a));
+            } else {
+                char b = table.getSkillName(random.nextInt(skillNum));
+                char c = table.getSkillName(random.nextInt(skillNum));
+                volunteers[i] = table.getVolunteer(table.parse(a, b, c));
+            }
+        }
+        return volunteers;
+    }
+
+    /*
+     * A sorter with its groups filled up to some level
+     * @groupNum: how many groups
+     * @capacity: maximum members of each group
+     * @fill: how full the groups are, from 0 to 1
+     * @extreme: see @{volunteers}
+     */
+    static SkillSorter filled(int groupNum, int capacity, double fill, boolean extreme) {
+        SkillSorter sorter = new SkillSorter(groupNum, "ABCDE", capacity);
+        int num = (int) (fill * groupNum * capacity);
+        for (Volunteer vl : volunteers(sorter.getTable(), num, extreme)) {
+            sorter.myAddVolunteer(vl);
+        }
+        return sorter;
+    }
+}
@@ -0,0 +1,76 @@
+package coursework3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * How long deleting and moving volunteers take
+ * Each benchmark undoes its own change, so that the groups stay the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MutationBenchmark {
+    private static final int CAPACITY = 1000;
+
+    @Param({"5", "100", "2000"})
+    public int groups;
+
+    @Param({"false", "true"})
+    public boolean extreme;
+
+    private SkillSorter mSorter;
+    private CommunityGroup mFirst;
+    private CommunityGroup mSecond;
+    private Volunteer mVolunteer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mSorter = Datasets.filled(groups, CAPACITY, 0.5, extreme);
+        mFirst = mSorter.getCommunityGroups().get(0);
+        mSecond = mSorter.getCommunityGroups().get(groups - 1);
+
+        // Any volunteer that the first group has
+        SkillTable table = mSorter.getTable();
+        int code = 0;
+        while (mFirst.getCount(code) == 0) {
+            code++;
+        }
+        mVolunteer = table.getVolunteer(code);
+    }
+
+    /*
+     * @{CommunityGroup.removeVolunteer} alone, without the sorter
+     */
+    @Benchmark
+    public boolean remove() {
+        boolean removed = mFirst.removeVolunteer(mVolunteer);
+        mFirst.addVolunteer(mVolunteer);
+        return removed;
+    }
+
+    /*
+     * @{SkillSorter.moveVolunteer} there and back again
+     * (so the result is for 2 moves)
+     */
+    @Benchmark
+    public void move() {
+        mSorter.moveVolunteer(mVolunteer, mFirst, mSecond);
+        mSorter.moveVolunteer(mVolunteer, mSecond, mFirst);
+    }
+}
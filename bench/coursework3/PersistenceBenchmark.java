@@ -0,0 +1,97 @@
+package coursework3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * How long saving and loading take, in the text format
+ * (@{SerializableSet} and @{Utility}) and as a binary @{Snapshot}
+ * Run with `-prof gc` (as `make bench` does) to see how much is allocated.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final int GROUPS = 5;
+
+    // Total number of volunteers
+    @Param({"1000", "100000", "1000000"})
+    public int volunteers;
+
+    @Param({"false", "true"})
+    public boolean extreme;
+
+    private SkillSorter mSorter;
+    private SkillSorter mTarget;
+    private String mText;
+    private File mTextFile;
+    private File mSnapshotFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mSorter = Datasets.filled(GROUPS, volunteers / GROUPS, 1, extreme);
+        mTarget = new SkillSorter(GROUPS, "ABCDE", volunteers / GROUPS);
+        mText = mSorter.serialize();
+
+        mTextFile = File.createTempFile("cw3bench", ".txt");
+        mSnapshotFile = File.createTempFile("cw3bench", ".dat");
+        Utility.serializeToFile(mSorter, mTextFile.getPath());
+        Snapshot.write(mSorter, mSnapshotFile.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mTextFile.delete();
+        mSnapshotFile.delete();
+    }
+
+    @Benchmark
+    public String serialize() {
+        return mSorter.serialize();
+    }
+
+    @Benchmark
+    public SkillSorter deserialize() throws Serializable.DeserializationException {
+        mTarget.deserialize(mText);
+        return mTarget;
+    }
+
+    @Benchmark
+    public void serializeToFile() throws IOException {
+        Utility.serializeToFile(mSorter, mTextFile.getPath());
+    }
+
+    @Benchmark
+    public SkillSorter deserializeFromFile() throws IOException, Serializable.DeserializationException {
+        Utility.deserializeFromFile(mTarget, mTextFile.getPath());
+        return mTarget;
+    }
+
+    @Benchmark
+    public long writeSnapshot() throws IOException {
+        return Snapshot.write(mSorter, mSnapshotFile.getPath());
+    }
+
+    @Benchmark
+    public long readSnapshot() throws IOException, Serializable.DeserializationException {
+        return Snapshot.read(mTarget, mSnapshotFile.getPath());
+    }
+}
@@ -0,0 +1,63 @@
+package coursework3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * How long @{SkillSorter.myAddVolunteer} takes to place one volunteer
+ *
+ * To keep the groups at the same fill level for the whole run,
+ * each volunteer is deleted again right after it is placed.
+ * Deleting is O(1) (see @{MutationBenchmark.remove} for its cost alone).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlacementBenchmark {
+    private static final int CAPACITY = 1000;
+    private static final int VOLUNTEERS = 1 << 12;
+
+    // From the default 5 groups up to where @{PlacementIndex} is used
+    @Param({"5", "100", "2000"})
+    public int groups;
+
+    // How full the groups are
+    @Param({"0", "0.5", "0.9"})
+    public double fill;
+
+    @Param({"false", "true"})
+    public boolean extreme;
+
+    private SkillSorter mSorter;
+    private Volunteer[] mVolunteers;
+    private int mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mSorter = Datasets.filled(groups, CAPACITY, fill, extreme);
+        mVolunteers = Datasets.volunteers(mSorter.getTable(), VOLUNTEERS, extreme);
+    }
+
+    @Benchmark
+    public int addVolunteer() {
+        Volunteer vl = mVolunteers[mNext++ & (VOLUNTEERS - 1)];
+        int group = mSorter.myAddVolunteer(vl);
+        mSorter.deleteVolunteer(vl, mSorter.getCommunityGroups().get(group));
+        return group;
+    }
+}
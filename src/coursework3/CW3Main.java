@@ -1,12 +1,129 @@
 package coursework3;
 
+import java.io.IOException;
+
+import static coursework3.Constants.GROUP_NUM;
+import static coursework3.Constants.INDEX_SKILL_MAP;
+import static coursework3.Constants.MAX_GROUP_MEMBER;
+
 public class CW3Main {
     public static void main(String[] args) {
+        // Configuration given from the command line
+        //   --groups N      number of groups
+        //   --skills ABCDE  names of all the skills
+        //   --capacity N    maximum members of each group
+        //   --batch FILE    run the commands in a file (or "-" for stdin)
+        //                   without prompts, then exit
+        //   --verbose       print the messages of every command in batch mode
+        //   --server PORT   also serve requests over TCP on localhost
+        //   --threads N     how many threads serve the connections
+        //   --replicate PORT   send the changes to followers on localhost
+        //   --follow PORT      keep a copy of the process replicating on PORT
+        //                      (read-only until the `promote` command)
+        //   --placement SPEC   how to choose the groups of new volunteers:
+        //                      exact, sample[:K], skill or roundrobin[:T]
+        int groupNum = GROUP_NUM;
+        String skills = new String(INDEX_SKILL_MAP);
+        int capacity = MAX_GROUP_MEMBER;
+        String script = null;
+        boolean verbose = false;
+        int port = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int replicatePort = -1;
+        int followPort = -1;
+        String placement = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--groups":
+                        groupNum = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--skills":
+                        skills = nextArg(args, ++i).toUpperCase();
+                        break;
+                    case "--capacity":
+                        capacity = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--batch":
+                        script = nextArg(args, ++i);
+                        break;
+                    case "--verbose":
+                        verbose = true;
+                        break;
+                    case "--server":
+                        port = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--replicate":
+                        replicatePort = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--follow":
+                        followPort = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--placement":
+                        placement = nextArg(args, ++i);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            Shell.configure(groupNum, skills, capacity);
+            if (placement != null) {
+                Shell.usePlacement(placement);
+            }
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException is also an IllegalArgumentException
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println("Usage: CW3Main [--groups N] [--skills ABCDE] [--capacity N] [--batch FILE [--verbose]] [--server PORT [--threads N]] [--replicate PORT] [--follow PORT] [--placement SPEC]");
+            System.exit(1);
+        }
+
         // First load data
-        Shell.loadData();
-        
+        if (!Shell.loadData()) {
+            System.exit(1);
+        }
+
+        if (port >= 0) {
+            try {
+                Shell.startServer(port, threads);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("ERROR: Could not start the server: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (followPort >= 0) {
+            Shell.startFollowing(followPort);
+        }
+        if (replicatePort >= 0) {
+            try {
+                Shell.startReplication(replicatePort);
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not start replicating: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (script != null) {
+            System.exit(Shell.runScript(script, verbose));
+        }
+
         // Entry of the program. Since we have nothing else to do,
         // Just transfer control of the program to the @{Shell}
         Shell.startShell();
     }
+
+    /*
+     * Get the value of an option
+     * throw @{java.lang.IllegalArgumentException} if it is missing
+     */
+    private static String nextArg(String[] args, int i) throws IllegalArgumentException {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
 }
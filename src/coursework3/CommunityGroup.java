@@ -2,98 +2,317 @@ package coursework3;
 
 import cw3interfaces.CommunityGroupInterface;
 
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
-import static coursework3.Constants.SKILL_NUM;
 import static coursework3.Constants.MAX_GROUP_MEMBER;
+import static coursework3.Constants.SKILLS_PER_VOLUNTEER;
 
 public class CommunityGroup extends SerializableSet<Volunteer> implements CommunityGroupInterface {
-    private static final String SEPARATOR = ",";
-    private ArrayList<Volunteer> mVolunteers = new ArrayList<Volunteer>();
+    private static final char SEPARATOR = ',';
+
+    // Chunks of the record store of a group on its own (64 records, 1.5 KB)
+    private static final int OWN_CHUNK_BITS = 6;
+
+    /*
+     * The tables of skill codes used by this group
+     */
+    private final SkillTable mTable;
+
+    /*
+     * Maximum members of this group
+     */
+    private final int mCapacity;
+
+    /*
+     * The index of this group in its @{SkillSorter}
+     */
+    private int mIndex = 0;
 
     /*
      * Maintain a list of the total number of skills available in this group
      * To avoid repeated calculations
      * The index of this array corresponds to @{Volunteer.mSkillSet}
      */
-    private int[] mSkillSet = new int[]{0, 0, 0, 0, 0};
+    private int[] mSkillSet;
 
     /*
      * Keep track on how many volunteers we have for each possible
      * combination of skills
      * (there is finite possible combinations, after all)
-     * This is to ease the way to display all the members
-     * because we can simply use a table with this.
+     * The index of this array is the skill code (see @{SkillTable})
+     * Since volunteers with the same skills are not distinguished,
+     * this is all the totals and queries need. Who the members are
+     * (their IDs) is kept apart, in mMembers.
      */
-    private HashMap<String, Integer> mStats = new HashMap<>();
+    private int[] mCounts;
 
     /*
-     * Constructor to explicitly handle things needed by @{SerializableSet<T>}
+     * Total number of volunteers in this group
+     */
+    private int mTotal = 0;
+
+    /*
+     * The ID of every member (see @{MemberIds}), kept in a @{RecordStore},
+     * and where new IDs come from. A @{SkillSorter} gives all its groups
+     * the same store (off the heap) and the same source, so that IDs are
+     * unique across them.
+     */
+    private final MemberIds mMembers;
+    private AtomicLong mIdSource = new AtomicLong(1);
+
+    /*
+     * Where the IDs of the members still are, if they were loaded
+     * lazily from a @{Snapshot} and haven't been needed yet, or null.
+     * mMembers is empty until then, while the counts are all there.
+     * Methods that need the IDs read them first (see @{pageIn}).
+     */
+    private volatile Snapshot.Segment mSegment = null;
+
+    /*
+     * For the views of a @{SkillSorter} (see @{SkillSorter.view}):
+     * the epoch of the last change, and a copy of this group from
+     * before the first change in that epoch. mPrevious is written
+     * before mEpoch, so a reader that sees the epoch sees the copy.
+     */
+    private volatile long mEpoch = 0;
+    private volatile GroupView mPrevious = null;
+
+    /*
+     * The @{Snapshot}s that still need the IDs of the members as they
+     * were when captured, see @{pin}. Guarded by mLock.
+     */
+    private final ArrayList<Snapshot.Members> mPinned = new ArrayList<>(1);
+
+    /*
+     * Guards the members of this group when used by a @{SkillSorter}
+     * from many threads. The methods of this class don't take it
+     * themselves; @{SkillSorter} does, around every change.
+     */
+    private final StampedLock mLock = new StampedLock();
+
+    /*
+     * Create a group with the default skills and capacity
+     * (see @{Constants})
      */
     public CommunityGroup() {
-        super(Volunteer.class, SEPARATOR, true);
-        setList(mVolunteers);
+        this(SkillTable.DEFAULT, MAX_GROUP_MEMBER);
+    }
+
+    /*
+     * Constructor to explicitly handle things needed by @{SerializableSet<T>}
+     * The group has a small @{RecordStore} of its own, on the heap
+     * so that it is freed with the group, and empty until the first member.
+     * @table: the tables of skill codes
+     * @capacity: maximum members of this group
+     */
+    CommunityGroup(SkillTable table, int capacity) {
+        this(table, capacity, new RecordStore(OWN_CHUNK_BITS, false));
+    }
+
+    /*
+     * Same, with the records of the members in a store
+     * shared with other groups (see @{SkillSorter})
+     * @records: the store
+     */
+    CommunityGroup(SkillTable table, int capacity, RecordStore records) {
+        super(SEPARATOR, true);
+        mTable = table;
+        mCapacity = capacity;
+        mSkillSet = new int[table.getSkillNum()];
+        mCounts = new int[table.getCombinationNum()];
+        mMembers = new MemberIds(table.getCombinationNum(), records);
+        setList(new MemberList());
+
+        // Volunteers must be parsed with the skills of this group
+        setFactory(() -> new Volunteer(mTable));
     }
 
     /*
-     * Determine if the group is full (larger than MAX_GROUP_MEMBERS)
+     * Determine if the group is full (larger than the capacity)
      */
     public boolean isFull() {
-        return howManyVolunteers() >= MAX_GROUP_MEMBER;
+        return howManyVolunteers() >= mCapacity;
+    }
+
+    /*
+     * The index of this group in its @{SkillSorter}
+     */
+    int getIndex() {
+        return mIndex;
+    }
+
+    /*
+     * Only to be called by @{SkillSorter}
+     */
+    void setIndex(int index) {
+        mIndex = index;
+    }
+
+    /*
+     * Only to be called by @{SkillSorter}, before any member is added
+     */
+    void setIdSource(AtomicLong source) {
+        mIdSource = source;
+    }
+
+    /*
+     * The lock of this group. See @{mLock}
+     */
+    StampedLock getLock() {
+        return mLock;
     }
     
+    /*
+     * Call this before changing this group
+     * (with the lock held, see @{SkillSorter.view})
+     * @epoch: the epoch of the change
+     */
+    void beforeChange(long epoch) {
+        if (!mPinned.isEmpty()) {
+            // One copy for all the snapshots, unless the IDs
+            // are still in a segment, which doesn't change
+            long[] ids = null;
+            if (mSegment == null) {
+                ids = new long[mTotal];
+                copyIds(ids, 0);
+            }
+            for (Snapshot.Members members : mPinned) {
+                members.keep(mIndex, ids, mSegment);
+            }
+            mPinned.clear();
+        }
+        if (mEpoch < epoch) {
+            mPrevious = new GroupView(this, mTable);
+            mEpoch = epoch;
+        }
+    }
+
+    /*
+     * Keep the IDs of the members as they are now for a @{Snapshot}
+     * Before the next change, they are copied for it (see @{beforeChange}),
+     * unless it has read them from this group in the meantime (see @{unpin}).
+     * (with the lock held, at least for reading, by one thread at a time)
+     * @members: where the snapshot wants them
+     */
+    void pin(Snapshot.Members members) {
+        mPinned.add(members);
+    }
+
+    /*
+     * The snapshot no longer needs the IDs
+     * (with the write lock held)
+     * @members: as passed to @{pin}
+     * @return: whether they were still pinned (so they haven't changed)
+     */
+    boolean unpin(Snapshot.Members members) {
+        return mPinned.remove(members);
+    }
+
+    /*
+     * This group as it was at the end of an epoch
+     * Nothing is locked: the group is copied optimistically, and copied
+     * again if it was changed meanwhile. Once it is changed in a later
+     * epoch, the copy kept by @{beforeChange} is returned instead.
+     * @epoch: the epoch, which must have ended
+     */
+    GroupView viewAt(long epoch) {
+        while (true) {
+            long stamp = mLock.tryOptimisticRead();
+            if (mEpoch > epoch) {
+                return mPrevious;
+            }
+            if (stamp != 0) {
+                GroupView view = new GroupView(this, mTable);
+                if (mLock.validate(stamp)) {
+                    return view;
+                }
+            } else {
+                // Being changed, in this epoch or the next one
+                Thread.yield();
+            }
+        }
+    }
+
     /*
      * Add a volunteer to this group
      * This does nothing to balance the groups
+     * The volunteer is given a new ID.
      * throws @{java.lang.IllegalStateException} if the group is full
      */
     public void addVolunteer(Volunteer vl) throws IllegalStateException {
         if (isFull()) {
             throw new IllegalStateException("This group is full.");
         }
+        addMember(vl, mIdSource.getAndIncrement());
+    }
 
-        mVolunteers.add(vl);
-
-        // Add the skills of this single volunteer to the totals
-        for (int i = 0; i < SKILL_NUM; i++) {
-            mSkillSet[i] += vl.getSkillPoint(i);
+    /*
+     * Add a volunteer with a given ID
+     * throws @{java.lang.IllegalStateException} if the group is full
+     * @vl: the volunteer
+     * @id: its ID, not 0
+     * @return: the slot of the volunteer (see @{MemberIds})
+     */
+    int addMember(Volunteer vl, long id) throws IllegalStateException {
+        if (isFull()) {
+            throw new IllegalStateException("This group is full.");
+        }
+        if (vl.getTable() != mTable) {
+            vl = mTable.getVolunteer(vl.getSkillSet());
         }
 
         // Add this volunteer to corresponding stats
-        String skillSet = vl.getSkillSet();
-        int num = mStats.containsKey(skillSet) ? mStats.get(skillSet) : 0;
-        mStats.put(skillSet, num + 1);
+        pageIn();
+        int code = vl.getCode();
+        counted(code, 1);
+        return mMembers.add(id, code);
     }
 
     /*
-     * Remove a volunteer from this group
-     * Note that we don't distinguish volunteers with the same skillsets
-     * @return: true if the volunteer is found and deleted
+     * Add many volunteers with the same skills to this group at once
+     * They are given new IDs.
+     * throws @{java.lang.IllegalStateException} if they can't all fit
+     * @vl: the volunteer
+     * @count: how many of them
      */
-    public boolean removeVolunteer(Volunteer vl) {
-        if (!mVolunteers.contains(vl)) {
-            return false;
+    public void addVolunteers(Volunteer vl, int count) throws IllegalStateException {
+        if (count > mCapacity - mTotal) {
+            throw new IllegalStateException("This group doesn't have room for " + count + " volunteers.");
         }
-        mVolunteers.remove(vl);
-
-        // Remove the skills of this single volunteer from the totals
-        for (int i = 0; i < SKILL_NUM; i++) {
-            mSkillSet[i] -= vl.getSkillPoint(i);
+        long firstId = mIdSource.getAndAdd(count);
+        for (int i = 0; i < count; i++) {
+            addMember(vl, firstId + i);
         }
+    }
 
-        // Remove this volunteer from the corresponding stats
-        String skillSet = vl.getSkillSet();
-        if (mStats.containsKey(skillSet)) {
-            int num = mStats.get(skillSet);
-            if (num > 1) {
-                mStats.put(skillSet, num - 1); // Decrease by one if not zero
-            } else {
-                mStats.remove(skillSet); // Remove the entry if it has become zero
-            }
-        }
+    /*
+     * How many more volunteers this group can take
+     */
+    public int getRoom() {
+        return mCapacity - mTotal;
+    }
 
-        return true;
+    /*
+     * Remove a volunteer from this group
+     * Note that this removes any volunteer with the same skills
+     * (the one added last). See @{removeAt} to remove a specific one.
+     * @return: true if the volunteer is found and deleted
+     */
+    public boolean removeVolunteer(Volunteer vl) {
+        if (vl.getTable() != mTable) {
+            vl = mTable.getVolunteer(vl.getSkillSet());
+        }
+        return removeLast(vl.getCode()) != 0;
     }
 
     /*
@@ -102,23 +321,178 @@ public class CommunityGroup extends SerializableSet<Volunteer> implements Commun
      * @return: true if the volunteer is found and deleted
      */
     public boolean removeVolunteer(String skills) throws IllegalArgumentException {
-        return removeVolunteer(new Volunteer(skills));
+        return removeVolunteer(mTable.getVolunteer(skills));
+    }
+
+    /*
+     * Remove the volunteer with a skill code that was added last
+     * @return: its ID, or 0 if there is no such volunteer
+     */
+    long removeLast(int code) {
+        pageIn();
+        long id = mMembers.removeLast(code);
+        if (id != 0) {
+            counted(code, -1);
+        }
+        return id;
+    }
+
+    /*
+     * Remove the volunteer in a slot
+     * The slot must hold a volunteer (see @{getIdAt})
+     * @return: its skill code
+     */
+    int removeAt(int slot) {
+        pageIn();
+        int code = mMembers.getCode(slot);
+        mMembers.remove(slot);
+        counted(code, -1);
+        return code;
+    }
+
+    /*
+     * The ID of the volunteer in a slot, or 0 if there is none
+     */
+    long getIdAt(int slot) {
+        pageIn();
+        return mMembers.getId(slot);
+    }
+
+    /*
+     * The skill code of the volunteer in a slot
+     */
+    int getCodeAt(int slot) {
+        pageIn();
+        return mMembers.getCode(slot);
+    }
+
+    /*
+     * Go through the slots and IDs of all the members
+     * None until the members are paged in
+     */
+    void forEachMember(MemberIds.Visitor visitor) {
+        mMembers.forEach(visitor);
+    }
+
+    /*
+     * Update the stats after volunteers with a skill code
+     * are added (count > 0) or removed (count < 0)
+     */
+    private void counted(int code, int count) {
+        mCounts[code] += count;
+        mTotal += count;
+
+        // Add the skills of these volunteers to the totals
+        for (int i = 0; i < SKILLS_PER_VOLUNTEER; i++) {
+            mSkillSet[mTable.getSkill(code, i)] += count;
+        }
     }
 
     /*
      * Clear everything in this group
      */
     public void clearVolunteers() {
-        mVolunteers.clear();
-        mSkillSet = new int[]{0, 0, 0, 0, 0};
-        mStats.clear();
+        mSkillSet = new int[mTable.getSkillNum()];
+        mCounts = new int[mTable.getCombinationNum()];
+        mTotal = 0;
+        mMembers.clear();
+        mSegment = null;
+    }
+
+    /*
+     * Replace everything in this group with counts read from a buffer
+     * (one count for each skill code, in order)
+     * Used to load binary snapshots, see @{Snapshot}
+     * @counts: the buffer. Exactly getCombinationNum() counts are read.
+     * @ids: the IDs of the members, in the order of @{copyIds}
+     *   or null to give them new IDs
+     */
+    void restore(IntBuffer counts, LongBuffer ids) throws Serializable.DeserializationException {
+        clearVolunteers();
+        for (int code = 0; code < mCounts.length; code++) {
+            int count = counts.get();
+            if (count < 0 || count > mCapacity - mTotal) {
+                throw new Serializable.DeserializationException("Illegal member count " + count);
+            }
+
+            long firstId = ids == null ? mIdSource.getAndAdd(count) : 0;
+            for (int i = 0; i < count; i++) {
+                long id = ids == null ? firstId + i : ids.get();
+                if (id <= 0) {
+                    throw new Serializable.DeserializationException("Illegal volunteer ID " + id);
+                }
+                mMembers.add(id, code);
+            }
+            counted(code, count);
+        }
+    }
+
+    /*
+     * Same, but the IDs are left where they are until they are needed
+     * (see @{pageIn})
+     * @counts: the buffer. Exactly getCombinationNum() counts are read.
+     * @segment: the IDs of the members, or null if there are none
+     */
+    void restoreLazily(IntBuffer counts, Snapshot.Segment segment) throws Serializable.DeserializationException {
+        clearVolunteers();
+        for (int code = 0; code < mCounts.length; code++) {
+            int count = counts.get();
+            if (count < 0 || count > mCapacity - mTotal) {
+                throw new Serializable.DeserializationException("Illegal member count " + count);
+            }
+            counted(code, count);
+        }
+        mSegment = mTotal > 0 ? segment : null;
+    }
+
+    /*
+     * Where the IDs of the members still are (see @{mSegment}), or null
+     */
+    Snapshot.Segment getSegment() {
+        return mSegment;
+    }
+
+    /*
+     * Whether the IDs of the members are all in memory
+     */
+    boolean isPagedIn() {
+        return mSegment == null;
+    }
+
+    /*
+     * Read the IDs of the members if they haven't been read yet
+     * (with the write lock held when used by a @{SkillSorter})
+     * throw @{java.lang.IllegalStateException} if they are corrupted
+     *   on disk, in which case they stay where they are
+     */
+    void pageIn() throws IllegalStateException {
+        Snapshot.Segment segment = mSegment;
+        if (segment == null) {
+            return;
+        }
+        try {
+            LongBuffer ids = segment.read();
+            for (int code = 0; code < mCounts.length; code++) {
+                for (int i = 0; i < mCounts[code]; i++) {
+                    long id = ids.get();
+                    if (id <= 0) {
+                        throw new Serializable.DeserializationException("Illegal volunteer ID " + id);
+                    }
+                    mMembers.add(id, code);
+                }
+            }
+        } catch (Serializable.DeserializationException | BufferUnderflowException e) {
+            mMembers.clear();
+            throw new IllegalStateException("Could not read the members of group " + mIndex + ": " + e.getMessage());
+        }
+        mSegment = null;
     }
 
     /*
      * Get the number of a skill based on its name
      */
     public int getSkillPoint(char skillName) throws IllegalArgumentException {
-        return getSkillPoint(Utility.getSkillIndex(skillName));
+        return getSkillPoint(mTable.getSkillIndex(skillName));
     }
 
     /*
@@ -128,12 +502,62 @@ public class CommunityGroup extends SerializableSet<Volunteer> implements Commun
         return mSkillSet[index];
     }
 
+    /*
+     * Get how many volunteers this group has with a combination of skills
+     * @code: the skill code of the combination
+     */
+    public int getCount(int code) {
+        return mCounts[code];
+    }
+
+    /*
+     * Copy how many volunteers this group has for each skill code
+     * @dest: where to copy to
+     * @offset: the position in dest for skill code 0
+     */
+    void copyCounts(int[] dest, int offset) {
+        System.arraycopy(mCounts, 0, dest, offset, mCounts.length);
+    }
+
+    /*
+     * Copy the IDs of all the members, by skill code
+     * and in the order they were added for each code
+     * @dest: where to copy to
+     * @offset: where to copy the first one
+     * @return: the position after the last one copied
+     */
+    int copyIds(long[] dest, int offset) {
+        Snapshot.Segment segment = mSegment;
+        if (segment != null) {
+            // Already laid out this way
+            try {
+                segment.read().get(dest, offset, mTotal);
+            } catch (Serializable.DeserializationException | BufferUnderflowException e) {
+                throw new IllegalStateException("Could not read the members of group " + mIndex + ": " + e.getMessage());
+            }
+            return offset + mTotal;
+        }
+        for (int code = 0; code < mCounts.length; code++) {
+            offset = mMembers.copy(code, dest, offset);
+        }
+        return offset;
+    }
+
     /*
      * Retrieve status on how many voluteers
      * this group has for each possible combination of skills
+     * Only combinations that exist in this group are included,
+     * in the order of the skill codes.
+     * The returned map is a copy and will not be updated.
      */
     public HashMap<String, Integer> getStats() {
-        return mStats;
+        HashMap<String, Integer> stats = new LinkedHashMap<>();
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] > 0) {
+                stats.put(mTable.format(i), mCounts[i]);
+            }
+        }
+        return stats;
     }
 
     /*
@@ -159,7 +583,7 @@ public class CommunityGroup extends SerializableSet<Volunteer> implements Commun
      */
     @Override
     public int howManyVolunteers() {
-        return mVolunteers.size();
+        return mTotal;
     }
     
     /*
@@ -169,10 +593,10 @@ public class CommunityGroup extends SerializableSet<Volunteer> implements Commun
     @Override
     public String getSkillsTotals() {
         StringBuilder totalBuilder = new StringBuilder();
-        for (int i = 0; i < SKILL_NUM; i++) {
+        for (int i = 0; i < mSkillSet.length; i++) {
             totalBuilder.append(", ");
             totalBuilder.append("Skill ");
-            totalBuilder.append(Utility.getSkillName(i));
+            totalBuilder.append(mTable.getSkillName(i));
             totalBuilder.append(": ");
             totalBuilder.append(mSkillSet[i]);
         }
@@ -185,6 +609,63 @@ public class CommunityGroup extends SerializableSet<Volunteer> implements Commun
      */
     @Override
     public String toString() {
-        return getSkillsTotals() + ", Total Volunteers: " + mVolunteers.size();
+        return getSkillsTotals() + ", Total Volunteers: " + mTotal;
+    }
+
+    /*
+     * A read-only @{java.util.List} view of the members of this group
+     * reconstructed from @{mCounts}, mainly for @{SerializableSet<T>}.
+     * Members with the same skills are listed next to each other.
+     * NOTE: get() has to scan the counts, use the iterator when possible.
+     */
+    private class MemberList extends AbstractList<Volunteer> {
+        @Override
+        public int size() {
+            return mTotal;
+        }
+
+        @Override
+        public Volunteer get(int index) {
+            if (index < 0 || index >= mTotal) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+
+            for (int i = 0; i < mCounts.length; i++) {
+                if (index < mCounts[i]) {
+                    return mTable.getVolunteer(i);
+                }
+                index -= mCounts[i];
+            }
+
+            // Should never reach here as long as mTotal is right
+            throw new IllegalStateException("Inconsistent member counts");
+        }
+
+        @Override
+        public Iterator<Volunteer> iterator() {
+            return new Iterator<Volunteer>() {
+                private int mCombination = 0;
+                private int mRemaining = mCounts.length > 0 ? mCounts[0] : 0;
+
+                @Override
+                public boolean hasNext() {
+                    // Skip over the combinations that have no more members
+                    while (mRemaining == 0 && mCombination < mCounts.length - 1) {
+                        mCombination++;
+                        mRemaining = mCounts[mCombination];
+                    }
+                    return mRemaining > 0;
+                }
+
+                @Override
+                public Volunteer next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    mRemaining--;
+                    return mTable.getVolunteer(mCombination);
+                }
+            };
+        }
     }
 }
@@ -1,29 +1,43 @@
 package coursework3;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class Constants {
     // Data file path
     public static final String DATA_FILE = "groups.dat";
+
+    // Journal of the changes made since the data file was written
+    // See @{Journal}
+    public static final String JOURNAL_FILE = "groups.journal";
+
+    // Compact the journal into the data file when it grows larger than this (bytes)
+    public static final long JOURNAL_COMPACT_SIZE = 16L << 20;
+
+    // How often to write the journal to disk when nobody waits for it (milliseconds)
+    public static final long JOURNAL_SYNC_INTERVAL = 10;
+
+    // Save a snapshot at most this often while there are changes (milliseconds)
+    public static final long SAVE_INTERVAL = 60 * 1000;
+
+    // How often a rebalance applied in the background makes its next moves (milliseconds)
+    // See @{Rebalancer}
+    public static final long REBALANCE_TICK = 100;
     
-    // Total number of possible skills
+    // How many volunteers to place at once while importing
+    public static final int IMPORT_BATCH_SIZE = 1 << 16;
+
+    // Default number of groups
+    // (all of these defaults can be changed at runtime, see @{SkillSorter})
+    public static final int GROUP_NUM = 5;
+
+    // Default total number of possible skills
     public static final int SKILL_NUM = 5;
 
-    // Maximun members of each group
+    // Default maximun members of each group
     public static final int MAX_GROUP_MEMBER = 500;
 
-    // Map from skill name to its index
-    public static final Map<Character, Integer> SKILL_INDEX_MAP = new HashMap<>();
-
-    // It should have been reverse of SKILL_INDEX_MAP
-    // But since it's Map<Integer, Character>, we can simply use an array.
+    // Default name of each skill. The index of a skill is its position in this array.
+    // See @{SkillTable} for the lookup tables built from this.
     public static final char[] INDEX_SKILL_MAP = new char[]{'A', 'B', 'C', 'D', 'E'};
 
-    static {
-        // Build SKILL_INDEX_MAP from INDEX_SKILL_MAP
-        for (int i = 0; i < INDEX_SKILL_MAP.length; i++) {
-            SKILL_INDEX_MAP.put(INDEX_SKILL_MAP[i], i);
-        }
-    }
+    // How many skills each volunteer has
+    public static final int SKILLS_PER_VOLUNTEER = 3;
 }
\ No newline at end of file
@@ -0,0 +1,705 @@
+package coursework3;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static coursework3.Constants.INDEX_SKILL_MAP;
+import static coursework3.Constants.MAX_GROUP_MEMBER;
+
+/*
+ * Serves the groups of several processes (shards) as one
+ *
+ * Each shard is the usual program serving requests (`--server PORT`),
+ * started in its own directory so that it keeps its own data files,
+ * with some of the groups. The coordinator serves the same protocol
+ * as @{Server} over all the groups together, numbered shard by shard:
+ * first the groups of the first shard, then those of the second, and so on.
+ *
+ * It keeps the totals of every group (the same summary as `overview`),
+ * so it chooses the best group over all the shards by itself, exactly
+ * as one @{SkillSorter} would, in O(groups) without asking the shards,
+ * then sends the volunteer straight to that group with `put`.
+ * The totals are read from the shards when starting, kept up to date
+ * from the replies to the changes sent, and read again at every
+ * `overview` that no change overlaps. So the coordinator should be the
+ * only one changing the shards.
+ *
+ * The IDs of the volunteers are unique over all the shards:
+ *   ID in the coordinator = ID in the shard * number of shards + shard
+ * so a request by ID goes straight to its shard (its home shard).
+ * A volunteer moved to a group of another shard keeps its ID: it is
+ * deleted from its shard, then put in the other one with the ID
+ *   SkillSorter.EXTERNAL_IDS + ID in the coordinator
+ * which that shard never gives out itself (it is put back if that fails).
+ * Moved back home, it gets its ID in the home shard back.
+ * `moveid` still replies with the ID ("OK <id>"), which is the same.
+ * The coordinator remembers where the moved volunteers are (mMoved).
+ * After a restart, it finds them again by asking all the shards when a
+ * volunteer is not in its home shard. A move across shards is not atomic:
+ * if the coordinator stops in between, the volunteer is lost.
+ *
+ * Every connection has a thread and its own connection to each shard.
+ *
+ *   --port N        port to listen on (on localhost)
+ *   --shards P,P    ports of the shards (on localhost), in order
+ *   --capacity N    maximum members of each group, as given to the shards
+ *   --skills ABCDE  names of the skills, as given to the shards
+ */
+public class Coordinator {
+    private final SkillTable mTable;
+    private final int mCapacity;
+    private final int[] mPorts;
+
+    // The first group of each shard, then the number of groups
+    private final int[] mOffsets;
+
+    // The totals of every group, guarded by `this`
+    private final int[][] mPoints;
+    private final int[] mSizes;
+
+    // For each shard, guarded by `this`: how many changes are being made,
+    // and how many have been started
+    private final int[] mPending;
+    private final long[] mStarted;
+
+    // The shard of each volunteer not in its home shard, guarded by `this`
+    private final LongMap mMoved = new LongMap(64);
+
+    private final ServerSocket mSocket;
+
+    /*
+     * Read the totals of the shards and start listening
+     * @port: the port on the loopback address, or 0 for any free port
+     * @ports: the ports of the shards
+     * @capacity: maximum members of each group
+     * @table: the skills
+     */
+    Coordinator(int port, int[] ports, int capacity, SkillTable table) throws IOException {
+        if (ports.length == 0) {
+            throw new IllegalArgumentException("There must be at least one shard");
+        } else if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of a group must be positive");
+        }
+        mTable = table;
+        mCapacity = capacity;
+        mPorts = ports.clone();
+        mPending = new int[ports.length];
+        mStarted = new long[ports.length];
+
+        // How many groups each shard has
+        String[][] totals = new String[ports.length][];
+        mOffsets = new int[ports.length + 1];
+        for (int shard = 0; shard < ports.length; shard++) {
+            try (ShardClient client = new ShardClient(ports[shard])) {
+                totals[shard] = readTotals(client);
+            }
+            mOffsets[shard + 1] = mOffsets[shard] + totals[shard].length;
+        }
+        mPoints = new int[mOffsets[ports.length]][table.getSkillNum()];
+        mSizes = new int[mOffsets[ports.length]];
+        for (int shard = 0; shard < ports.length; shard++) {
+            setTotals(shard, totals[shard]);
+        }
+
+        mSocket = new ServerSocket();
+        mSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = -1;
+        int[] ports = null;
+        int capacity = MAX_GROUP_MEMBER;
+        Coordinator coordinator = null;
+        try {
+            char[] skills = INDEX_SKILL_MAP;
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port":
+                        port = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--shards":
+                        String[] list = nextArg(args, ++i).split(",");
+                        ports = new int[list.length];
+                        for (int j = 0; j < list.length; j++) {
+                            ports[j] = Integer.parseInt(list[j].trim());
+                        }
+                        break;
+                    case "--capacity":
+                        capacity = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--skills":
+                        skills = nextArg(args, ++i).toUpperCase().toCharArray();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (port < 0) {
+                throw new IllegalArgumentException("Missing --port");
+            } else if (ports == null) {
+                throw new IllegalArgumentException("Missing --shards");
+            }
+            coordinator = new Coordinator(port, ports, capacity, new SkillTable(skills));
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println("Usage: Coordinator --port N --shards PORT,PORT... [--capacity N] [--skills ABCDE]");
+            System.exit(1);
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not read the shards: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+            + coordinator.mSocket.getLocalPort() + " for " + coordinator.getGroupNum()
+            + " groups over " + ports.length + " shards");
+        coordinator.serve();
+    }
+
+    public int getGroupNum() {
+        return mSizes.length;
+    }
+
+    /*
+     * Accept connections until the program is stopped
+     */
+    void serve() throws IOException {
+        int next = 0;
+        while (true) {
+            Socket socket = mSocket.accept();
+            socket.setTcpNoDelay(true);
+            Thread thread = new Thread(new Session(socket), "coordinator-" + next++);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /*
+     * A connection from a client
+     */
+    private final class Session implements Runnable {
+        private final Socket mClient;
+        // Connected when first needed, and again after a failure
+        private final ShardClient[] mShards = new ShardClient[mPorts.length];
+
+        Session(Socket client) {
+            mClient = client;
+        }
+
+        @Override
+        public void run() {
+            try (Socket client = mClient) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream out = client.getOutputStream();
+                StringBuilder replies = new StringBuilder();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    execute(line.trim(), replies);
+                    replies.append('\n');
+                    // Pipelined requests are answered together
+                    if (!in.ready()) {
+                        out.write(replies.toString().getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                        replies.setLength(0);
+                    }
+                }
+            } catch (IOException e) {
+                // The client is gone
+            } finally {
+                for (ShardClient shard : mShards) {
+                    if (shard != null) {
+                        shard.close();
+                    }
+                }
+            }
+        }
+
+        /*
+         * Handle one request and write the reply, without "\n"
+         */
+        private void execute(String line, StringBuilder reply) {
+            int mark = reply.length();
+            String[] args = line.split("\\s+");
+            try {
+                switch (args[0]) {
+                    case "add":
+                    case "a":
+                        add(arg(args, 1, "Missing skills"), reply);
+                        break;
+                    case "move":
+                    case "m":
+                        move(group(args, 1), arg(args, 2, "Missing skills"), group(args, 3), reply);
+                        break;
+                    case "delete":
+                    case "d":
+                        delete(group(args, 1), arg(args, 2, "Missing skills"), reply);
+                        break;
+                    case "find":
+                    case "f":
+                        String[] found = find(id(args, 1));
+                        reply.append("OK ").append(found[0]).append(' ').append(found[1]);
+                        break;
+                    case "moveid":
+                    case "mi":
+                        moveId(id(args, 1), group(args, 2), reply);
+                        break;
+                    case "deleteid":
+                    case "di":
+                        deleteId(id(args, 1), reply);
+                        break;
+                    case "show":
+                    case "s":
+                        show(group(args, 1), reply);
+                        break;
+                    case "overview":
+                    case "o":
+                        overview(reply);
+                        break;
+                    case "":
+                        throw new IllegalArgumentException("Empty request");
+                    default:
+                        throw new IllegalArgumentException("Unknown command " + args[0]);
+                }
+            } catch (RuntimeException e) {
+                // Throw away a partial reply
+                reply.setLength(mark);
+                reply.append("ERR ").append(e.getMessage());
+            } catch (IOException e) {
+                reply.setLength(mark);
+                reply.append("ERR A shard is not available: ").append(e.getMessage());
+                // Replies may be left unread. Connect again next time.
+                for (int i = 0; i < mShards.length; i++) {
+                    if (mShards[i] != null) {
+                        mShards[i].close();
+                        mShards[i] = null;
+                    }
+                }
+            }
+        }
+
+        private void add(String skills, StringBuilder reply) throws IOException {
+            int code = mTable.parse(skills.toUpperCase());
+            int group = reserve(code);
+            int shard = shardOf(group);
+            boolean added = false;
+            try {
+                String[] put = shard(shard).request("put " + (group - mOffsets[shard]) + " " + mTable.format(code)).split(" ");
+                added = true;
+                reply.append("OK ").append(group).append(' ').append(globalId(Long.parseLong(put[1]), shard));
+            } finally {
+                if (!added) {
+                    count(group, code, -1);
+                }
+                end(shard);
+            }
+        }
+
+        private void move(int from, String skills, int to, StringBuilder reply) throws IOException {
+            int code = mTable.parse(skills.toUpperCase());
+            int shard = shardOf(from);
+            if (shard != shardOf(to)) {
+                transfer(code, from, "delete " + (from - mOffsets[shard]) + " " + mTable.format(code), -1, to);
+                reply.append("OK");
+                return;
+            }
+
+            begin(shard);
+            try {
+                shard(shard).request("move " + (from - mOffsets[shard]) + " " + mTable.format(code)
+                    + " " + (to - mOffsets[shard]));
+                count(from, code, -1);
+                count(to, code, 1);
+                reply.append("OK");
+            } finally {
+                end(shard);
+            }
+        }
+
+        private void delete(int group, String skills, StringBuilder reply) throws IOException {
+            int code = mTable.parse(skills.toUpperCase());
+            int shard = shardOf(group);
+            begin(shard);
+            try {
+                String deleted = shard(shard).request("delete " + (group - mOffsets[shard]) + " " + mTable.format(code));
+                count(group, code, -1);
+                long id = globalId(Long.parseLong(deleted), shard);
+                forget(id);
+                reply.append("OK ").append(id);
+            } finally {
+                end(shard);
+            }
+        }
+
+        private void moveId(long id, int to, StringBuilder reply) throws IOException {
+            String[] found = find(id);
+            int from = Integer.parseInt(found[0]);
+            int code = mTable.parse(found[1]);
+            int shard = shardOf(from);
+            long local = localId(id, shard);
+            if (shard != shardOf(to)) {
+                transfer(code, from, "deleteid " + local, id, to);
+                reply.append("OK ").append(id);
+                return;
+            }
+
+            begin(shard);
+            try {
+                shard(shard).request("moveid " + local + " " + (to - mOffsets[shard]));
+                count(from, code, -1);
+                count(to, code, 1);
+                reply.append("OK ").append(id);
+            } finally {
+                end(shard);
+            }
+        }
+
+        private void deleteId(long id, StringBuilder reply) throws IOException {
+            String[] found = find(id);
+            int group = Integer.parseInt(found[0]);
+            int shard = shardOf(group);
+            begin(shard);
+            try {
+                shard(shard).request("deleteid " + localId(id, shard));
+                count(group, mTable.parse(found[1]), -1);
+                forget(id);
+                reply.append("OK");
+            } finally {
+                end(shard);
+            }
+        }
+
+        /*
+         * Where a volunteer is
+         * Looked for in the shard it is known to be in, then in all the
+         * others (it may have been moved before a restart, see above).
+         * @return: the group and the skills
+         */
+        private String[] find(long id) throws IOException {
+            if (id >= SkillSorter.EXTERNAL_IDS) {
+                throw new IllegalArgumentException("No volunteer with ID " + id);
+            }
+            int known = holderOf(id);
+            for (int i = 0; i < mPorts.length; i++) {
+                int shard = (known + i) % mPorts.length;
+                String[] found;
+                try {
+                    found = shard(shard).request("find " + localId(id, shard)).split(" ");
+                } catch (IllegalStateException e) {
+                    // The ID in the shard is not the one asked for
+                    continue;
+                }
+                if (shard != known) {
+                    moved(id, shard);
+                }
+                found[0] = Integer.toString(Integer.parseInt(found[0]) + mOffsets[shard]);
+                return found;
+            }
+            throw new IllegalArgumentException("No volunteer with ID " + id);
+        }
+
+        /*
+         * Move a volunteer to a group of another shard: take it out of
+         * its own shard, then put it in the other one with the same ID
+         * It is put back if the other shard refuses it.
+         * @code: its skills
+         * @from: its group
+         * @remove: the request to take it out of its shard
+         * @id: its ID, or -1 to take it from the reply to `remove`
+         * @to: the group to move to
+         */
+        private void transfer(int code, int from, String remove, long id, int to) throws IOException {
+            int shard = shardOf(from);
+            int toShard = shardOf(to);
+            String skills = mTable.format(code);
+            reserve(to, code);
+            begin(shard);
+            boolean added = false;
+            try {
+                String removed = shard(shard).request(remove);
+                if (id < 0) {
+                    id = globalId(Long.parseLong(removed), shard);
+                }
+                try {
+                    shard(toShard).request("put " + (to - mOffsets[toShard]) + " " + skills + " " + localId(id, toShard));
+                } catch (IllegalStateException e) {
+                    // Not counted out of its group yet, so there is still room
+                    shard(shard).request("put " + (from - mOffsets[shard]) + " " + skills + " " + localId(id, shard));
+                    throw e;
+                }
+                added = true;
+                moved(id, toShard);
+                count(from, code, -1);
+            } finally {
+                if (!added) {
+                    count(to, code, -1);
+                }
+                end(shard);
+                end(toShard);
+            }
+        }
+
+        private void show(int group, StringBuilder reply) throws IOException {
+            int shard = shardOf(group);
+            ShardClient client = shard(shard);
+            String first = client.request("show " + (group - mOffsets[shard]));
+            reply.append("OK ").append(first);
+            int lines = Integer.parseInt(first);
+            for (int i = 0; i < lines; i++) {
+                reply.append('\n').append(client.nextLine());
+            }
+        }
+
+        private void overview(StringBuilder reply) throws IOException {
+            reply.append("OK ").append(getGroupNum());
+            for (int shard = 0; shard < mPorts.length; shard++) {
+                long started = startRead(shard);
+                String[] totals = readTotals(shard(shard));
+                if (totals.length != mOffsets[shard + 1] - mOffsets[shard]) {
+                    throw new IOException("Shard " + shard + " has a different number of groups now");
+                }
+                finishRead(shard, started, totals);
+                for (String group : totals) {
+                    // Renumber the group
+                    int space = group.indexOf(' ');
+                    int index = Integer.parseInt(group.substring(0, space)) + mOffsets[shard];
+                    reply.append('\n').append(index).append(group, space, group.length());
+                }
+            }
+        }
+
+        /*
+         * The connection to a shard, connected if needed
+         */
+        private ShardClient shard(int shard) throws IOException {
+            if (mShards[shard] == null) {
+                mShards[shard] = new ShardClient(mPorts[shard]);
+            }
+            return mShards[shard];
+        }
+
+        private String arg(String[] args, int i, String missing) throws IllegalArgumentException {
+            if (i >= args.length) {
+                throw new IllegalArgumentException(missing);
+            }
+            return args[i];
+        }
+
+        private int group(String[] args, int i) throws IllegalArgumentException {
+            int index;
+            try {
+                index = Integer.parseInt(arg(args, i, "Missing group index"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Need an integer.");
+            }
+            if (index < 0 || index >= getGroupNum()) {
+                throw new IllegalArgumentException("Illegal group index " + index);
+            }
+            return index;
+        }
+
+        private long id(String[] args, int i) throws IllegalArgumentException {
+            try {
+                long id = Long.parseLong(arg(args, i, "Missing volunteer ID"));
+                if (id < 0) {
+                    throw new NumberFormatException();
+                }
+                return id;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Need an integer.");
+            }
+        }
+    }
+
+    /*
+     * Choose the best group for a volunteer over all the shards
+     * (see @{SkillSorter.bestGroup}), and count the volunteer in it
+     * straight away so that the other connections take it into account.
+     * A change to the shard of the group is started (see @{begin}).
+     * @code: the skills of the volunteer
+     * @return: the group
+     */
+    private synchronized int reserve(int code) throws IllegalStateException {
+        int s1 = mTable.getSkill(code, 0);
+        int s2 = mTable.getSkill(code, 1);
+        int s3 = mTable.getSkill(code, 2);
+        long best = Long.MAX_VALUE;
+        int bestGroup = -1;
+        for (int i = 0; i < mSizes.length; i++) {
+            if (mSizes[i] >= mCapacity) {
+                continue;
+            }
+            // Prefer the first group if there are more than one
+            long score = (long) mSizes[i] + mPoints[i][s1] + mPoints[i][s2] + mPoints[i][s3];
+            if (score < best) {
+                best = score;
+                bestGroup = i;
+            }
+        }
+        if (bestGroup < 0) {
+            throw new IllegalStateException("Could not find the best group. All the groups may be full. Aborting.");
+        }
+        count(bestGroup, code, 1);
+        begin(shardOf(bestGroup));
+        return bestGroup;
+    }
+
+    /*
+     * Same, but with the group given
+     */
+    private synchronized void reserve(int group, int code) throws IllegalStateException {
+        if (mSizes[group] >= mCapacity) {
+            throw new IllegalStateException("This group is full.");
+        }
+        count(group, code, 1);
+        begin(shardOf(group));
+    }
+
+    /*
+     * Add to (or take away from) the totals of a group
+     * @delta: how many volunteers with these skills
+     */
+    private synchronized void count(int group, int code, int delta) {
+        mSizes[group] += delta;
+        int[] points = mPoints[group];
+        for (int i = 0; i < points.length; i++) {
+            points[i] += delta * mTable.getSkillPoint(code, i);
+        }
+    }
+
+    /*
+     * A change to a shard is about to be sent
+     * Call @{end} once its reply has been counted in the totals.
+     */
+    private synchronized void begin(int shard) {
+        mPending[shard]++;
+        mStarted[shard]++;
+    }
+
+    private synchronized void end(int shard) {
+        mPending[shard]--;
+    }
+
+    /*
+     * The totals of a shard are about to be read
+     * @return: what to give @{finishRead}
+     */
+    private synchronized long startRead(int shard) {
+        return mPending[shard] == 0 ? mStarted[shard] : -1;
+    }
+
+    /*
+     * Take the totals read from a shard, unless some change
+     * was being made meanwhile (then they may not include it)
+     * @started: from @{startRead}
+     * @totals: the lines of `overview` from the shard
+     */
+    private synchronized void finishRead(int shard, long started, String[] totals) {
+        if (started == mStarted[shard] && mPending[shard] == 0) {
+            setTotals(shard, totals);
+        }
+    }
+
+    private synchronized void setTotals(int shard, String[] totals) throws IllegalArgumentException {
+        int skillNum = mTable.getSkillNum();
+        for (int i = 0; i < totals.length; i++) {
+            String[] fields = totals[i].split(" ");
+            if (fields.length != skillNum + 2) {
+                throw new IllegalArgumentException("Shard " + shard + " has different skills");
+            }
+            int group = mOffsets[shard] + i;
+            for (int j = 0; j < skillNum; j++) {
+                mPoints[group][j] = Integer.parseInt(fields[j + 1]);
+            }
+            mSizes[group] = Integer.parseInt(fields[skillNum + 1]);
+        }
+    }
+
+    /*
+     * The shard a group is in
+     */
+    private int shardOf(int group) {
+        int shard = 0;
+        while (group >= mOffsets[shard + 1]) {
+            shard++;
+        }
+        return shard;
+    }
+
+    /*
+     * The ID in the coordinator of a volunteer in a shard
+     * @id: its ID in the shard
+     */
+    private long globalId(long id, int shard) {
+        if (id >= SkillSorter.EXTERNAL_IDS) {
+            // Moved from its home shard
+            return id - SkillSorter.EXTERNAL_IDS;
+        }
+        return id * mPorts.length + shard;
+    }
+
+    /*
+     * The ID of a volunteer in a shard, see above
+     * @id: its ID in the coordinator
+     */
+    private long localId(long id, int shard) {
+        if (id % mPorts.length == shard) {
+            return id / mPorts.length;
+        }
+        return SkillSorter.EXTERNAL_IDS + id;
+    }
+
+    /*
+     * The shard a volunteer is in, as far as the coordinator knows
+     */
+    private synchronized int holderOf(long id) {
+        return (int) mMoved.get(id, id % mPorts.length);
+    }
+
+    /*
+     * A volunteer is now in a shard
+     */
+    private synchronized void moved(long id, int shard) {
+        if (id % mPorts.length == shard) {
+            mMoved.remove(id, -1);
+        } else {
+            mMoved.put(id, shard);
+        }
+    }
+
+    /*
+     * A volunteer has been deleted
+     */
+    private synchronized void forget(long id) {
+        mMoved.remove(id, -1);
+    }
+
+    /*
+     * Read all the totals of a shard
+     * @return: one line for each group, see @{Server}
+     */
+    private static String[] readTotals(ShardClient client) throws IOException {
+        int groups = Integer.parseInt(client.request("overview"));
+        String[] totals = new String[groups];
+        for (int i = 0; i < groups; i++) {
+            totals[i] = client.nextLine();
+        }
+        return totals;
+    }
+
+    /*
+     * Get the value of an option
+     * throw @{java.lang.IllegalArgumentException} if it is missing
+     */
+    private static String nextArg(String[] args, int i) throws IllegalArgumentException {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+}
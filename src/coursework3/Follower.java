@@ -0,0 +1,212 @@
+package coursework3;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Keeps a @{SkillSorter} a copy of the one of another process
+ * (the primary), by applying the changes its @{Replicator} sends
+ *
+ * While following, nothing else may change the sorter, so the
+ * @{Shell} and the @{Server} only read from it. The changes applied
+ * are recorded by the @{Journal} of this process as usual, so the copy
+ * is kept on disk, too. After @{close}, this process can be changed
+ * again and take over from the primary (failover).
+ *
+ * If the connection is lost, the last state is kept and served,
+ * and the follower connects again every RETRY_INTERVAL,
+ * starting over from a new snapshot.
+ */
+final class Follower {
+    // How long to wait before connecting again (milliseconds)
+    private static final long RETRY_INTERVAL = 1000;
+
+    private final SkillSorter mSorter;
+    private final Journal mJournal;
+    private final int mPort;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile Socket mSocket = null;
+
+    // The last change of the primary applied, and the last one
+    // the primary has made as far as we know
+    private volatile long mApplied = 0;
+    private volatile long mPrimary = 0;
+
+    /*
+     * @sorter: the sorter
+     * @journal: the journal of the sorter, or null if there is none
+     * @port: the port of the @{Replicator} of the primary, on the loopback address
+     */
+    Follower(SkillSorter sorter, Journal journal, int port) {
+        mSorter = sorter;
+        mJournal = journal;
+        mPort = port;
+        mThread = new Thread(this::run, "follower");
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        mSorter.getMetrics().setReplicationLag(this::getLag);
+        mThread.start();
+    }
+
+    /*
+     * Stop following
+     * Changes being applied are finished first,
+     * so nothing changes the sorter after this returns.
+     */
+    public void close() throws InterruptedException {
+        mRunning = false;
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        // Not interrupted, which would close the files it is writing
+        synchronized (this) {
+            notifyAll();
+        }
+        mThread.join();
+        mSorter.getMetrics().setReplicationLag(null);
+    }
+
+    /*
+     * How many changes of the primary have not been applied yet
+     */
+    public long getLag() {
+        return Math.max(mPrimary - mApplied, 0);
+    }
+
+    /*
+     * The sequence number of the last change of the primary applied
+     */
+    public long getApplied() {
+        return mApplied;
+    }
+
+    public boolean isConnected() {
+        return mSocket != null;
+    }
+
+    private void run() {
+        String problem = null;
+        while (mRunning) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), mPort)) {
+                socket.setTcpNoDelay(true);
+                mSocket = socket;
+                if (!mRunning) {
+                    // close() may have missed the socket
+                    return;
+                }
+                System.out.println("Following the primary at port " + mPort + ".");
+                problem = null;
+                follow(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                    new DataOutputStream(socket.getOutputStream()));
+            } catch (IOException | Serializable.DeserializationException e) {
+                // Only say so once, not at every retry
+                String message = e.getMessage() != null ? e.getMessage() : "disconnected";
+                if (mRunning && !message.equals(problem)) {
+                    problem = message;
+                    System.out.println("Replication: lost the primary (" + problem + "). Retrying.");
+                }
+            } finally {
+                mSocket = null;
+            }
+
+            synchronized (this) {
+                try {
+                    if (mRunning) {
+                        wait(RETRY_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * Apply what the primary sends until the connection is lost
+     */
+    private void follow(DataInputStream in, DataOutputStream out) throws IOException, Serializable.DeserializationException {
+        while (mRunning) {
+            byte type = in.readByte();
+            switch (type) {
+                case Replicator.SNAPSHOT: {
+                    long sequence = readSnapshot(in);
+                    mApplied = sequence;
+                    mPrimary = sequence;
+                    if (mJournal != null) {
+                        // The journal doesn't have what has just been loaded
+                        mJournal.checkpoint();
+                    }
+                    break;
+                }
+                case Replicator.FRAME: {
+                    long first = in.readLong();
+                    byte[] records = new byte[in.readInt()];
+                    in.readFully(records);
+                    mApplied = Journal.apply(mSorter, ByteBuffer.wrap(records), first, mApplied);
+                    mPrimary = Math.max(mPrimary, mApplied);
+                    break;
+                }
+                case Replicator.HEARTBEAT:
+                    mPrimary = Math.max(mPrimary, in.readLong());
+                    break;
+                default:
+                    throw new Serializable.DeserializationException("Unknown replication message " + type);
+            }
+
+            // Reply once everything received so far is applied
+            if (in.available() == 0) {
+                out.writeLong(mApplied);
+                out.flush();
+            }
+        }
+    }
+
+    /*
+     * Load a snapshot sent by the primary into the sorter
+     * It is saved to a temporary file and loaded from there
+     * (see @{Snapshot.read}), so it takes no heap whatever its size.
+     * @return: the sequence number of the snapshot
+     */
+    private long readSnapshot(DataInputStream in) throws IOException, Serializable.DeserializationException {
+        long length = in.readLong();
+        Path file = Files.createTempFile("cw3-follower", ".snapshot");
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                byte[] buffer = new byte[1 << 16];
+                for (long left = length; left > 0; ) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    out.write(buffer, 0, read);
+                    left -= read;
+                }
+            }
+            return Snapshot.read(mSorter, file.toString());
+        } finally {
+            // The sorter keeps it mapped, but it is gone from the directory
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package coursework3;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/*
+ * An immutable copy of the totals of a @{CommunityGroup}
+ * at some point in time, see @{SkillSorter.view()}
+ * It can be read from any thread without locking anything.
+ */
+public final class GroupView {
+    private final SkillTable mTable;
+    private final int[] mSkillSet;
+    private final int[] mCounts;
+    private final int mTotal;
+
+    /*
+     * Copy a group. The caller makes sure it doesn't change meanwhile.
+     */
+    GroupView(CommunityGroup group, SkillTable table) {
+        mTable = table;
+        mSkillSet = new int[table.getSkillNum()];
+        for (int i = 0; i < mSkillSet.length; i++) {
+            mSkillSet[i] = group.getSkillPoint(i);
+        }
+        mCounts = new int[table.getCombinationNum()];
+        group.copyCounts(mCounts, 0);
+        mTotal = group.howManyVolunteers();
+    }
+
+    /*
+     * Get the number of a skill based on its index
+     */
+    public int getSkillPoint(int index) {
+        return mSkillSet[index];
+    }
+
+    /*
+     * Get how many volunteers the group had with a combination of skills
+     * @code: the skill code of the combination
+     */
+    public int getCount(int code) {
+        return mCounts[code];
+    }
+
+    /*
+     * Copy the count of every skill code (see @{CommunityGroup.copyCounts})
+     */
+    void copyCounts(int[] dest, int offset) {
+        System.arraycopy(mCounts, 0, dest, offset, mCounts.length);
+    }
+
+    public int howManyVolunteers() {
+        return mTotal;
+    }
+
+    /*
+     * Same as @{CommunityGroup.getStats()}
+     */
+    public HashMap<String, Integer> getStats() {
+        HashMap<String, Integer> stats = new LinkedHashMap<>();
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] > 0) {
+                stats.put(mTable.format(i), mCounts[i]);
+            }
+        }
+        return stats;
+    }
+
+    /*
+     * Same as @{CommunityGroup.toString()}
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mSkillSet.length; i++) {
+            builder.append(i > 0 ? ", " : "").append("Skill ").append(mTable.getSkillName(i))
+                .append(": ").append(mSkillSet[i]);
+        }
+        return builder.append(", Total Volunteers: ").append(mTotal).toString();
+    }
+}
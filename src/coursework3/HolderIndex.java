@@ -0,0 +1,101 @@
+package coursework3;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Which groups have at least one volunteer of each skill code
+ * (an inverted index from skill codes to groups)
+ *
+ * Each skill code has a bitset over the groups, and the bit of a group
+ * only changes when its count of the code goes from 0 to 1 or back,
+ * so keeping it up to date is O(1). The groups holding a code are then
+ * found in O(groups / 64) at worst, without looking at any group.
+ *
+ * The bits are changed atomically, so groups can be changed by
+ * different threads at once. @{set} must be called while holding
+ * the lock of the group (see @{CommunityGroup.getLock()}).
+ */
+final class HolderIndex {
+    /*
+     * How many longs the bitset of each code takes
+     */
+    private final int mWords;
+
+    /*
+     * The bitset of code c is at [c * mWords, (c + 1) * mWords)
+     */
+    private final AtomicLongArray mBits;
+
+    /*
+     * @codeNum: how many skill codes there are
+     * @groupNum: how many groups there are
+     */
+    HolderIndex(int codeNum, int groupNum) {
+        mWords = (groupNum + 63) / 64;
+        mBits = new AtomicLongArray(codeNum * mWords);
+    }
+
+    /*
+     * Mark whether a group holds a skill code
+     * @code: the skill code
+     * @group: the group index
+     * @holds: whether the group has any volunteer with this code
+     */
+    void set(int code, int group, boolean holds) {
+        int word = code * mWords + (group >>> 6);
+        long bit = 1L << group;
+        while (true) {
+            long bits = mBits.get(word);
+            long updated = holds ? bits | bit : bits & ~bit;
+            if (bits == updated || mBits.compareAndSet(word, bits, updated)) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * The first group holding a skill code at or after a group index
+     * @return: the group index, or -1 if there is none
+     */
+    int next(int code, int from) {
+        int start = code * mWords;
+        int word = from >>> 6;
+        if (word >= mWords) {
+            return -1;
+        }
+        long bits = mBits.get(start + word) & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return word * 64 + Long.numberOfTrailingZeros(bits);
+            } else if (++word == mWords) {
+                return -1;
+            }
+            bits = mBits.get(start + word);
+        }
+    }
+
+    /*
+     * All the groups holding a skill code, in order
+     */
+    int[] groups(int code) {
+        int[] groups = new int[16];
+        int found = 0;
+        for (int group = next(code, 0); group >= 0; group = next(code, group + 1)) {
+            if (found == groups.length) {
+                groups = Arrays.copyOf(groups, found * 2);
+            }
+            groups[found++] = group;
+        }
+        return Arrays.copyOf(groups, found);
+    }
+
+    /*
+     * Forget every group (with all the groups locked)
+     */
+    void clear() {
+        for (int i = 0; i < mBits.length(); i++) {
+            mBits.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package coursework3;
+
+/*
+ * Where each volunteer is, by ID: its group and its slot in the group
+ * (see @{MemberIds}), packed into a long as (group << 32) | slot.
+ *
+ * The IDs are spread over a number of @{LongMap}s, each with its own
+ * lock, so that changes to different groups rarely wait for each other.
+ * Their slots are off the heap, so the index of millions of volunteers
+ * costs the GC nothing.
+ * A @{SkillSorter} updates this while holding the lock of the group
+ * the volunteer is added to or removed from.
+ */
+final class IdIndex {
+    private static final int SEGMENTS = 64;
+
+    private final LongMap[] mSegments = new LongMap[SEGMENTS];
+
+    IdIndex() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            mSegments[i] = new LongMap(64);
+        }
+    }
+
+    static long location(int group, int slot) {
+        return ((long) group << 32) | slot;
+    }
+
+    static int group(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static int slot(long location) {
+        return (int) location;
+    }
+
+    /*
+     * The location of a volunteer, or -1 if the ID is unknown
+     */
+    long get(long id) {
+        LongMap segment = segment(id);
+        synchronized (segment) {
+            return segment.get(id, -1);
+        }
+    }
+
+    void put(long id, long location) {
+        LongMap segment = segment(id);
+        synchronized (segment) {
+            segment.put(id, location);
+        }
+    }
+
+    void remove(long id) {
+        LongMap segment = segment(id);
+        synchronized (segment) {
+            segment.remove(id, -1);
+        }
+    }
+
+    void clear() {
+        for (LongMap segment : mSegments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private LongMap segment(long id) {
+        // Consecutive IDs go to different segments
+        return mSegments[(int) (id & (SEGMENTS - 1))];
+    }
+}
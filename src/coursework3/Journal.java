@@ -0,0 +1,891 @@
+package coursework3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import static coursework3.Constants.JOURNAL_COMPACT_SIZE;
+import static coursework3.Constants.JOURNAL_SYNC_INTERVAL;
+
+/*
+ * Write-ahead journal of all the changes made to a @{SkillSorter}
+ *
+ * Every change (see @{MutationListener}) is recorded as a small binary
+ * record and given a sequence number (1, 2, 3, ...). After a crash,
+ * the state is rebuilt by loading the last @{Snapshot} and replaying
+ * the records that came after the sequence number of the snapshot.
+ *
+ * Records are first collected in memory and written to the file by a
+ * background thread, with one fsync for the whole batch (group commit).
+ * A caller that must not report a change before it is on disk waits for
+ * it with @{awaitDurable}: the thread then writes right away, and every
+ * change recorded by other callers meanwhile goes into the same fsync.
+ * Without anyone waiting, it writes every JOURNAL_SYNC_INTERVAL
+ * milliseconds, so changes nobody waited for can be lost in a crash
+ * if they are that recent. Each batch is
+ * written as a frame: its length, its CRC32, then the records, so a
+ * batch that was only partially written when the program crashed is
+ * simply ignored.
+ *
+ * When the journal grows larger than JOURNAL_COMPACT_SIZE, it is
+ * compacted: the state of the sorter is captured, the current file is
+ * moved aside (to "<path>.old") and a new one is started. The snapshot
+ * is then written in the background, after which the old file is deleted.
+ *
+ * Once a frame is on disk, it is also handed to the @{Replicator}
+ * if there is one, which sends it on to the followers as it is.
+ *
+ * File layout (big-endian):
+ *   magic ("CW3J"), version, sequence number of the first record - 1
+ *   frames: length, CRC32, records
+ * Record layout (numbers are unsigned variable-length ints):
+ *   ADD_ID group code count firstId | MOVE_ID id to | DELETE_ID id | CLEAR
+ * Journals written before volunteers had IDs may also have
+ *   ADD group code count | MOVE from to code | DELETE group code
+ * which are still replayed, giving the volunteers new IDs.
+ */
+final class Journal implements MutationListener {
+    private static final int MAGIC = 0x43573341; // "CW3J"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    // Record types
+    private static final byte ADD = 1;
+    private static final byte MOVE = 2;
+    private static final byte DELETE = 3;
+    private static final byte CLEAR = 4;
+    private static final byte ADD_ID = 5;
+    private static final byte MOVE_ID = 6;
+    private static final byte DELETE_ID = 7;
+
+    private final SkillSorter mSorter;
+    private final String mPath;
+    private final String mSnapshotPath;
+
+    /*
+     * Records that have not been written yet, and the sequence number
+     * of the last one. Guarded by mBufferLock.
+     */
+    private final Object mBufferLock = new Object();
+    private ByteBuffer mPending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer mWriting = ByteBuffer.allocate(1 << 16);
+    private long mSequence;
+    // Also read without the lock, see @{awaitDurable}
+    private volatile long mDurableSequence;
+    // The last sequence number someone waits to be on disk
+    private long mAwaitedSequence;
+
+    // The sequence number of the last record made by each thread
+    private final ThreadLocal<long[]> mRecordedByThread = ThreadLocal.withInitial(() -> new long[1]);
+
+    /*
+     * Records that belong to the old file of a compaction, up to
+     * mRotateSequence. Once they are written, the file is rotated.
+     * Guarded by mBufferLock.
+     */
+    private ByteBuffer mRotateBuffer = null;
+    private long mRotateSequence;
+
+    /*
+     * The current file. Guarded by mFileLock.
+     * Never take mBufferLock and then mFileLock, only the other way around.
+     */
+    private final Object mFileLock = new Object();
+    private FileChannel mChannel;
+    // Also read with only mBufferLock held, see @{recorded}
+    private volatile long mFileSize;
+
+    /*
+     * Where the frames go once written, or null
+     * and the sequence number of the last record written.
+     * Guarded by mFileLock.
+     */
+    private Replicator mReplicator = null;
+    private long mWrittenSequence;
+
+    /*
+     * Held while finishing a compaction, with the sequence number
+     * of the last snapshot written. Taken before the other two locks.
+     */
+    private final Object mSnapshotLock = new Object();
+    private long mSnapshotSequence;
+
+    /*
+     * Whether a compaction is running in the background
+     */
+    private volatile boolean mCompacting = false;
+
+    /*
+     * Set when writing to the file has failed. Nothing is written after that,
+     * and the sorter refuses changes (see @{failed}).
+     */
+    private volatile IOException mFailure = null;
+
+    // See @{open}
+    private long mReplayed = 0;
+
+    private final Thread mFlusher;
+    private volatile boolean mClosed = false;
+
+    /*
+     * @sorter: the sorter whose changes are recorded
+     * @path: the journal file
+     * @snapshotPath: where snapshots are written when compacting
+     * @channel: the journal file, opened and positioned at its end
+     * @sequence: the sequence number of the last change already recorded
+     */
+    private Journal(SkillSorter sorter, String path, String snapshotPath, FileChannel channel, long sequence) throws IOException {
+        mSorter = sorter;
+        mPath = path;
+        mSnapshotPath = snapshotPath;
+        mChannel = channel;
+        mFileSize = channel.size();
+        mSequence = sequence;
+        mDurableSequence = sequence;
+        mAwaitedSequence = sequence;
+        mWrittenSequence = sequence;
+        mSnapshotSequence = sequence;
+        mPending.order(ByteOrder.BIG_ENDIAN);
+        mWriting.order(ByteOrder.BIG_ENDIAN);
+
+        mFlusher = new Thread(this::flushLoop, "journal-flusher");
+        mFlusher.setDaemon(true);
+        mFlusher.start();
+    }
+
+    /*
+     * Replay the journal on top of a sorter and start recording its changes
+     * The sorter should have just been loaded from the snapshot.
+     * A frame that was only partially written at the end is cut off.
+     * throw @{Serializable.DeserializationException} if the journal is damaged
+     *   otherwise, or doesn't follow the snapshot (e.g. the sorter isn't
+     *   configured like the one that wrote it). The files are left as they
+     *   are then, and the sorter must not be saved over the snapshot.
+     * @sorter: the sorter
+     * @path: the journal file
+     * @snapshotPath: where snapshots are written when compacting
+     * @snapshotSequence: the sequence number of the snapshot the sorter was loaded from
+     */
+    public static Journal open(SkillSorter sorter, String path, String snapshotPath, long snapshotSequence)
+            throws IOException, Serializable.DeserializationException {
+        Progress progress = new Progress(snapshotSequence);
+        File old = new File(path + ".old");
+        File current = new File(path);
+        // A compaction might not have finished last time
+        if (old.exists()) {
+            replay(sorter, old, progress, false);
+        }
+        if (current.exists()) {
+            replay(sorter, current, progress, true);
+        }
+
+        FileChannel channel = new RandomAccessFile(current, "rw").getChannel();
+        if (channel.size() == 0) {
+            writeHeader(channel, progress.sequence);
+        }
+        channel.position(channel.size());
+
+        Journal journal = new Journal(sorter, path, snapshotPath, channel, progress.sequence);
+        journal.mReplayed = progress.applied;
+        sorter.addMutationListener(journal);
+        return journal;
+    }
+
+    /*
+     * How many changes were replayed when opening
+     */
+    public long getReplayed() {
+        return mReplayed;
+    }
+
+    /*
+     * The sequence number of the last change recorded
+     */
+    public long getSequence() {
+        synchronized (mBufferLock) {
+            return mSequence;
+        }
+    }
+
+    /*
+     * Hand every frame written from now on to a replicator, or to none
+     * @replicator: the replicator, or null
+     */
+    void setReplicator(Replicator replicator) {
+        synchronized (mFileLock) {
+            mReplicator = replicator;
+        }
+    }
+
+    /*
+     * Wait until every change recorded so far is safely on disk
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (mBufferLock) {
+            target = mSequence;
+        }
+        flush();
+        synchronized (mBufferLock) {
+            while (mDurableSequence < target && mFailure == null && !mClosed) {
+                try {
+                    mBufferLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while syncing the journal");
+                }
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    /*
+     * Wait until the changes made by this thread so far are on disk
+     * Returns at once if they already are (or if there were none).
+     * throw @{java.io.IOException} if the journal could not be written:
+     *   the changes are still in memory, and in the snapshot written
+     *   on exit, but would be lost in a crash
+     */
+    public void awaitDurable() throws IOException {
+        long target = mRecordedByThread.get()[0];
+        if (mDurableSequence >= target) {
+            return;
+        }
+        synchronized (mBufferLock) {
+            if (mAwaitedSequence < target) {
+                mAwaitedSequence = target;
+                // Wake up the flusher, see @{flushLoop}
+                mBufferLock.notifyAll();
+            }
+            while (mDurableSequence < target && mFailure == null && !mClosed) {
+                try {
+                    mBufferLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+    }
+
+    /*
+     * Write a snapshot of the current state and empty the journal
+     * This is done right away on the calling thread. Used before exiting.
+     * @return: the size of the snapshot in bytes
+     */
+    public long checkpoint() throws IOException {
+        return finishCheckpoint(prepareCheckpoint());
+    }
+
+    /*
+     * First half of @{checkpoint}: capture the state
+     * This is quick, and the slow part (@{finishCheckpoint})
+     * can then be done on another thread.
+     * @return: the snapshot to pass to @{finishCheckpoint}
+     */
+    public Snapshot prepareCheckpoint() {
+        // No change can be half-way done (and not recorded yet) meanwhile
+        return Snapshot.capture(mSorter, () -> {
+            synchronized (mBufferLock) {
+                return startCompaction();
+            }
+        });
+    }
+
+    /*
+     * Second half of @{checkpoint}: write the snapshot and empty the journal
+     * @snapshot: returned by @{prepareCheckpoint}
+     * @return: the size of the snapshot in bytes
+     *   (0 if a later snapshot has already been written)
+     */
+    public long finishCheckpoint(Snapshot snapshot) throws IOException {
+        synchronized (mSnapshotLock) {
+            return finishCompaction(snapshot);
+        }
+    }
+
+    /*
+     * Stop recording and close the file
+     * Everything recorded so far is written first.
+     */
+    public void close() throws IOException {
+        mSorter.removeMutationListener(this);
+        if (mFailure == null) {
+            sync();
+        }
+        synchronized (mBufferLock) {
+            mClosed = true;
+            mBufferLock.notifyAll();
+        }
+        mFlusher.interrupt();
+        synchronized (mFileLock) {
+            mChannel.close();
+        }
+    }
+
+    @Override
+    public void onAdd(int group, int code, int count, long firstId) {
+        synchronized (mBufferLock) {
+            reserve(32);
+            mPending.put(ADD_ID);
+            putVarint(group);
+            putVarint(code);
+            putVarint(count);
+            putVarlong(firstId);
+            recorded();
+        }
+    }
+
+    @Override
+    public void onMove(int from, int to, int code, long id) {
+        synchronized (mBufferLock) {
+            reserve(16);
+            mPending.put(MOVE_ID);
+            putVarlong(id);
+            putVarint(to);
+            recorded();
+        }
+    }
+
+    @Override
+    public void onDelete(int group, int code, long id) {
+        synchronized (mBufferLock) {
+            reserve(16);
+            mPending.put(DELETE_ID);
+            putVarlong(id);
+            recorded();
+        }
+    }
+
+    @Override
+    public void onClear() {
+        synchronized (mBufferLock) {
+            reserve(1);
+            mPending.put(CLEAR);
+            recorded();
+        }
+    }
+
+    /*
+     * Called after each record is added to mPending (with mBufferLock held)
+     */
+    private void recorded() {
+        mSequence++;
+        mRecordedByThread.get()[0] = mSequence;
+        if (mFileSize + mPending.position() > JOURNAL_COMPACT_SIZE && !mCompacting) {
+            compactInBackground();
+        }
+    }
+
+    /*
+     * Make sure there is room for a record in mPending
+     */
+    private void reserve(int bytes) {
+        if (mPending.remaining() < bytes) {
+            mPending = grow(mPending, bytes);
+        }
+    }
+
+    /*
+     * A copy of a buffer with at least `bytes` more room
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int bytes) {
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+        ByteBuffer bigger = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            mPending.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mPending.put((byte) value);
+    }
+
+    private void putVarlong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mPending.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mPending.put((byte) value);
+    }
+
+    private static long getVarlong(ByteBuffer buffer) throws Serializable.DeserializationException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new Serializable.DeserializationException("Truncated journal record");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new Serializable.DeserializationException("Malformed journal record");
+    }
+
+    private static int getVarint(ByteBuffer buffer) throws Serializable.DeserializationException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new Serializable.DeserializationException("Truncated journal record");
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new Serializable.DeserializationException("Malformed journal record");
+    }
+
+    /*
+     * Start a compaction in the background (with mBufferLock held)
+     * The state can't be captured here, since the group that
+     * has just been changed is still locked by this thread.
+     */
+    private void compactInBackground() {
+        mCompacting = true;
+        Thread thread = new Thread(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                // The old journal is still there, so nothing is lost.
+                // Try again when the journal grows further.
+                System.out.println("ERROR: Journal compaction failed: " + e.getMessage());
+            } finally {
+                mCompacting = false;
+            }
+        }, "journal-compaction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Mark where the file should be rotated
+     * (with mBufferLock held, while the state is captured)
+     * The records pending now go to the old file, and the ones
+     * recorded from now on to the new file.
+     * @return: the sequence number of the last record in the old file
+     */
+    private long startCompaction() {
+        if (mRotateBuffer == null) {
+            mRotateBuffer = mPending;
+            mPending = ByteBuffer.allocate(mWriting.capacity()).order(ByteOrder.BIG_ENDIAN);
+        } else {
+            // The last rotation hasn't happened yet, just move it forward
+            if (mRotateBuffer.remaining() < mPending.position()) {
+                mRotateBuffer = grow(mRotateBuffer, mPending.position());
+            }
+            mPending.flip();
+            mRotateBuffer.put(mPending);
+            mPending.clear();
+        }
+        mRotateSequence = mSequence;
+        return mSequence;
+    }
+
+    /*
+     * Rotate the file, write the snapshot and delete the old file
+     * (with mSnapshotLock held)
+     */
+    private long finishCompaction(Snapshot snapshot) throws IOException {
+        try {
+            flush();
+        } catch (IOException e) {
+            // The journal is broken (see @{failed}), but the snapshot
+            // has every change so far, and there will be no more.
+            if (mFailure == null) {
+                snapshot.release();
+                throw e;
+            }
+        }
+
+        // A later compaction could have finished first
+        if (snapshot.getSequence() < mSnapshotSequence) {
+            snapshot.release();
+            return 0;
+        }
+        long size = snapshot.write(mSnapshotPath);
+        mSnapshotSequence = snapshot.getSequence();
+        new File(mPath + ".old").delete();
+        return size;
+    }
+
+    /*
+     * Move the current file aside and start a new one
+     * If an old file is still there (a failed compaction),
+     * the current file is appended to it instead.
+     * (with mFileLock held)
+     * @sequence: the sequence number of the last record in the current file
+     */
+    private void rotate(long sequence) throws IOException {
+        File current = new File(mPath);
+        File old = new File(mPath + ".old");
+        mChannel.close();
+        if (!old.exists()) {
+            if (!current.renameTo(old)) {
+                throw new IOException("Could not rename " + current);
+            }
+        } else {
+            // Skip the header of the current file and append the frames
+            FileChannel from = new FileInputStream(current).getChannel();
+            FileChannel to = new FileOutputStream(old, true).getChannel();
+            try {
+                long position = HEADER_SIZE;
+                while (position < from.size()) {
+                    position += from.transferTo(position, from.size() - position, to);
+                }
+                to.force(true);
+            } finally {
+                from.close();
+                to.close();
+            }
+        }
+
+        mChannel = new RandomAccessFile(current, "rw").getChannel();
+        mChannel.truncate(0);
+        writeHeader(mChannel, sequence);
+        mChannel.position(mChannel.size());
+        mFileSize = mChannel.size();
+    }
+
+    /*
+     * The background thread that writes the records to the file
+     * Every JOURNAL_SYNC_INTERVAL, or as soon as someone waits for them.
+     */
+    private void flushLoop() {
+        while (!mClosed) {
+            try {
+                synchronized (mBufferLock) {
+                    long deadline = System.currentTimeMillis() + JOURNAL_SYNC_INTERVAL;
+                    long left = JOURNAL_SYNC_INTERVAL;
+                    while (mAwaitedSequence <= mDurableSequence && left > 0) {
+                        mBufferLock.wait(left);
+                        left = deadline - System.currentTimeMillis();
+                    }
+                }
+                flush();
+            } catch (InterruptedException e) {
+                // Closed
+                return;
+            } catch (IOException e) {
+                // See @{failed}
+                return;
+            }
+        }
+    }
+
+    /*
+     * Write all pending records as one frame and fsync
+     * If a compaction has started, the records before it are written
+     * first and the file is rotated.
+     */
+    private void flush() throws IOException {
+        synchronized (mFileLock) {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+
+            ByteBuffer rotate;
+            long rotateSequence;
+            long sequence;
+            synchronized (mBufferLock) {
+                rotate = mRotateBuffer;
+                rotateSequence = mRotateSequence;
+                mRotateBuffer = null;
+                if (rotate == null && mPending.position() == 0) {
+                    return;
+                }
+
+                // Swap the buffers so that new records can be added meanwhile
+                ByteBuffer records = mPending;
+                mPending = mWriting;
+                mWriting = records;
+                sequence = mSequence;
+            }
+
+            try {
+                if (rotate != null) {
+                    writeFrame(rotate);
+                    written(rotate, rotateSequence);
+                    rotate(rotateSequence);
+                }
+                writeFrame(mWriting);
+                written(mWriting, sequence);
+                mWriting.clear();
+            } catch (IOException e) {
+                failed(e);
+                throw e;
+            }
+
+            synchronized (mBufferLock) {
+                mDurableSequence = sequence;
+                mBufferLock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Writing the file has failed (with mFileLock held)
+     * We can't tell what has been written, so nothing more is, and the
+     * sorter refuses changes from now on: they couldn't be recovered.
+     * The snapshot written on exit will still have everything so far.
+     */
+    private void failed(IOException e) {
+        synchronized (mBufferLock) {
+            mFailure = e;
+            mBufferLock.notifyAll();
+        }
+        String message = "Could not write the journal: " + e.getMessage();
+        mSorter.setReadOnly(message);
+        mSorter.getMetrics().journalFailed(message);
+        System.out.println("ERROR: " + message);
+    }
+
+    /*
+     * Write records as one frame and fsync (with mFileLock held)
+     * @records: the records, from 0 to the position of the buffer
+     */
+    private void writeFrame(ByteBuffer records) throws IOException {
+        ByteBuffer content = records.duplicate();
+        content.flip();
+        if (!content.hasRemaining()) {
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(content.remaining());
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        while (header.hasRemaining() || content.hasRemaining()) {
+            mFileSize += mChannel.write(new ByteBuffer[]{header, content});
+        }
+        mChannel.force(false);
+    }
+
+    /*
+     * A frame is on disk (with mFileLock held)
+     * @records: the records, from 0 to the position of the buffer
+     * @sequence: the sequence number of the last one
+     */
+    private void written(ByteBuffer records, long sequence) {
+        if (mReplicator != null && records.position() > 0) {
+            ByteBuffer content = records.duplicate();
+            content.flip();
+            mReplicator.send(mWrittenSequence + 1, content);
+        }
+        mWrittenSequence = sequence;
+    }
+
+    private static void writeHeader(FileChannel channel, long sequence) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(sequence);
+        header.flip();
+        channel.write(header, 0);
+        channel.force(true);
+    }
+
+    /*
+     * Where replaying has got to
+     */
+    private static final class Progress {
+        // The sequence number of the last change in the sorter
+        long sequence;
+        // How many records have been applied
+        long applied = 0;
+
+        Progress(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /*
+     * Apply the records of a journal file that come after progress.sequence
+     * @sorter: the sorter
+     * @file: the journal file
+     * @progress: updated as records are applied
+     * @truncate: whether to cut off a damaged end of the file
+     *   (e.g. the last frame was only partially written)
+     */
+    private static void replay(SkillSorter sorter, File file, Progress progress, boolean truncate)
+            throws IOException, Serializable.DeserializationException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                // Never got to write the header
+                channel.truncate(0);
+                return;
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new Serializable.DeserializationException("Not a journal: " + file);
+            }
+
+            long sequence = buffer.getLong();
+            if (sequence > progress.sequence) {
+                throw new Serializable.DeserializationException("The journal doesn't continue from the snapshot");
+            }
+
+            // Frames, until the end or the first damaged frame
+            long valid = buffer.position();
+            while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+
+                ByteBuffer records = buffer.slice();
+                records.limit(length);
+                CRC32 crc = new CRC32();
+                crc.update(records.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                while (records.hasRemaining()) {
+                    sequence++;
+                    if (sequence > progress.sequence) {
+                        apply(sorter, records, true);
+                        progress.sequence = sequence;
+                        progress.applied++;
+                    } else {
+                        apply(sorter, records, false);
+                    }
+                }
+                buffer.position(buffer.position() + length);
+                valid = buffer.position();
+            }
+
+            if (truncate && valid < channel.size()) {
+                channel.truncate(valid);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * Apply the records of a frame sent by a @{Replicator}
+     * @sorter: the sorter
+     * @records: the records
+     * @first: the sequence number of the first record
+     * @applied: the sequence number of the last change already in
+     *   the sorter. The records up to it are skipped.
+     * @return: the sequence number of the last change in the sorter now
+     */
+    static long apply(SkillSorter sorter, ByteBuffer records, long first, long applied)
+            throws Serializable.DeserializationException {
+        long sequence = first - 1;
+        if (sequence > applied) {
+            throw new Serializable.DeserializationException("Changes " + (applied + 1) + " to " + sequence + " are missing");
+        }
+        while (records.hasRemaining()) {
+            sequence++;
+            apply(sorter, records, sequence > applied);
+        }
+        return Math.max(sequence, applied);
+    }
+
+    /*
+     * Read one record and apply it to the sorter
+     * @apply: false to only skip over the record
+     */
+    private static void apply(SkillSorter sorter, ByteBuffer records, boolean apply)
+            throws Serializable.DeserializationException {
+        byte type = records.get();
+        SkillTable table = sorter.getTable();
+        try {
+            switch (type) {
+                case ADD: {
+                    int group = getVarint(records);
+                    int code = getVarint(records);
+                    int count = getVarint(records);
+                    if (apply) {
+                        sorter.addToGroup(table.getVolunteer(code), count, group, 0);
+                    }
+                    break;
+                }
+                case ADD_ID: {
+                    int group = getVarint(records);
+                    int code = getVarint(records);
+                    int count = getVarint(records);
+                    long firstId = getVarlong(records);
+                    if (apply) {
+                        sorter.addToGroup(table.getVolunteer(code), count, group, firstId);
+                    }
+                    break;
+                }
+                case MOVE_ID: {
+                    long id = getVarlong(records);
+                    int to = getVarint(records);
+                    if (apply) {
+                        sorter.moveVolunteer(id, to);
+                    }
+                    break;
+                }
+                case DELETE_ID: {
+                    long id = getVarlong(records);
+                    if (apply) {
+                        sorter.deleteVolunteer(id);
+                    }
+                    break;
+                }
+                case MOVE: {
+                    int from = getVarint(records);
+                    int to = getVarint(records);
+                    int code = getVarint(records);
+                    if (apply) {
+                        sorter.moveVolunteer(table.getVolunteer(code),
+                            sorter.getCommunityGroups().get(from), sorter.getCommunityGroups().get(to));
+                    }
+                    break;
+                }
+                case DELETE: {
+                    int group = getVarint(records);
+                    int code = getVarint(records);
+                    if (apply) {
+                        sorter.deleteVolunteer(table.getVolunteer(code), sorter.getCommunityGroups().get(group));
+                    }
+                    break;
+                }
+                case CLEAR:
+                    if (apply) {
+                        sorter.deleteAllVolunteers();
+                    }
+                    break;
+                default:
+                    throw new Serializable.DeserializationException("Unknown journal record " + type);
+            }
+        } catch (RuntimeException e) {
+            // e.g. a group or skill code out of range, or a group being full
+            // That means the journal doesn't match the snapshot.
+            throw new Serializable.DeserializationException(e);
+        }
+    }
+}
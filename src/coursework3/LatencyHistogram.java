@@ -0,0 +1,121 @@
+package coursework3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A histogram of latencies, in the style of HdrHistogram
+ *
+ * Values (in nanoseconds) are counted in buckets whose width grows with
+ * the value: below 2^SUB_BITS every value has its own bucket, and above
+ * that each power of 2 is split into 2^SUB_BITS buckets, so every value
+ * is kept to within 1 / 2^SUB_BITS (about 3%) of itself, from 1ns
+ * up to Long.MAX_VALUE, in a fixed number of buckets.
+ *
+ * Recording is one atomic increment and doesn't allocate anything,
+ * so it can be done on every operation from any number of threads.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    // Enough buckets for any positive long
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BITS);
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    /*
+     * Count a value
+     * @value: the latency in nanoseconds (negative values count as 0)
+     */
+    void record(long value) {
+        mCounts.incrementAndGet(bucket(Math.max(value, 0)));
+    }
+
+    /*
+     * How many values have been recorded
+     */
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /*
+     * The value that `percentile` percent of the values are at most
+     * (rounded up to the end of its bucket)
+     * 0 if nothing has been recorded
+     * @percentile: e.g. 50, 99 or 99.9
+     */
+    long getPercentile(double percentile) {
+        // Copy first, so that the total matches the buckets
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highest(i);
+            }
+        }
+        return highest(BUCKETS - 1);
+    }
+
+    /*
+     * The largest value recorded (rounded up to the end of its bucket)
+     */
+    long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (mCounts.get(i) > 0) {
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Forget everything recorded
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    /*
+     * The bucket of a value
+     * Values in [2^e, 2^(e+1)) are split by their top SUB_BITS + 1 bits.
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS * (shift + 1) + sub;
+    }
+
+    /*
+     * The largest value that goes into a bucket
+     */
+    private static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        long next = (sub + 1) << shift;
+        // The last bucket ends at Long.MAX_VALUE
+        return next > 0 ? next - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,269 @@
+package coursework3;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static coursework3.Constants.INDEX_SKILL_MAP;
+
+/*
+ * Load test for @{Server}
+ *
+ * Each connection keeps a number of requests in flight (pipelining),
+ * adding volunteers with random skills and deleting ones it added
+ * earlier, so that the groups don't simply fill up.
+ * Prints the throughput and the latency of the requests at the end.
+ *
+ *   --port N         port of the server (on localhost)
+ *   --connections N  connections, one thread each (default 4)
+ *   --requests N     requests on each connection (default 100000)
+ *   --pipeline N     requests in flight on each connection (default 32)
+ *   --adds N         percentage of adds, the rest are deletes (default 60)
+ *   --skills ABCDE   names of the skills used by the server
+ */
+public class LoadClient {
+    private static int sPort = -1;
+    private static int sConnections = 4;
+    private static int sRequests = 100000;
+    private static int sPipeline = 32;
+    private static int sAdds = 60;
+    private static char[] sSkills = INDEX_SKILL_MAP;
+
+    private static final LatencyHistogram sLatency = new LatencyHistogram();
+    private static final AtomicLong sErrors = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port":
+                        sPort = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--connections":
+                        sConnections = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--requests":
+                        sRequests = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--pipeline":
+                        sPipeline = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--adds":
+                        sAdds = Integer.parseInt(nextArg(args, ++i));
+                        break;
+                    case "--skills":
+                        sSkills = nextArg(args, ++i).toUpperCase().toCharArray();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (sPort < 0) {
+                throw new IllegalArgumentException("Missing --port");
+            } else if (sConnections <= 0 || sRequests <= 0 || sPipeline <= 0) {
+                throw new IllegalArgumentException("Counts must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            System.out.println("Usage: LoadClient --port N [--connections N] [--requests N] [--pipeline N] [--adds PERCENT] [--skills ABCDE]");
+            System.exit(1);
+        }
+
+        Thread[] threads = new Thread[sConnections];
+        Worker[] workers = new Worker[sConnections];
+        for (int i = 0; i < sConnections; i++) {
+            workers[i] = new Worker(i);
+            threads[i] = new Thread(workers[i], "load-" + i);
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long time = System.nanoTime() - start;
+
+        long total = (long) sConnections * sRequests;
+        System.out.println("Requests: " + total + " over " + sConnections + " connections, "
+            + sPipeline + " in flight each");
+        System.out.println(String.format("Time: %.1f ms, %.0f requests/s", time / 1e6, total * 1e9 / time));
+        System.out.println(String.format("Latency (us): p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+            sLatency.getPercentile(50) / 1e3, sLatency.getPercentile(99) / 1e3,
+            sLatency.getPercentile(99.9) / 1e3, sLatency.getMax() / 1e3));
+        System.out.println("Errors: " + sErrors.get());
+        for (Worker worker : workers) {
+            if (worker.mFailure != null) {
+                System.out.println("ERROR: " + worker.mFailure.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Drives one connection
+     */
+    private static final class Worker implements Runnable {
+        private final SplittableRandom mRandom;
+        private final ByteBuffer mOut = ByteBuffer.allocate(64 * 1024);
+        private final ByteBuffer mIn = ByteBuffer.allocate(64 * 1024);
+
+        // Requests in flight, oldest first (a ring):
+        // when each was sent, and the skills it added (-1 for deletes)
+        private final long[] mSent = new long[sPipeline];
+        private final int[] mPending = new int[sPipeline];
+        private int mHead = 0, mInFlight = 0;
+
+        // IDs of the volunteers added and not deleted yet
+        private long[] mPlaced = new long[1024];
+        private int mPlacedNum = 0;
+
+        // The reply being read: its first byte and the last number in it
+        private int mFirst = -1;
+        private long mNumber = 0;
+
+        private IOException mFailure = null;
+
+        Worker(int seed) {
+            mRandom = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + System.nanoTime());
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = SocketChannel.open()) {
+                channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), sPort));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                int sent = 0, received = 0;
+                while (received < sRequests) {
+                    // Fill the pipeline
+                    while (mInFlight < sPipeline && sent < sRequests && mOut.remaining() > 64) {
+                        request();
+                        sent++;
+                    }
+                    mOut.flip();
+                    while (mOut.hasRemaining()) {
+                        channel.write(mOut);
+                    }
+                    mOut.clear();
+
+                    // Then read whatever replies have come
+                    if (channel.read(mIn) < 0) {
+                        throw new IOException("Connection closed by the server");
+                    }
+                    received += replies();
+                }
+            } catch (IOException e) {
+                mFailure = e;
+            }
+        }
+
+        /*
+         * Write the next request
+         */
+        private void request() {
+            int slot = (mHead + mInFlight) % sPipeline;
+            mInFlight++;
+            mSent[slot] = System.nanoTime();
+            if (mPlacedNum > 0 && mRandom.nextInt(100) >= sAdds) {
+                // Delete one of ours
+                int i = mRandom.nextInt(mPlacedNum);
+                long id = mPlaced[i];
+                mPlaced[i] = mPlaced[--mPlacedNum];
+                mPending[slot] = -1;
+                put("deleteid ");
+                put(Long.toString(id));
+            } else {
+                int skills = 0;
+                for (int j = 0; j < 3; j++) {
+                    skills = skills * sSkills.length + mRandom.nextInt(sSkills.length);
+                }
+                mPending[slot] = skills;
+                put("add ");
+                putSkills(skills);
+            }
+            put('\n');
+        }
+
+        /*
+         * Handle the complete replies received
+         * @return: how many there were
+         */
+        private int replies() {
+            mIn.flip();
+            int count = 0;
+            while (mIn.hasRemaining()) {
+                byte b = mIn.get();
+                if (b == '\n') {
+                    reply();
+                    count++;
+                } else if (mFirst < 0) {
+                    mFirst = b;
+                } else if (b >= '0' && b <= '9') {
+                    mNumber = mNumber * 10 + (b - '0');
+                } else if (b == ' ') {
+                    mNumber = 0;
+                }
+            }
+            mIn.clear();
+            return count;
+        }
+
+        /*
+         * A reply has been read completely
+         */
+        private void reply() {
+            long now = System.nanoTime();
+            int skills = mPending[mHead];
+            sLatency.record(now - mSent[mHead]);
+            mHead = (mHead + 1) % sPipeline;
+            mInFlight--;
+
+            if (mFirst != 'O') {
+                sErrors.incrementAndGet();
+            } else if (skills >= 0) {
+                // "OK <group> <id>"
+                if (mPlacedNum == mPlaced.length) {
+                    long[] grown = new long[mPlacedNum * 2];
+                    System.arraycopy(mPlaced, 0, grown, 0, mPlacedNum);
+                    mPlaced = grown;
+                }
+                mPlaced[mPlacedNum++] = mNumber;
+            }
+            mFirst = -1;
+            mNumber = 0;
+        }
+
+        private void putSkills(int skills) {
+            int n = sSkills.length;
+            put(sSkills[skills / (n * n)]);
+            put(sSkills[skills / n % n]);
+            put(sSkills[skills % n]);
+        }
+
+        private void put(String s) {
+            mOut.put(s.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void put(char c) {
+            mOut.put((byte) c);
+        }
+    }
+
+    /*
+     * Get the value of an option
+     * throw @{java.lang.IllegalArgumentException} if it is missing
+     */
+    private static String nextArg(String[] args, int i) throws IllegalArgumentException {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+}
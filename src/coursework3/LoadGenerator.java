@@ -0,0 +1,243 @@
+package coursework3;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Generates synthetic load on a @{SkillSorter}, to see how it copes
+ *
+ * A number of threads share the operations between them: a mix of adds,
+ * deletes and moves, with the skills of the new volunteers from a
+ * @{SkillDistribution}. Deletes and moves are done by ID on a volunteer
+ * the same thread has added, and are turned into adds while it has none.
+ *
+ * Every thread has its own SplittableRandom, split in order from one
+ * seeded at the start, so the same seed gives every thread the same
+ * operations again (how they interleave still depends on the timing).
+ *
+ * With a target rate the load is open-loop: the operations of all the
+ * threads are due at evenly spaced times, whether or not the ones before
+ * them were late, and the latency is measured from when an operation was
+ * due rather than when it started. So a stall shows up in everything it
+ * held up, not just in the one operation that was slow. Without a rate,
+ * every thread runs its operations back to back.
+ */
+final class LoadGenerator {
+    // Kinds of operations
+    static final int ADD = 0;
+    static final int DELETE = 1;
+    static final int MOVE = 2;
+    static final String[] NAMES = {"add", "delete", "move"};
+
+    /*
+     * What a run did
+     */
+    static final class Report {
+        final long seed;
+        // Operations done and failed, by kind
+        final long[] counts = new long[NAMES.length];
+        final long[] failed = new long[NAMES.length];
+        // From when they were due, by kind
+        final LatencyHistogram[] latencies = new LatencyHistogram[NAMES.length];
+        // How long the run took (nanoseconds)
+        long time;
+
+        Report(long seed) {
+            this.seed = seed;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        long getTotal() {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        long getFailed() {
+            long total = 0;
+            for (long count : failed) {
+                total += count;
+            }
+            return total;
+        }
+
+        /*
+         * Operations per second achieved
+         */
+        double getRate() {
+            return time > 0 ? getTotal() * 1e9 / time : 0;
+        }
+    }
+
+    private final SkillSorter mSorter;
+    private final int mThreads;
+    private final double mRate;
+    private final int[] mMix;
+    private final String mDistribution;
+    private final long mSeed;
+
+    /*
+     * throw @{java.lang.IllegalArgumentException} if any of the settings is invalid
+     * @sorter: the sorter to load
+     * @threads: how many threads to run the operations on
+     * @rate: operations per second (all threads together), or 0 for as many as possible
+     * @mix: the percentages of adds, deletes and moves, which add up to 100
+     * @distribution: the skills of new volunteers (see @{SkillDistribution.parse})
+     * @seed: where the random operations come from
+     */
+    LoadGenerator(SkillSorter sorter, int threads, double rate, int[] mix, String distribution, long seed) throws IllegalArgumentException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Need at least 1 thread.");
+        }
+        if (!(rate >= 0)) {
+            throw new IllegalArgumentException("The rate can't be minus.");
+        }
+        if (mix.length != NAMES.length || mix[ADD] < 0 || mix[DELETE] < 0 || mix[MOVE] < 0
+                || mix[ADD] + mix[DELETE] + mix[MOVE] != 100) {
+            throw new IllegalArgumentException("The percentages of adds, deletes and moves must add up to 100.");
+        }
+        // Fail now rather than in every thread
+        SkillDistribution.parse(distribution, sorter.getTable());
+
+        mSorter = sorter;
+        mThreads = threads;
+        mRate = rate;
+        mMix = mix.clone();
+        mDistribution = distribution;
+        mSeed = seed;
+    }
+
+    /*
+     * Run the operations and wait for them to finish
+     * @operations: how many operations, all threads together
+     */
+    Report run(long operations) throws InterruptedException {
+        Report report = new Report(mSeed);
+        SplittableRandom root = new SplittableRandom(mSeed);
+        Thread[] threads = new Thread[mThreads];
+        Worker[] workers = new Worker[mThreads];
+        for (int t = 0; t < mThreads; t++) {
+            // The first threads take one more if it doesn't divide evenly
+            long share = operations / mThreads + (t < operations % mThreads ? 1 : 0);
+            workers[t] = new Worker(t, share, root.split(), report);
+            threads[t] = new Thread(workers[t], "load-" + t);
+        }
+
+        long start = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.mStart = start;
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report.time = System.nanoTime() - start;
+
+        for (Worker worker : workers) {
+            for (int i = 0; i < NAMES.length; i++) {
+                report.counts[i] += worker.mCounts[i];
+                report.failed[i] += worker.mFailed[i];
+            }
+        }
+        return report;
+    }
+
+    /*
+     * The operations of one thread
+     */
+    private final class Worker implements Runnable {
+        private final int mIndex;
+        private final long mOperations;
+        private final SplittableRandom mRandom;
+        private final SkillDistribution mSkills;
+        private final LatencyHistogram[] mLatencies;
+        private long mStart;
+
+        // The IDs of the volunteers this thread has added and not deleted
+        // (the first mIdCount), unboxed so that measuring makes no garbage
+        private long[] mIds = new long[1024];
+        private int mIdCount = 0;
+        private final long[] mCounts = new long[NAMES.length];
+        private final long[] mFailed = new long[NAMES.length];
+
+        Worker(int index, long operations, SplittableRandom random, Report report) {
+            mIndex = index;
+            mOperations = operations;
+            mRandom = random;
+            mSkills = SkillDistribution.parse(mDistribution, mSorter.getTable());
+            mLatencies = report.latencies;
+        }
+
+        @Override
+        public void run() {
+            // Operations of all the threads take turns, one every `period`
+            double period = mRate > 0 ? 1e9 / mRate : 0;
+            for (long i = 0; i < mOperations; i++) {
+                long due;
+                if (period > 0) {
+                    due = mStart + (long) ((i * mThreads + mIndex) * period);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    due = System.nanoTime();
+                }
+
+                int kind = next();
+                try {
+                    execute(kind);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    // A full group, or someone else deleted the volunteer
+                    mFailed[kind]++;
+                }
+                mCounts[kind]++;
+                mLatencies[kind].record(System.nanoTime() - due);
+            }
+        }
+
+        // The kind of the next operation
+        private int next() {
+            int roll = mRandom.nextInt(100);
+            if (roll < mMix[ADD] || mIdCount == 0) {
+                return ADD;
+            }
+            return roll < mMix[ADD] + mMix[DELETE] ? DELETE : MOVE;
+        }
+
+        private void execute(int kind) {
+            switch (kind) {
+                case ADD: {
+                    long id = mSorter.addVolunteerWithId(mSorter.getTable().getVolunteer(mSkills.next(mRandom)));
+                    if (mIdCount == mIds.length) {
+                        mIds = Arrays.copyOf(mIds, mIds.length * 2);
+                    }
+                    mIds[mIdCount++] = id;
+                    break;
+                }
+                case DELETE: {
+                    // Swap with the last one, so it is removed in O(1)
+                    int i = mRandom.nextInt(mIdCount);
+                    long id = mIds[i];
+                    mIds[i] = mIds[--mIdCount];
+                    mSorter.deleteVolunteer(id);
+                    break;
+                }
+                case MOVE: {
+                    long id = mIds[mRandom.nextInt(mIdCount)];
+                    mSorter.moveVolunteer(id, mRandom.nextInt(mSorter.getCommunityGroups().size()));
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown operation " + kind);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package coursework3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/*
+ * A map from long to long without any boxing
+ *
+ * Open addressing with linear probing: each slot is a key followed by
+ * its value, and a key is looked for from its hash position onwards
+ * until an empty slot. Removing shifts the following entries back
+ * instead of leaving markers, so lookups never slow down over time.
+ * The slots double when they are half full.
+ *
+ * The slots are in a direct buffer, off the heap like the records of
+ * @{RecordStore}: at 16 bytes a slot, a map of millions of entries
+ * would otherwise be a large part of what the GC has to go through.
+ * A buffer holds at most MAX_CAPACITY slots (1 GB).
+ *
+ * Key 0 is used for empty slots, so it can't be stored and is never found.
+ * Not thread-safe.
+ */
+final class LongMap {
+    private static final long EMPTY = 0;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    // Slot i is the key at 2 * i and the value at 2 * i + 1
+    private LongBuffer mSlots;
+    private int mMask;
+    private int mSize = 0;
+    private final int mInitial;
+
+    /*
+     * @expected: how many entries to make room for at first
+     */
+    LongMap(int expected) {
+        mInitial = Integer.highestOneBit(Math.min(Math.max(expected, 4), MAX_CAPACITY / 2) * 2 - 1) << 1;
+        allocate(mInitial);
+    }
+
+    /*
+     * The value of a key
+     * @missing: returned if the key is not there
+     */
+    long get(long key, long missing) {
+        if (key == EMPTY) {
+            return missing;
+        }
+        for (int i = slot(key); ; i = (i + 1) & mMask) {
+            long k = mSlots.get(2 * i);
+            if (k == key) {
+                return mSlots.get(2 * i + 1);
+            } else if (k == EMPTY) {
+                return missing;
+            }
+        }
+    }
+
+    /*
+     * Set the value of a key, adding it if it's not there
+     * throw @{java.lang.IllegalArgumentException} if the key is 0
+     * throw @{java.lang.IllegalStateException} if the map is too large
+     */
+    void put(long key, long value) throws IllegalArgumentException, IllegalStateException {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key can't be 0");
+        }
+        int i = slot(key);
+        long k = mSlots.get(2 * i);
+        while (k != EMPTY && k != key) {
+            i = (i + 1) & mMask;
+            k = mSlots.get(2 * i);
+        }
+        if (k == EMPTY) {
+            if ((mSize + 1) * 2 > mMask + 1 && mMask + 1 == MAX_CAPACITY) {
+                throw new IllegalStateException("Too many entries");
+            }
+            mSlots.put(2 * i, key);
+            mSize++;
+        }
+        mSlots.put(2 * i + 1, value);
+
+        if (mSize * 2 > mMask + 1 && mMask + 1 < MAX_CAPACITY) {
+            resize((mMask + 1) * 2);
+        }
+    }
+
+    /*
+     * Remove a key
+     * @missing: returned if the key is not there
+     * @return: the value it had
+     */
+    long remove(long key, long missing) {
+        if (key == EMPTY) {
+            return missing;
+        }
+        int i = slot(key);
+        for (long k = mSlots.get(2 * i); k != key; k = mSlots.get(2 * i)) {
+            if (k == EMPTY) {
+                return missing;
+            }
+            i = (i + 1) & mMask;
+        }
+        long value = mSlots.get(2 * i + 1);
+
+        // Move back the entries after it that would
+        // no longer be found across the hole
+        int hole = i;
+        for (int j = (i + 1) & mMask; mSlots.get(2 * j) != EMPTY; j = (j + 1) & mMask) {
+            int home = slot(mSlots.get(2 * j));
+            // Whether `home` is cyclically outside (hole, j]
+            if (((j - home) & mMask) >= ((j - hole) & mMask)) {
+                mSlots.put(2 * hole, mSlots.get(2 * j));
+                mSlots.put(2 * hole + 1, mSlots.get(2 * j + 1));
+                hole = j;
+            }
+        }
+        mSlots.put(2 * hole, EMPTY);
+        mSize--;
+        return value;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /*
+     * Remove everything, and give back the memory of the slots
+     */
+    void clear() {
+        allocate(mInitial);
+        mSize = 0;
+    }
+
+    // Direct buffers start zeroed, so all the slots are empty
+    private void allocate(int capacity) {
+        mSlots = ByteBuffer.allocateDirect(capacity * 16).order(ByteOrder.nativeOrder()).asLongBuffer();
+        mMask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        LongBuffer slots = mSlots;
+        int old = mMask + 1;
+        allocate(capacity);
+        for (int i = 0; i < old; i++) {
+            long key = slots.get(2 * i);
+            if (key != EMPTY) {
+                int j = slot(key);
+                while (mSlots.get(2 * j) != EMPTY) {
+                    j = (j + 1) & mMask;
+                }
+                mSlots.put(2 * j, key);
+                mSlots.put(2 * j + 1, slots.get(2 * i + 1));
+            }
+        }
+    }
+
+    /*
+     * Where to start looking for a key
+     * IDs are given out in order, so mix the bits first.
+     */
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+}
@@ -0,0 +1,158 @@
+package coursework3;
+
+import java.util.Arrays;
+
+/*
+ * The IDs of the members of a @{CommunityGroup}
+ *
+ * Every member has a slot, which holds its ID and skill code and
+ * doesn't change while it stays in the group. The slots are records
+ * of a @{RecordStore}, off the heap and shared with the other groups,
+ * so a slot is a record number. The slots of each skill code are
+ * linked together in the order they were added, so that a member can
+ * be taken out either by its slot or as "any member with these skills"
+ * (the last one added), both in O(1). Freed slots go back to the store.
+ * Not thread-safe; the group is locked around it.
+ */
+final class MemberIds {
+    private final RecordStore mStore;
+    // Tells our records from the ones of other groups in the same store
+    private final int mOwner;
+    private final int[] mHeads;
+    private final int[] mTails;
+    private int mSize = 0;
+
+    /*
+     * Calls back for every member, see @{forEach}
+     */
+    interface Visitor {
+        void visit(int slot, long id);
+    }
+
+    /*
+     * @codeNum: how many skill codes there are
+     * @store: where the records go
+     */
+    MemberIds(int codeNum, RecordStore store) {
+        mStore = store;
+        mOwner = store.newOwner();
+        mHeads = new int[codeNum];
+        mTails = new int[codeNum];
+        Arrays.fill(mHeads, RecordStore.NONE);
+        Arrays.fill(mTails, RecordStore.NONE);
+    }
+
+    /*
+     * Add a member
+     * @return: its slot
+     */
+    int add(long id, int code) {
+        int slot = mStore.allocate(mOwner, id, code);
+        int tail = mTails[code];
+        mStore.setPrev(slot, tail);
+        if (tail != RecordStore.NONE) {
+            mStore.setNext(tail, slot);
+        } else {
+            mHeads[code] = slot;
+        }
+        mTails[code] = slot;
+        mSize++;
+        return slot;
+    }
+
+    /*
+     * Take out the member in a slot
+     * The slot must be in use.
+     */
+    void remove(int slot) {
+        int code = mStore.getCode(slot);
+        int next = mStore.getNext(slot);
+        int prev = mStore.getPrev(slot);
+        if (prev != RecordStore.NONE) {
+            mStore.setNext(prev, next);
+        } else {
+            mHeads[code] = next;
+        }
+        if (next != RecordStore.NONE) {
+            mStore.setPrev(next, prev);
+        } else {
+            mTails[code] = prev;
+        }
+
+        mStore.free(slot);
+        mSize--;
+    }
+
+    /*
+     * Take out the last member added with a skill code
+     * @return: its ID, or 0 if there is none
+     */
+    long removeLast(int code) {
+        int slot = mTails[code];
+        if (slot == RecordStore.NONE) {
+            return 0;
+        }
+        long id = mStore.getId(slot);
+        remove(slot);
+        return id;
+    }
+
+    /*
+     * The ID in a slot, 0 if the slot is not one of ours
+     * (free, given to another group, or never used)
+     */
+    long getId(int slot) {
+        return mStore.isOwnedBy(slot, mOwner) ? mStore.getId(slot) : 0;
+    }
+
+    /*
+     * The skill code of the member in a slot
+     */
+    int getCode(int slot) {
+        return mStore.getCode(slot);
+    }
+
+    /*
+     * How many members there are
+     */
+    int size() {
+        return mSize;
+    }
+
+    /*
+     * Go through all the members, by skill code
+     * and in the order they were added for each code
+     */
+    void forEach(Visitor visitor) {
+        for (int code = 0; code < mHeads.length; code++) {
+            for (int slot = mHeads[code]; slot != RecordStore.NONE; slot = mStore.getNext(slot)) {
+                visitor.visit(slot, mStore.getId(slot));
+            }
+        }
+    }
+
+    /*
+     * Copy the IDs of one skill code, in the order they were added
+     * @return: the position after the last one copied
+     */
+    int copy(int code, long[] dest, int offset) {
+        for (int slot = mHeads[code]; slot != RecordStore.NONE; slot = mStore.getNext(slot)) {
+            dest[offset++] = mStore.getId(slot);
+        }
+        return offset;
+    }
+
+    void clear() {
+        int[] slots = new int[mSize];
+        int count = 0;
+        for (int code = 0; code < mHeads.length; code++) {
+            for (int slot = mHeads[code]; slot != RecordStore.NONE; slot = mStore.getNext(slot)) {
+                slots[count++] = slot;
+            }
+        }
+        mStore.free(slots, count);
+        Arrays.fill(mHeads, RecordStore.NONE);
+        Arrays.fill(mTails, RecordStore.NONE);
+        mSize = 0;
+    }
+}
@@ -0,0 +1,251 @@
+package coursework3;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms of the operations of a @{SkillSorter}
+ *
+ * Every operation records how long it took into its own
+ * @{LatencyHistogram}, which also gives how many there have been.
+ * Recording never allocates, so measuring doesn't slow down
+ * what is being measured.
+ * The numbers can be seen with the `metrics` command of @{Shell},
+ * or through JMX (see @{register}).
+ */
+final class Metrics {
+    // Operations
+    static final int ADD = 0;
+    static final int BULK_ADD = 1;
+    static final int MOVE = 2;
+    static final int DELETE = 3;
+    static final int SAVE = 4;
+    static final int LOAD = 5;
+    // Choosing the group for a new volunteer (part of ADD)
+    static final int PLACE = 6;
+
+    static final String[] NAMES = {"add", "bulk add", "move", "delete", "save", "load", "place"};
+
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[NAMES.length];
+
+    // Changes refused because the groups were full
+    private final LongAdder mRejected = new LongAdder();
+
+    // When the counting started
+    private volatile long mStartTime = System.nanoTime();
+
+    // Gives how far behind replication is, or null if not replicating
+    private volatile LongSupplier mReplicationLag = null;
+
+    // Why the journal stopped, or null if it hasn't
+    private volatile String mJournalFailure = null;
+
+    Metrics() {
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /*
+     * Record that an operation has finished
+     * @operation: e.g. ADD
+     * @startTime: the System.nanoTime() when it started
+     */
+    void record(int operation, long startTime) {
+        mLatencies[operation].record(System.nanoTime() - startTime);
+    }
+
+    /*
+     * Record that a change was refused because the groups were full
+     */
+    void rejected() {
+        mRejected.increment();
+    }
+
+    long getRejected() {
+        return mRejected.sum();
+    }
+
+    /*
+     * Where to read the replication lag from (see @{Replicator}
+     * and @{Follower}), or null when replication stops
+     */
+    void setReplicationLag(LongSupplier lag) {
+        mReplicationLag = lag;
+    }
+
+    /*
+     * How many changes the primary has made that a follower
+     * has not applied yet (the slowest one, as seen from the primary)
+     * @return: the number of changes, or -1 if not replicating
+     */
+    long getReplicationLag() {
+        LongSupplier lag = mReplicationLag;
+        return lag != null ? lag.getAsLong() : -1;
+    }
+
+    /*
+     * Record that the journal could not be written (see @{Journal})
+     * Not cleared by @{reset}, since it doesn't go away.
+     */
+    void journalFailed(String message) {
+        mJournalFailure = message;
+    }
+
+    /*
+     * Why the journal stopped, or null if it is working
+     */
+    String getJournalFailure() {
+        return mJournalFailure;
+    }
+
+    /*
+     * How many times an operation has been done
+     */
+    long getCount(int operation) {
+        return mLatencies[operation].getCount();
+    }
+
+    /*
+     * How many times per second an operation has been done
+     * on average since the counting started
+     */
+    double getRate(int operation) {
+        double seconds = (System.nanoTime() - mStartTime) / 1e9;
+        return seconds > 0 ? getCount(operation) / seconds : 0;
+    }
+
+    /*
+     * The latency of an operation at a percentile, in nanoseconds
+     * @percentile: e.g. 99.9
+     */
+    long getPercentile(int operation, double percentile) {
+        return mLatencies[operation].getPercentile(percentile);
+    }
+
+    /*
+     * The longest an operation has taken, in nanoseconds
+     */
+    long getMax(int operation) {
+        return mLatencies[operation].getMax();
+    }
+
+    /*
+     * Start counting again from 0
+     */
+    void reset() {
+        for (LatencyHistogram latency : mLatencies) {
+            latency.reset();
+        }
+        mRejected.reset();
+        mStartTime = System.nanoTime();
+    }
+
+    /*
+     * Start counting one operation again from 0
+     */
+    void reset(int operation) {
+        mLatencies[operation].reset();
+    }
+
+    /*
+     * Make the metrics of a sorter available through JMX
+     * as "coursework3:type=SkillSorter" (replacing any earlier one)
+     * @sorter: the sorter
+     */
+    static void register(SkillSorter sorter) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("coursework3:type=SkillSorter");
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new Bean(sorter), name);
+    }
+
+    /*
+     * What JMX sees. See @{MetricsMXBean}
+     */
+    private static final class Bean implements MetricsMXBean {
+        private final SkillSorter mSorter;
+
+        Bean(SkillSorter sorter) {
+            mSorter = sorter;
+        }
+
+        @Override
+        public double getImbalance() {
+            return mSorter.imbalance();
+        }
+
+        @Override
+        public long getRejected() {
+            return mSorter.getMetrics().getRejected();
+        }
+
+        @Override
+        public long getReplicationLag() {
+            return mSorter.getMetrics().getReplicationLag();
+        }
+
+        @Override
+        public String getJournalFailure() {
+            return mSorter.getMetrics().getJournalFailure();
+        }
+
+        @Override
+        public MetricsMXBean.Operation getAdd() {
+            return summary(ADD);
+        }
+
+        @Override
+        public MetricsMXBean.Operation getBulkAdd() {
+            return summary(BULK_ADD);
+        }
+
+        @Override
+        public MetricsMXBean.Operation getMove() {
+            return summary(MOVE);
+        }
+
+        @Override
+        public MetricsMXBean.Operation getDelete() {
+            return summary(DELETE);
+        }
+
+        @Override
+        public MetricsMXBean.Operation getSave() {
+            return summary(SAVE);
+        }
+
+        @Override
+        public MetricsMXBean.Operation getLoad() {
+            return summary(LOAD);
+        }
+
+        @Override
+        public MetricsMXBean.Operation getPlace() {
+            return summary(PLACE);
+        }
+
+        @Override
+        public String getPlacement() {
+            return mSorter.getPlacement().getName();
+        }
+
+        @Override
+        public void reset() {
+            mSorter.getMetrics().reset();
+        }
+
+        private MetricsMXBean.Operation summary(int operation) {
+            Metrics metrics = mSorter.getMetrics();
+            return new MetricsMXBean.Operation(metrics.getCount(operation), metrics.getRate(operation),
+                metrics.getPercentile(operation, 50), metrics.getPercentile(operation, 99),
+                metrics.getPercentile(operation, 99.9), metrics.getMax(operation));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package coursework3;
+
+import java.beans.ConstructorProperties;
+
+/*
+ * The metrics of a @{SkillSorter} as seen through JMX
+ * (e.g. in JConsole, under coursework3 / SkillSorter)
+ * See @{Metrics}. Latencies are in nanoseconds.
+ */
+public interface MetricsMXBean {
+    /*
+     * How badly the groups are balanced right now
+     * See @{SkillSorter.imbalance()}
+     */
+    double getImbalance();
+
+    /*
+     * Changes refused because the groups were full
+     */
+    long getRejected();
+
+    /*
+     * How many changes a follower is behind the primary
+     * -1 if not replicating. See @{Metrics.getReplicationLag()}
+     */
+    long getReplicationLag();
+
+    /*
+     * Why the journal could not be written, or null if it can.
+     * No changes are accepted after it fails. See @{Journal}
+     */
+    String getJournalFailure();
+
+    Operation getAdd();
+
+    Operation getBulkAdd();
+
+    Operation getMove();
+
+    Operation getDelete();
+
+    Operation getSave();
+
+    Operation getLoad();
+
+    /*
+     * Choosing the group for each new volunteer
+     */
+    Operation getPlace();
+
+    /*
+     * How the groups for new volunteers are chosen
+     * See @{PlacementStrategy}
+     */
+    String getPlacement();
+
+    /*
+     * Start counting again from 0
+     */
+    void reset();
+
+    /*
+     * The numbers of one kind of operation
+     */
+    public static final class Operation {
+        private final long mCount;
+        private final double mRate;
+        private final long mP50;
+        private final long mP99;
+        private final long mP999;
+        private final long mMax;
+
+        @ConstructorProperties({"count", "rate", "p50", "p99", "p999", "max"})
+        public Operation(long count, double rate, long p50, long p99, long p999, long max) {
+            mCount = count;
+            mRate = rate;
+            mP50 = p50;
+            mP99 = p99;
+            mP999 = p999;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        // Operations per second
+        public double getRate() {
+            return mRate;
+        }
+
+        public long getP50() {
+            return mP50;
+        }
+
+        public long getP99() {
+            return mP99;
+        }
+
+        public long getP999() {
+            return mP999;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package coursework3;
+
+/*
+ * Gets notified of every change made to the groups of a @{SkillSorter}
+ * See @{SkillSorter.addMutationListener()}
+ *
+ * Each method is called right after the change has been made,
+ * on the thread that made it, so implementations should be quick.
+ * Volunteers are given as skill codes (see @{SkillTable})
+ * and their IDs, and groups as their indexes.
+ */
+interface MutationListener {
+    /*
+     * Volunteers have been added to a group
+     * @group: the group
+     * @code: the skill code of the volunteers
+     * @count: how many were added (usually 1)
+     * @firstId: the ID of the first one, the others follow
+     */
+    void onAdd(int group, int code, int count, long firstId);
+
+    /*
+     * A volunteer has been moved from one group to another
+     * @from: the original group
+     * @to: the new group
+     * @code: the skill code of the volunteer
+     * @id: the ID of the volunteer
+     */
+    void onMove(int from, int to, int code, long id);
+
+    /*
+     * A volunteer has been deleted from a group
+     * @group: the group
+     * @code: the skill code of the volunteer
+     * @id: the ID of the volunteer
+     */
+    void onDelete(int group, int code, long id);
+
+    /*
+     * All the volunteers have been deleted
+     */
+    void onClear();
+}
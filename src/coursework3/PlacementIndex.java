@@ -0,0 +1,186 @@
+package coursework3;
+
+import java.util.List;
+
+/*
+ * An index to find the best group for a volunteer
+ * without going through every group.
+ *
+ * As explained in @{SkillSorter.bestGroup()}, the best group for
+ * a volunteer with skills (s1, s2, s3) is the one with the smallest
+ *   score = size + points(s1) + points(s2) + points(s3)
+ * which only depends on the skill code of the volunteer.
+ * So for each skill code we keep a tournament tree (a complete binary tree
+ * where each node holds the winner, i.e. the group with the lowest score,
+ * of its two children) over all the groups.
+ * The root of the tree is then the best group, and changing a group
+ * only needs to replay the matches on the path from its leaf to the root,
+ * which is O(log(groups)) per skill code.
+ *
+ * The trees are only built for skill codes that have been asked for.
+ * Full groups always lose, and ties are won by the smaller group index,
+ * so this gives exactly the same answer as scanning all the groups.
+ *
+ * Each tree has its own lock, so that threads placing volunteers with
+ * different skills don't wait for each other. @{update} must be called
+ * while holding the lock of the group (see @{CommunityGroup.getLock()}),
+ * which keeps the leaf of a locked group up to date.
+ */
+final class PlacementIndex {
+    private final SkillTable mTable;
+    private final List<CommunityGroup> mGroups;
+
+    /*
+     * The number of leaves of each tree (a power of 2)
+     * The leaf of group i is at mLeaves + i
+     */
+    private final int mLeaves;
+
+    /*
+     * How many bits the group index takes in a key
+     */
+    private final int mIndexBits;
+
+    /*
+     * One tree for each skill code, null if not built yet
+     * Each node holds the key of the winning group, where
+     *   key = (score << mIndexBits) | group index
+     * so that the smaller key is always the winner, and
+     * Long.MAX_VALUE stands for a full group (or no group at all).
+     * The root is at 1, and the children of node i are 2i and 2i + 1
+     */
+    private final long[][] mTrees;
+
+    /*
+     * The lock of each tree (of the array slot, since trees come and go)
+     */
+    private final Object[] mLocks;
+
+    /*
+     * @table: the tables of skill codes
+     * @groups: the groups to index. The number of groups must not change.
+     */
+    PlacementIndex(SkillTable table, List<CommunityGroup> groups) {
+        mTable = table;
+        mGroups = groups;
+        mTrees = new long[table.getCombinationNum()][];
+        mLocks = new Object[mTrees.length];
+        for (int code = 0; code < mLocks.length; code++) {
+            mLocks[code] = new Object();
+        }
+
+        int leaves = 1;
+        while (leaves < groups.size()) {
+            leaves <<= 1;
+        }
+        mLeaves = leaves;
+        mIndexBits = Integer.numberOfTrailingZeros(leaves);
+    }
+
+    /*
+     * Whether this index is worth maintaining
+     * Every change to a group needs to update every tree, so this only pays
+     * when the number of skill codes times the height of the trees
+     * is smaller than the number of groups (i.e. a full scan).
+     * @table: the tables of skill codes
+     * @groupNum: the number of groups
+     */
+    static boolean worthwhile(SkillTable table, int groupNum) {
+        int height = 32 - Integer.numberOfLeadingZeros(groupNum);
+        return (long) table.getCombinationNum() * height < groupNum;
+    }
+
+    /*
+     * Get the best group for a volunteer
+     * return -1 if all the groups are full
+     * @code: the skill code of the volunteer
+     */
+    int bestGroup(int code) {
+        synchronized (mLocks[code]) {
+            long[] tree = mTrees[code];
+            if (tree == null) {
+                tree = build(code);
+            }
+
+            long best = tree[1];
+            return best == Long.MAX_VALUE ? -1 : (int) (best & (mLeaves - 1));
+        }
+    }
+
+    /*
+     * Whether a group is (still) the best for a volunteer
+     * Call this while holding the lock of the group, to check that
+     * what @{bestGroup} returned hasn't been changed by another thread.
+     * @code: the skill code of the volunteer
+     * @groupIndex: the group
+     */
+    boolean isBest(int code, int groupIndex) {
+        return bestGroup(code) == groupIndex;
+    }
+
+    /*
+     * Call this every time the skills or the size of a group have changed
+     * (while still holding the lock of the group)
+     * @groupIndex: the group
+     */
+    void update(int groupIndex) {
+        CommunityGroup group = mGroups.get(groupIndex);
+        int leaf = mLeaves + groupIndex;
+        for (int code = 0; code < mTrees.length; code++) {
+            synchronized (mLocks[code]) {
+                long[] tree = mTrees[code];
+                if (tree != null) {
+                    tree[leaf] = key(code, group, groupIndex);
+                    for (int node = leaf >> 1; node > 0; node >>= 1) {
+                        tree[node] = Math.min(tree[2 * node], tree[2 * node + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Forget all the trees
+     * Call this when all the groups have changed at once
+     * The trees will be rebuilt when needed.
+     */
+    void invalidate() {
+        for (int code = 0; code < mTrees.length; code++) {
+            synchronized (mLocks[code]) {
+                mTrees[code] = null;
+            }
+        }
+    }
+
+    /*
+     * Build the tree for a skill code from scratch
+     * (with the lock of the tree held)
+     * Groups changing meanwhile are fine, since they will @{update}
+     * the tree once we are done.
+     */
+    private long[] build(int code) {
+        long[] tree = new long[2 * mLeaves];
+        for (int i = 0; i < mLeaves; i++) {
+            tree[mLeaves + i] = i < mGroups.size() ? key(code, mGroups.get(i), i) : Long.MAX_VALUE;
+        }
+        for (int node = mLeaves - 1; node > 0; node--) {
+            tree[node] = Math.min(tree[2 * node], tree[2 * node + 1]);
+        }
+        mTrees[code] = tree;
+        return tree;
+    }
+
+    /*
+     * The key of a group for a skill code
+     * (see the comments on this class and @{mTrees})
+     */
+    private long key(int code, CommunityGroup group, int groupIndex) {
+        if (group.isFull()) {
+            return Long.MAX_VALUE;
+        }
+
+        long score = (long) group.howManyVolunteers() + group.getSkillPoint(mTable.getSkill(code, 0))
+                + group.getSkillPoint(mTable.getSkill(code, 1)) + group.getSkillPoint(mTable.getSkill(code, 2));
+        return (score << mIndexBits) | groupIndex;
+    }
+}
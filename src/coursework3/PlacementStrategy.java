@@ -0,0 +1,234 @@
+package coursework3;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * How a @{SkillSorter} chooses the group to add a volunteer to
+ *
+ *   exact          the group that keeps the groups best balanced,
+ *                  as explained in @{SkillSorter.bestGroup()}.
+ *                  O(groups), or O(log(groups)) with @{PlacementIndex}
+ *   sample:K       the best of K groups picked at random
+ *                  ("power of K choices", K is 2 if left out). O(K)
+ *   skill          the group with the fewest points of the main skill
+ *                  of the volunteer (the one it has most of, the first
+ *                  if even), from @{QueryIndex}. O(log(groups))
+ *   roundrobin:T   the next group in turn, skipping groups whose score is
+ *                  more than T above the average (T is 3 if left out),
+ *                  at most MAX_SKIPS of them. O(1)
+ *
+ * All but exact give up a little balance for a placement that doesn't
+ * grow (much) with the number of groups. How long each decision takes
+ * is recorded as the "place" operation of @{Metrics}, and
+ * @{SkillSorter.imbalance()} tells how well the groups are balanced,
+ * so strategies can be compared on the same load (see @{LoadGenerator}).
+ *
+ * A strategy chooses without any lock, like @{SkillSorter.bestGroup()},
+ * and is asked again once the chosen group is locked whether it can
+ * still take the volunteer. Strategies are shared by all the threads.
+ */
+abstract class PlacementStrategy {
+    static final PlacementStrategy EXACT = new Exact();
+
+    // How many groups round robin skips at most before taking the best of them
+    private static final int MAX_SKIPS = 8;
+
+    private final String mName;
+
+    protected PlacementStrategy(String name) {
+        mName = name;
+    }
+
+    /*
+     * The description that @{parse} makes this strategy from
+     */
+    String getName() {
+        return mName;
+    }
+
+    /*
+     * Whether this always chooses what @{SkillSorter.bestGroup()} would
+     * (which bulk adds rely on, see @{SkillSorter.addVolunteers})
+     */
+    boolean isExact() {
+        return false;
+    }
+
+    /*
+     * Choose a group for a volunteer
+     * @sorter: the sorter
+     * @code: the skill code of the volunteer
+     * @return: the group index in the lower 32 bits, and anything
+     *   @{isStillValid} needs above them, or -1 if all the groups are full
+     */
+    abstract long choose(SkillSorter sorter, int code);
+
+    /*
+     * Whether a group chosen by @{choose} can still take the volunteer
+     * (with the lock of the group held)
+     * Only full groups are refused, unless the strategy says otherwise.
+     * @sorter: the sorter
+     * @group: the group
+     * @code: the skill code of the volunteer
+     * @choice: returned by @{choose}
+     */
+    boolean isStillValid(SkillSorter sorter, CommunityGroup group, int code, long choice) {
+        return !group.isFull();
+    }
+
+    /*
+     * Make a strategy from its description
+     * throw @{java.lang.IllegalArgumentException} if it is not one of the above
+     * @spec: e.g. "exact", "sample:3", "roundrobin"
+     */
+    static PlacementStrategy parse(String spec) throws IllegalArgumentException {
+        int colon = spec.indexOf(':');
+        String name = (colon >= 0 ? spec.substring(0, colon) : spec).toLowerCase();
+        String parameter = colon >= 0 ? spec.substring(colon + 1) : null;
+        try {
+            switch (name) {
+                case "exact":
+                case "skill":
+                    if (parameter != null) {
+                        break;
+                    }
+                    return name.equals("exact") ? EXACT : new LeastSkill();
+                case "sample":
+                    int choices = parameter != null ? Integer.parseInt(parameter) : 2;
+                    if (choices <= 0) {
+                        throw new IllegalArgumentException("Need at least 1 group to choose from.");
+                    }
+                    return new Sample(choices);
+                case "roundrobin":
+                    int tolerance = parameter != null ? Integer.parseInt(parameter) : 3;
+                    if (tolerance < 0) {
+                        throw new IllegalArgumentException("The tolerance can't be minus.");
+                    }
+                    return new RoundRobin(tolerance);
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number in " + spec);
+        }
+        throw new IllegalArgumentException("Unknown placement " + spec + ". Use exact, sample[:K], skill or roundrobin[:T].");
+    }
+
+    private static final class Exact extends PlacementStrategy {
+        Exact() {
+            super("exact");
+        }
+
+        @Override
+        boolean isExact() {
+            return true;
+        }
+
+        @Override
+        long choose(SkillSorter sorter, int code) {
+            return sorter.bestGroup(code);
+        }
+
+        @Override
+        boolean isStillValid(SkillSorter sorter, CommunityGroup group, int code, long choice) {
+            return sorter.isStillBest(group, code, choice);
+        }
+    }
+
+    private static final class Sample extends PlacementStrategy {
+        private final int mChoices;
+
+        Sample(int choices) {
+            super("sample:" + choices);
+            mChoices = choices;
+        }
+
+        @Override
+        long choose(SkillSorter sorter, int code) {
+            int[] open = sorter.getOpenGroups();
+            if (open.length == 0) {
+                return -1;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long best = Long.MAX_VALUE;
+            int bestGroup = -1;
+            for (int i = 0; i < mChoices; i++) {
+                int index = open[random.nextInt(open.length)];
+                long cost = sorter.readScore(index, code);
+                if (cost < best) {
+                    best = cost;
+                    bestGroup = index;
+                }
+            }
+            // The groups picked may all have become full meanwhile
+            return bestGroup < 0 ? open[0] : bestGroup;
+        }
+    }
+
+    private static final class LeastSkill extends PlacementStrategy {
+        LeastSkill() {
+            super("skill");
+        }
+
+        @Override
+        long choose(SkillSorter sorter, int code) {
+            SkillTable table = sorter.getTable();
+            int skill = table.getSkill(code, 0);
+            for (int j = 1; j < Constants.SKILLS_PER_VOLUNTEER; j++) {
+                int other = table.getSkill(code, j);
+                if (table.getSkillPoint(code, other) > table.getSkillPoint(code, skill)) {
+                    skill = other;
+                }
+            }
+
+            // The fewest first, but they may be full. Look further if so.
+            int groupNum = sorter.getCommunityGroups().size();
+            for (int k = 4; ; k *= 2) {
+                List<SkillSorter.GroupTotal> lowest = sorter.lowestGroups(skill, Math.min(k, groupNum));
+                for (SkillSorter.GroupTotal total : lowest) {
+                    if (!sorter.getCommunityGroups().get(total.group).isFull()) {
+                        return total.group;
+                    }
+                }
+                if (k >= groupNum) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private static final class RoundRobin extends PlacementStrategy {
+        private final int mTolerance;
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        RoundRobin(int tolerance) {
+            super("roundrobin:" + tolerance);
+            mTolerance = tolerance;
+        }
+
+        @Override
+        long choose(SkillSorter sorter, int code) {
+            int[] open = sorter.getOpenGroups();
+            if (open.length == 0) {
+                return -1;
+            }
+            // Groups too far ahead of the others are skipped (the correction)
+            double limit = sorter.averageScore(code) + mTolerance;
+            long best = Long.MAX_VALUE;
+            int bestGroup = -1;
+            for (int i = 0; i <= MAX_SKIPS && i < open.length; i++) {
+                int index = open[Math.floorMod(mNext.getAndIncrement(), open.length)];
+                long cost = sorter.readScore(index, code);
+                if (cost <= limit) {
+                    return index;
+                } else if (cost < best) {
+                    best = cost;
+                    bestGroup = index;
+                }
+            }
+            return bestGroup < 0 ? open[0] : bestGroup;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package coursework3;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * An index to rank the groups by one of their totals
+ * (the points of a skill, or the number of members)
+ * without going through every group, e.g. "the 3 groups with the
+ * most A" or "the groups with fewer than 100 members".
+ *
+ * Like @{PlacementIndex}, there is one complete binary tree over all
+ * the groups for each total, but each node holds both the smallest
+ * and the largest key below it, where
+ *   key = (total << mIndexBits) | group index
+ * (with the bits of the group index flipped for the largest keys,
+ * so that the smaller group index still wins a tie)
+ * Changing a group replays the path from its leaf to the root,
+ * which is O(log(groups)). The k smallest (or largest) keys are found
+ * by always opening the most promising node next, in O(k log(groups)),
+ * and the keys below (or above) a limit by only opening the nodes that
+ * have any, in O(results * log(groups)).
+ *
+ * The trees are only built for the totals that have been asked for.
+ * Ties are ranked by the smaller group index, so the answers are
+ * exactly the same as sorting all the groups.
+ *
+ * Each tree has its own lock. @{update} must be called while holding
+ * the lock of the group (see @{CommunityGroup.getLock()}).
+ */
+final class QueryIndex {
+    private final List<CommunityGroup> mGroups;
+
+    /*
+     * Total number `skillNum` is the number of members
+     */
+    private final int mSkillNum;
+
+    /*
+     * The number of leaves of each tree (a power of 2)
+     * The leaf of group i is at mLeaves + i
+     */
+    private final int mLeaves;
+    private final int mIndexBits;
+
+    /*
+     * For each total, null if not built yet: the smallest and the
+     * largest keys below each node. Leaves without a group hold
+     * Long.MAX_VALUE in mMins and Long.MIN_VALUE in mMaxes.
+     * The root is at 1, and the children of node i are 2i and 2i + 1
+     */
+    private final long[][] mMins;
+    private final long[][] mMaxes;
+    private final Object[] mLocks;
+
+    /*
+     * @skillNum: how many skills there are
+     * @groups: the groups to index. The number of groups must not change.
+     */
+    QueryIndex(int skillNum, List<CommunityGroup> groups) {
+        mGroups = groups;
+        mSkillNum = skillNum;
+        mMins = new long[skillNum + 1][];
+        mMaxes = new long[skillNum + 1][];
+        mLocks = new Object[skillNum + 1];
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+
+        int leaves = 1;
+        while (leaves < groups.size()) {
+            leaves <<= 1;
+        }
+        mLeaves = leaves;
+        mIndexBits = Integer.numberOfTrailingZeros(leaves);
+    }
+
+    /*
+     * The `k` groups with the smallest (or largest) total
+     * @total: a skill index, or the number of skills for the members
+     * @k: how many groups at most
+     * @largest: whether to take the largest totals
+     * @return: the keys of the groups (see @{group} and @{value}), best first
+     */
+    long[] top(int total, int k, boolean largest) {
+        synchronized (mLocks[total]) {
+            long[] tree = tree(total, largest);
+            int found = 0;
+            long[] keys = new long[Math.min(k, mGroups.size())];
+
+            // The most promising node first, from a binary heap of nodes
+            // Every node opened is above one of the k answers, and adds
+            // at most one node to the heap.
+            int[] open = new int[(int) Math.min(2L * mLeaves, (long) keys.length * mIndexBits + 1)];
+            int size = 0;
+            open[size++] = 1;
+            while (found < keys.length && size > 0) {
+                int node = open[0];
+                open[0] = open[--size];
+                siftDown(open, size, tree, largest);
+                if (node >= mLeaves) {
+                    keys[found++] = largest ? flip(tree[node]) : tree[node];
+                } else {
+                    size = addIfUsed(open, size, tree, 2 * node, largest);
+                    size = addIfUsed(open, size, tree, 2 * node + 1, largest);
+                }
+            }
+            return keys;
+        }
+    }
+
+    /*
+     * The groups with a total below (or at least) a limit
+     * @total: a skill index, or the number of skills for the members
+     * @limit: the limit
+     * @above: false for the totals < limit, true for the totals >= limit
+     * @return: the keys of the groups (see @{group} and @{value}),
+     *   smallest total first
+     */
+    long[] range(int total, int limit, boolean above) {
+        synchronized (mLocks[total]) {
+            long[] tree = tree(total, above);
+            long bound = above ? ((long) limit << mIndexBits) : ((long) limit << mIndexBits) - 1;
+            long[] keys = new long[16];
+            int found = 0;
+
+            // Depth first, only into the nodes that have any
+            int[] stack = new int[2 * (mIndexBits + 1)];
+            int depth = 0;
+            stack[depth++] = 1;
+            while (depth > 0) {
+                int node = stack[--depth];
+                if (above ? tree[node] < bound : tree[node] > bound) {
+                    continue;
+                }
+                if (node >= mLeaves) {
+                    if (found == keys.length) {
+                        keys = Arrays.copyOf(keys, found * 2);
+                    }
+                    keys[found++] = above ? flip(tree[node]) : tree[node];
+                } else {
+                    stack[depth++] = 2 * node;
+                    stack[depth++] = 2 * node + 1;
+                }
+            }
+
+            keys = Arrays.copyOf(keys, found);
+            Arrays.sort(keys);
+            return keys;
+        }
+    }
+
+    /*
+     * The group index in a key
+     */
+    int group(long key) {
+        return (int) (key & (mLeaves - 1));
+    }
+
+    /*
+     * The total in a key
+     */
+    int value(long key) {
+        return (int) (key >> mIndexBits);
+    }
+
+    /*
+     * Call this every time the skills or the size of a group have changed
+     * (while still holding the lock of the group)
+     * @groupIndex: the group
+     */
+    void update(int groupIndex) {
+        CommunityGroup group = mGroups.get(groupIndex);
+        int leaf = mLeaves + groupIndex;
+        for (int total = 0; total < mLocks.length; total++) {
+            synchronized (mLocks[total]) {
+                long[] mins = mMins[total];
+                if (mins == null) {
+                    continue;
+                }
+                long[] maxes = mMaxes[total];
+                mins[leaf] = key(total, group, groupIndex);
+                maxes[leaf] = flip(mins[leaf]);
+                for (int node = leaf >> 1; node > 0; node >>= 1) {
+                    mins[node] = Math.min(mins[2 * node], mins[2 * node + 1]);
+                    maxes[node] = Math.max(maxes[2 * node], maxes[2 * node + 1]);
+                }
+            }
+        }
+    }
+
+    /*
+     * Forget all the trees
+     * Call this when all the groups have changed at once
+     * The trees will be rebuilt when needed.
+     */
+    void invalidate() {
+        for (int total = 0; total < mLocks.length; total++) {
+            synchronized (mLocks[total]) {
+                mMins[total] = null;
+                mMaxes[total] = null;
+            }
+        }
+    }
+
+    /*
+     * The tree of the smallest or the largest keys of a total,
+     * built if needed (with the lock of the tree held)
+     */
+    private long[] tree(int total, boolean largest) {
+        if (mMins[total] == null) {
+            build(total);
+        }
+        return largest ? mMaxes[total] : mMins[total];
+    }
+
+    /*
+     * Build the trees of a total from scratch
+     * (with the lock of the trees held)
+     * Groups changing meanwhile are fine, since they will @{update}
+     * the trees once we are done.
+     */
+    private void build(int total) {
+        long[] mins = new long[2 * mLeaves];
+        long[] maxes = new long[2 * mLeaves];
+        for (int i = 0; i < mLeaves; i++) {
+            if (i < mGroups.size()) {
+                mins[mLeaves + i] = key(total, mGroups.get(i), i);
+                maxes[mLeaves + i] = flip(mins[mLeaves + i]);
+            } else {
+                mins[mLeaves + i] = Long.MAX_VALUE;
+                maxes[mLeaves + i] = Long.MIN_VALUE;
+            }
+        }
+        for (int node = mLeaves - 1; node > 0; node--) {
+            mins[node] = Math.min(mins[2 * node], mins[2 * node + 1]);
+            maxes[node] = Math.max(maxes[2 * node], maxes[2 * node + 1]);
+        }
+        mMins[total] = mins;
+        mMaxes[total] = maxes;
+    }
+
+    /*
+     * The key of a group for a total, as kept in mMins
+     */
+    private long key(int total, CommunityGroup group, int groupIndex) {
+        long value = total == mSkillNum ? group.howManyVolunteers() : group.getSkillPoint(total);
+        return (value << mIndexBits) | groupIndex;
+    }
+
+    /*
+     * Turn a key of mMins into one of mMaxes and back
+     */
+    private long flip(long key) {
+        return key ^ (mLeaves - 1);
+    }
+
+    /*
+     * Add a node to the heap of @{top} unless it has no group below it
+     * @return: the new size of the heap
+     */
+    private static int addIfUsed(int[] open, int size, long[] tree, int node, boolean largest) {
+        if (tree[node] == (largest ? Long.MIN_VALUE : Long.MAX_VALUE)) {
+            return size;
+        }
+        int i = size;
+        while (i > 0 && before(tree, node, open[(i - 1) / 2], largest)) {
+            open[i] = open[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        open[i] = node;
+        return size + 1;
+    }
+
+    /*
+     * Move the first node of the heap of @{top} down to its place
+     */
+    private static void siftDown(int[] open, int size, long[] tree, boolean largest) {
+        if (size == 0) {
+            return;
+        }
+        int node = open[0];
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && before(tree, open[child + 1], open[child], largest)) {
+                child++;
+            }
+            if (!before(tree, open[child], node, largest)) {
+                break;
+            }
+            open[i] = open[child];
+            i = child;
+        }
+        open[i] = node;
+    }
+
+    // Whether node a is to be opened before node b
+    private static boolean before(long[] tree, int a, int b, boolean largest) {
+        return largest ? tree[a] > tree[b] : tree[a] < tree[b];
+    }
+}
@@ -0,0 +1,556 @@
+package coursework3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static coursework3.Constants.REBALANCE_TICK;
+
+/*
+ * Repairs the balance of the groups of a @{SkillSorter}
+ *
+ * Volunteers are placed one by one, greedily, and deleting or moving
+ * them afterwards can leave the groups badly balanced. This looks for
+ * a better distribution of all the members, minimising the same cost
+ * as @{SkillSorter.costFunc}, and moves volunteers to get there.
+ *
+ * Planning works on a copy of the member counts. The cost only depends
+ * on the sum of squares of each skill and of the sizes over the groups,
+ * and moving volunteers between two groups only changes the squares of
+ * those two, so the search goes in rounds: the groups are paired up at
+ * random and every pair is balanced against each other by moving
+ * volunteers from one to the other, all the pairs in parallel on a
+ * @{ForkJoinPool}. Rounds go on until they don't
+ * help any more. This is a local search, so the result is near-optimal,
+ * not optimal.
+ *
+ * A plan is applied as single moves with @{SkillSorter.moveIfBetter},
+ * so a move is skipped if other changes made since planning mean it
+ * would no longer help. The groups never get worse balanced.
+ * It can be applied all at once or a number of moves every
+ * REBALANCE_TICK milliseconds in the background, so that other
+ * operations are never held up for long.
+ */
+final class Rebalancer {
+    // Planning stops after this many rounds, even if they still help
+    private static final int MAX_ROUNDS = 1000;
+    // Stop after this many rounds in a row that don't help
+    private static final int IDLE_ROUNDS = 3;
+    // Pairs balanced by one fork/join task
+    private static final int PAIRS_PER_TASK = 16;
+
+    /*
+     * Moving `count` volunteers of a skill code between two groups
+     */
+    public static final class Move {
+        public final int from, to, code;
+        public final int count;
+
+        Move(int from, int to, int code, int count) {
+            this.from = from;
+            this.to = to;
+            this.code = code;
+            this.count = count;
+        }
+    }
+
+    /*
+     * The moves to make, and the cost before and after them
+     * (assuming nothing else changes in between)
+     */
+    public static final class Plan {
+        public final List<Move> moves;
+        public final long volunteers;
+        public final double before, after;
+
+        Plan(List<Move> moves, long volunteers, double before, double after) {
+            this.moves = moves;
+            this.volunteers = volunteers;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    /*
+     * The outcome of applying a plan
+     */
+    public static final class Result {
+        // Volunteers moved
+        public final long moved;
+        // Volunteers not moved because it would not help any more
+        // (or because of full groups)
+        public final long skipped;
+        // Whether it was stopped before the end
+        public final boolean cancelled;
+
+        Result(long moved, long skipped, boolean cancelled) {
+            this.moved = moved;
+            this.skipped = skipped;
+            this.cancelled = cancelled;
+        }
+    }
+
+    private final SkillSorter mSorter;
+    private final SkillTable mTable;
+    private final int mCapacity;
+    private final ScheduledExecutorService mExecutor;
+
+    // The plan being applied in the background, or null
+    private Migration mMigration = null;
+
+    Rebalancer(SkillSorter sorter) {
+        mSorter = sorter;
+        mTable = sorter.getTable();
+        mCapacity = sorter.getCapacity();
+        mExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread thread = new Thread(r, "rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * Look for a better distribution of the current members
+     * This doesn't change anything. Other threads may keep using the sorter,
+     * except for a moment to copy the counts.
+     */
+    public Plan plan() {
+        return plan(ForkJoinPool.commonPool());
+    }
+
+    /*
+     * Same but on a specific pool
+     */
+    public Plan plan(ForkJoinPool pool) {
+        int groupNum = mSorter.getCommunityGroups().size();
+        int codeNum = mTable.getCombinationNum();
+        int[] counts = new int[groupNum * codeNum];
+        GroupView[] groups = mSorter.view();
+        for (int i = 0; i < groupNum; i++) {
+            groups[i].copyCounts(counts, i * codeNum);
+        }
+
+        Search search = new Search(counts, groupNum);
+        double before = search.cost();
+        int[] original = counts.clone();
+        search.run(pool);
+        return diff(original, counts, groupNum, before, search.cost());
+    }
+
+    /*
+     * Apply a plan right now, on this thread
+     */
+    public Result apply(Plan plan) {
+        Migration migration = new Migration(plan, null);
+        migration.step(Long.MAX_VALUE);
+        return migration.result(false);
+    }
+
+    /*
+     * Apply a plan in the background, a few moves at a time
+     * Any other plan still being applied is cancelled.
+     * @movesPerTick: at most this many volunteers are moved
+     *   every REBALANCE_TICK milliseconds
+     * @callback: called on the background thread when done, or null
+     * @return: to wait for it to finish
+     */
+    public synchronized Future<Result> applyGradually(Plan plan, int movesPerTick, Consumer<Result> callback) {
+        if (movesPerTick <= 0) {
+            throw new IllegalArgumentException("Moves per tick must be positive");
+        }
+        cancel();
+        Migration migration = new Migration(plan, callback);
+        synchronized (migration) {
+            // The first tick waits for this
+            migration.mTask = mExecutor.scheduleWithFixedDelay(() -> migration.tick(movesPerTick),
+                0, REBALANCE_TICK, TimeUnit.MILLISECONDS);
+        }
+        mMigration = migration;
+        return migration.mFuture;
+    }
+
+    /*
+     * Stop applying a plan in the background (if any)
+     * Moves already made are kept.
+     */
+    public synchronized void cancel() {
+        if (mMigration != null) {
+            mMigration.finish(true);
+            mMigration = null;
+        }
+    }
+
+    /*
+     * Cancel and stop the background thread
+     */
+    public void close() throws InterruptedException {
+        cancel();
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /*
+     * Turn the counts before and after the search into moves
+     * For every skill code, the groups that have fewer of it
+     * take them from the groups that have more, in order.
+     */
+    private Plan diff(int[] before, int[] after, int groupNum, double costBefore, double costAfter) {
+        int codeNum = mTable.getCombinationNum();
+        List<Move> moves = new ArrayList<>();
+        long volunteers = 0;
+        for (int code = 0; code < codeNum; code++) {
+            int from = 0, to = 0;
+            int surplus = 0, deficit = 0;
+            while (true) {
+                while (surplus == 0 && from < groupNum) {
+                    surplus = Math.max(0, before[from * codeNum + code] - after[from * codeNum + code]);
+                    if (surplus == 0) {
+                        from++;
+                    }
+                }
+                while (deficit == 0 && to < groupNum) {
+                    deficit = Math.max(0, after[to * codeNum + code] - before[to * codeNum + code]);
+                    if (deficit == 0) {
+                        to++;
+                    }
+                }
+                if (from == groupNum || to == groupNum) {
+                    break;
+                }
+
+                int count = Math.min(surplus, deficit);
+                moves.add(new Move(from, to, code, count));
+                volunteers += count;
+                surplus -= count;
+                deficit -= count;
+                if (surplus == 0) {
+                    from++;
+                }
+                if (deficit == 0) {
+                    to++;
+                }
+            }
+        }
+        return new Plan(moves, volunteers, costBefore, costAfter);
+    }
+
+    /*
+     * The search for a better distribution, on a copy of the counts
+     * Every group is a vector v: its total of each skill and its size.
+     * A volunteer with skill code c is a vector q_c: its points and 1.
+     * The cost is fixed by the sum of |v|^2 over all the groups, which
+     * is what we minimise. Moving d = q_c from group a to group b changes it by
+     *   2 * (v_b - v_a) . d + 2 * |d|^2
+     */
+    private final class Search {
+        private final int mGroupNum, mCodeNum, mSkillNum;
+        // The counts of each skill code of each group, being changed
+        private final int[] mCounts;
+        // The totals of each skill of each group, and the sizes
+        private final long[] mSkills;
+        private final long[] mSizes;
+        // |q_c|^2 of each code
+        private final long[] mWeights;
+
+        Search(int[] counts, int groupNum) {
+            mGroupNum = groupNum;
+            mCodeNum = mTable.getCombinationNum();
+            mSkillNum = mTable.getSkillNum();
+            mCounts = counts;
+            mSkills = new long[groupNum * mSkillNum];
+            mSizes = new long[groupNum];
+            for (int g = 0; g < groupNum; g++) {
+                for (int c = 0; c < mCodeNum; c++) {
+                    int count = counts[g * mCodeNum + c];
+                    mSizes[g] += count;
+                    for (int s = 0; s < mSkillNum; s++) {
+                        mSkills[g * mSkillNum + s] += (long) count * mTable.getSkillPoint(c, s);
+                    }
+                }
+            }
+
+            mWeights = new long[mCodeNum];
+            for (int c = 0; c < mCodeNum; c++) {
+                mWeights[c] = 1;
+                for (int s = 0; s < mSkillNum; s++) {
+                    long p = mTable.getSkillPoint(c, s);
+                    mWeights[c] += p * p;
+                }
+            }
+        }
+
+        /*
+         * Search in rounds until it stops helping
+         */
+        void run(ForkJoinPool pool) {
+            SplittableRandom random = new SplittableRandom(mGroupNum);
+            int[] order = new int[mGroupNum];
+            for (int i = 0; i < mGroupNum; i++) {
+                order[i] = i;
+            }
+            long[] gains = new long[mGroupNum / 2];
+
+            int idle = 0;
+            for (int round = 0; round < MAX_ROUNDS && idle < IDLE_ROUNDS && mGroupNum > 1; round++) {
+                // Pair the groups up at random
+                for (int i = mGroupNum - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                }
+
+                pool.invoke(new PairTask(order, gains, 0, gains.length));
+                long gain = 0;
+                for (long g : gains) {
+                    gain += g;
+                }
+                idle = gain > 0 ? 0 : idle + 1;
+            }
+        }
+
+        /*
+         * Balance pairs [from, to) of the groups in `order`
+         * (groups order[2i] and order[2i + 1] are pair i)
+         */
+        private final class PairTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[] mOrder;
+            private final long[] mGains;
+            private final int mFrom, mTo;
+
+            PairTask(int[] order, long[] gains, int from, int to) {
+                mOrder = order;
+                mGains = gains;
+                mFrom = from;
+                mTo = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (mTo - mFrom <= PAIRS_PER_TASK) {
+                    for (int i = mFrom; i < mTo; i++) {
+                        mGains[i] = balance(mOrder[2 * i], mOrder[2 * i + 1]);
+                    }
+                } else {
+                    int middle = (mFrom + mTo) >>> 1;
+                    invokeAll(new PairTask(mOrder, mGains, mFrom, middle),
+                        new PairTask(mOrder, mGains, middle, mTo));
+                }
+            }
+        }
+
+        /*
+         * Balance two groups against each other as far as possible
+         * Only touches the data of these two groups.
+         * @return: how much the sum of |v|^2 went down, halved
+         */
+        long balance(int a, int b) {
+            long[] scoreDiffs = new long[mCodeNum];
+            long total = 0;
+            while (true) {
+                // (v_a - v_b) . q_c for every code
+                for (int c = 0; c < mCodeNum; c++) {
+                    long diff = mSizes[a] - mSizes[b];
+                    for (int s = 0; s < mSkillNum; s++) {
+                        diff += mTable.getSkillPoint(c, s) * (mSkills[a * mSkillNum + s] - mSkills[b * mSkillNum + s]);
+                    }
+                    scoreDiffs[c] = diff;
+                }
+
+                // The best single move, either way
+                long best = 0;
+                int bestCode = -1;
+                boolean toB = true;
+                for (int c = 0; c < mCodeNum; c++) {
+                    long forward = scoreDiffs[c] - mWeights[c];
+                    if (forward > best && mCounts[a * mCodeNum + c] > 0 && mSizes[b] < mCapacity) {
+                        best = forward;
+                        bestCode = c;
+                        toB = true;
+                    }
+                    long backward = -scoreDiffs[c] - mWeights[c];
+                    if (backward > best && mCounts[b * mCodeNum + c] > 0 && mSizes[a] < mCapacity) {
+                        best = backward;
+                        bestCode = c;
+                        toB = false;
+                    }
+                }
+
+                if (bestCode < 0) {
+                    return total;
+                }
+
+                // Moving the same code again helps 2 * |q_c|^2 less each time
+                // Take half of the moves that still help, then look again
+                int from = toB ? a : b;
+                int to = toB ? b : a;
+                long weight = mWeights[bestCode];
+                long helpful = (best + 2 * weight - 1) / (2 * weight);
+                long count = Math.max(1, helpful / 2);
+                count = Math.min(count, mCounts[from * mCodeNum + bestCode]);
+                count = Math.min(count, mCapacity - mSizes[to]);
+                move(from, to, bestCode, (int) count);
+                total += count * best - weight * count * (count - 1);
+            }
+        }
+
+        private void move(int from, int to, int code, int count) {
+            mCounts[from * mCodeNum + code] -= count;
+            mCounts[to * mCodeNum + code] += count;
+            mSizes[from] -= count;
+            mSizes[to] += count;
+            for (int s = 0; s < mSkillNum; s++) {
+                long points = (long) count * mTable.getSkillPoint(code, s);
+                mSkills[from * mSkillNum + s] -= points;
+                mSkills[to * mSkillNum + s] += points;
+            }
+        }
+
+        /*
+         * The cost of the counts as they are now (see @{SkillSorter.imbalance})
+         */
+        double cost() {
+            double cost = 0;
+            for (int s = 0; s < mSkillNum; s++) {
+                long sum = 0, squares = 0;
+                for (int g = 0; g < mGroupNum; g++) {
+                    long x = mSkills[g * mSkillNum + s];
+                    sum += x;
+                    squares += x * x;
+                }
+                cost += Utility.variance(sum, squares, mGroupNum);
+            }
+            long sum = 0, squares = 0;
+            for (int g = 0; g < mGroupNum; g++) {
+                sum += mSizes[g];
+                squares += mSizes[g] * mSizes[g];
+            }
+            cost += Utility.variance(sum, squares, mGroupNum);
+            return cost / (mSkillNum + 1);
+        }
+    }
+
+    /*
+     * A plan being applied
+     * Moves that don't go through are tried again after the others,
+     * as other moves may make them helpful, until a whole pass over
+     * the remaining ones moves nothing.
+     */
+    private final class Migration {
+        private final Consumer<Result> mCallback;
+        private final CompletableFuture<Result> mFuture = new CompletableFuture<>();
+        private ScheduledFuture<?> mTask = null;
+
+        // What is left of each move of the plan
+        private final Move[] mMoves;
+        private final int[] mLeft;
+        private int mNext = 0;
+        private long mMoved = 0;
+        private long mMovedThisPass = 0;
+        private boolean mDone = false;
+
+        Migration(Plan plan, Consumer<Result> callback) {
+            mCallback = callback;
+            mMoves = plan.moves.toArray(new Move[0]);
+            mLeft = new int[mMoves.length];
+            for (int i = 0; i < mMoves.length; i++) {
+                mLeft[i] = mMoves[i].count;
+            }
+        }
+
+        /*
+         * Make at most `limit` moves
+         * @return: whether the plan is done
+         */
+        boolean step(long limit) {
+            List<CommunityGroup> groups = mSorter.getCommunityGroups();
+            long made = 0;
+            while (made < limit) {
+                if (mNext == mMoves.length) {
+                    // End of a pass
+                    if (mMovedThisPass == 0) {
+                        return true;
+                    }
+                    mMovedThisPass = 0;
+                    mNext = 0;
+                }
+
+                Move move = mMoves[mNext];
+                if (mLeft[mNext] > 0 && mSorter.moveIfBetter(mTable.getVolunteer(move.code),
+                        groups.get(move.from), groups.get(move.to))) {
+                    mLeft[mNext]--;
+                    mMoved++;
+                    mMovedThisPass++;
+                    made++;
+                } else {
+                    // Try the rest of this one in the next pass
+                    mNext++;
+                }
+            }
+            return false;
+        }
+
+        /*
+         * One tick of a background migration
+         */
+        void tick(int movesPerTick) {
+            boolean done;
+            synchronized (this) {
+                if (mDone) {
+                    return; // Cancelled
+                }
+                try {
+                    done = step(movesPerTick);
+                } catch (RuntimeException e) {
+                    mDone = true;
+                    mTask.cancel(false);
+                    mFuture.completeExceptionally(e);
+                    return;
+                }
+            }
+
+            if (done) {
+                synchronized (Rebalancer.this) {
+                    if (mMigration == this) {
+                        mMigration = null;
+                    }
+                }
+                finish(false);
+            }
+        }
+
+        synchronized void finish(boolean cancelled) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            if (mTask != null) {
+                mTask.cancel(false);
+            }
+            Result result = result(cancelled);
+            if (mCallback != null) {
+                mCallback.accept(result);
+            }
+            mFuture.complete(result);
+        }
+
+        Result result(boolean cancelled) {
+            long skipped = 0;
+            for (int left : mLeft) {
+                skipped += left;
+            }
+            return new Result(mMoved, skipped, cancelled);
+        }
+    }
+}
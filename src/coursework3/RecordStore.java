@@ -0,0 +1,244 @@
+package coursework3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * Fixed-width records of volunteers kept off the Java heap
+ * (see @{MemberIds}, which links them into the members of a group)
+ *
+ * Each record is RECORD bytes in a slab of direct ByteBuffers:
+ *
+ *   ID (0 when free)                      long
+ *   owner (see @{newOwner}, -1 when free) int
+ *   skill code                            short
+ *   flags (IN_USE)                        short
+ *   next and previous record of the list  int, int
+ *
+ * so a member costs RECORD bytes outside the heap, whatever the number
+ * of them, and nothing for the garbage collector to go through.
+ * The slab grows by chunks of 2^chunkBits records and never shrinks.
+ * Deleted records are kept in a free list (linked by "next") and
+ * given out again first.
+ *
+ * Records are numbered from 0, so a record number is all that is needed
+ * to find a member again (see @{IdIndex}). One store is shared by all
+ * the groups of a @{SkillSorter}: allocating and freeing records is
+ * guarded by the store, while the fields of a record are only read and
+ * written by its owner, under the lock of its group.
+ *
+ * A group on its own (not in a sorter) has a small store of its own on
+ * the Java heap instead, so that its records go away with it.
+ *
+ * The records are not kept across restarts: the members are loaded
+ * again from the @{Snapshot} and the @{Journal}.
+ */
+final class RecordStore {
+    // Size of a record and where its fields are
+    static final int RECORD = 24;
+    private static final int ID = 0;
+    private static final int OWNER = 8;
+    private static final int CODE = 12;
+    private static final int FLAGS = 14;
+    private static final int NEXT = 16;
+    private static final int PREV = 20;
+
+    // Flags
+    private static final short IN_USE = 1;
+
+    static final int NONE = -1;
+
+    private final int mChunkBits;
+    private final boolean mDirect;
+
+    /*
+     * The chunks of the slab. Replaced by a larger copy when growing,
+     * so readers never need the lock.
+     */
+    private volatile ByteBuffer[] mChunks = new ByteBuffer[0];
+
+    // The free records, records [0, mUsed) have been given out at some
+    // point, and the number of owners so far. Guarded by `this`.
+    private int mFree = NONE;
+    private int mUsed = 0;
+    private int mInUse = 0;
+    private int mOwners = 0;
+
+    /*
+     * A store in direct memory
+     * @chunkBits: the slab grows by 2^chunkBits records at a time
+     */
+    RecordStore(int chunkBits) {
+        this(chunkBits, true);
+    }
+
+    /*
+     * Same, or on the heap
+     * Nothing is allocated before the first record either way.
+     * @direct: false for buffers on the heap
+     */
+    RecordStore(int chunkBits, boolean direct) {
+        mChunkBits = chunkBits;
+        mDirect = direct;
+    }
+
+    /*
+     * A number telling the records of one list owner apart from the others
+     */
+    synchronized int newOwner() {
+        return mOwners++;
+    }
+
+    /*
+     * Take a free record, filled in as in use
+     * throw @{java.lang.IllegalStateException} if the slab can't grow
+     * @return: its number
+     */
+    int allocate(int owner, long id, int code) throws IllegalStateException {
+        int record;
+        synchronized (this) {
+            if (mFree != NONE) {
+                record = mFree;
+                mFree = buffer(record).getInt(offset(record) + NEXT);
+            } else {
+                if (mUsed == Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Too many volunteers");
+                }
+                if (mUsed >> mChunkBits == mChunks.length) {
+                    grow();
+                }
+                record = mUsed++;
+            }
+            mInUse++;
+        }
+
+        ByteBuffer buffer = buffer(record);
+        int at = offset(record);
+        buffer.putLong(at + ID, id);
+        buffer.putInt(at + OWNER, owner);
+        buffer.putShort(at + CODE, (short) code);
+        buffer.putShort(at + FLAGS, IN_USE);
+        buffer.putInt(at + NEXT, NONE);
+        buffer.putInt(at + PREV, NONE);
+        return record;
+    }
+
+    /*
+     * Give a record back (by its owner, which won't use it again)
+     */
+    void free(int record) {
+        ByteBuffer buffer = buffer(record);
+        int at = offset(record);
+        buffer.putLong(at + ID, 0);
+        buffer.putInt(at + OWNER, NONE);
+        buffer.putShort(at + FLAGS, (short) 0);
+        synchronized (this) {
+            buffer.putInt(at + NEXT, mFree);
+            mFree = record;
+            mInUse--;
+        }
+    }
+
+    /*
+     * Same for many records at once, taking the lock once
+     * @records: the numbers of the records
+     * @count: how many of them there are
+     */
+    void free(int[] records, int count) {
+        if (count == 0) {
+            return;
+        }
+        // Chain them together first, outside the lock
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = buffer(records[i]);
+            int at = offset(records[i]);
+            buffer.putLong(at + ID, 0);
+            buffer.putInt(at + OWNER, NONE);
+            buffer.putShort(at + FLAGS, (short) 0);
+            buffer.putInt(at + NEXT, i + 1 < count ? records[i + 1] : NONE);
+        }
+        synchronized (this) {
+            ByteBuffer last = buffer(records[count - 1]);
+            last.putInt(offset(records[count - 1]) + NEXT, mFree);
+            mFree = records[0];
+            mInUse -= count;
+        }
+    }
+
+    /*
+     * Whether a record is in use by an owner
+     * Any number can be asked about, even of records never given out.
+     */
+    boolean isOwnedBy(int record, int owner) {
+        if (record < 0 || record >> mChunkBits >= mChunks.length) {
+            return false;
+        }
+        ByteBuffer buffer = buffer(record);
+        int at = offset(record);
+        return buffer.getInt(at + OWNER) == owner && (buffer.getShort(at + FLAGS) & IN_USE) != 0;
+    }
+
+    long getId(int record) {
+        return buffer(record).getLong(offset(record) + ID);
+    }
+
+    int getCode(int record) {
+        return buffer(record).getShort(offset(record) + CODE);
+    }
+
+    int getNext(int record) {
+        return buffer(record).getInt(offset(record) + NEXT);
+    }
+
+    int getPrev(int record) {
+        return buffer(record).getInt(offset(record) + PREV);
+    }
+
+    void setNext(int record, int next) {
+        buffer(record).putInt(offset(record) + NEXT, next);
+    }
+
+    void setPrev(int record, int prev) {
+        buffer(record).putInt(offset(record) + PREV, prev);
+    }
+
+    /*
+     * How many records are in use
+     */
+    synchronized long getInUse() {
+        return mInUse;
+    }
+
+    /*
+     * How many bytes the slab takes (outside the heap, unless the store is on the heap)
+     */
+    long getCapacityBytes() {
+        return (long) mChunks.length * RECORD << mChunkBits;
+    }
+
+    /*
+     * Add a chunk to the slab (holding the lock)
+     */
+    private void grow() throws IllegalStateException {
+        int size = RECORD << mChunkBits;
+        ByteBuffer chunk;
+        if (mDirect) {
+            chunk = ByteBuffer.allocateDirect(size);
+        } else {
+            chunk = ByteBuffer.allocate(size);
+        }
+        chunk.order(ByteOrder.nativeOrder());
+        ByteBuffer[] chunks = Arrays.copyOf(mChunks, mChunks.length + 1);
+        chunks[chunks.length - 1] = chunk;
+        mChunks = chunks;
+    }
+
+    private ByteBuffer buffer(int record) {
+        return mChunks[record >>> mChunkBits];
+    }
+
+    private int offset(int record) {
+        return (record & ((1 << mChunkBits) - 1)) * RECORD;
+    }
+}
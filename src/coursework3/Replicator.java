@@ -0,0 +1,360 @@
+package coursework3;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Sends the changes of a @{SkillSorter} to followers in other processes
+ * (see @{Follower}), which keep a copy of its state
+ *
+ * A follower that connects is sent a @{Snapshot} of the current state,
+ * then every frame of the @{Journal} once it is on disk, as it is.
+ * So the changes go out in batches, one for each fsync of the journal,
+ * and a follower is never ahead of what this process could
+ * recover after a crash.
+ * A heartbeat with the sequence number of the last change is sent
+ * every HEARTBEAT_INTERVAL, so that the followers know how far behind
+ * they are. They reply with the sequence number of the last change
+ * they have applied, which gives the replication lag (see @{Metrics}).
+ *
+ * Each follower has a queue of messages and its own thread sending them,
+ * so a slow follower doesn't hold up the journal. A follower whose queue
+ * grows beyond MAX_QUEUED bytes is dropped, and starts over from a new
+ * snapshot when it connects again.
+ *
+ * Messages (big-endian):
+ *   SNAPSHOT   length (long), the snapshot as in a file
+ *   FRAME      sequence number of the first record (long), length (int), records
+ *   HEARTBEAT  sequence number of the last change made (long)
+ * Replies: the sequence number of the last change applied (long)
+ */
+final class Replicator {
+    // Message types
+    static final byte SNAPSHOT = 1;
+    static final byte FRAME = 2;
+    static final byte HEARTBEAT = 3;
+
+    // How often to send a heartbeat (milliseconds)
+    private static final long HEARTBEAT_INTERVAL = 100;
+    // Drop a follower with more than this waiting to be sent (bytes)
+    private static final long MAX_QUEUED = 64L << 20;
+    // Snapshots are sent in parts of this size at most (bytes)
+    private static final long SNAPSHOT_PART = 1L << 30;
+
+    private final SkillSorter mSorter;
+    private final Journal mJournal;
+    private final ServerSocketChannel mChannel;
+    private final Thread mAcceptor;
+    private final List<Link> mLinks = new CopyOnWriteArrayList<>();
+    private volatile boolean mRunning = true;
+
+    /*
+     * Start listening. No follower is accepted before @{start()}.
+     * @sorter: the sorter
+     * @journal: the journal of the sorter
+     * @port: the port on the loopback address, or 0 for any free port
+     */
+    Replicator(SkillSorter sorter, Journal journal, int port) throws IOException {
+        mSorter = sorter;
+        mJournal = journal;
+        mChannel = ServerSocketChannel.open();
+        mChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        mAcceptor = new Thread(this::acceptLoop, "replicator-acceptor");
+        mAcceptor.setDaemon(true);
+    }
+
+    /*
+     * The port listened on
+     */
+    public int getPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        mJournal.setReplicator(this);
+        mSorter.getMetrics().setReplicationLag(this::getLag);
+        mAcceptor.start();
+    }
+
+    /*
+     * Stop sending and disconnect the followers
+     */
+    public void close() throws InterruptedException {
+        mRunning = false;
+        mJournal.setReplicator(null);
+        mSorter.getMetrics().setReplicationLag(null);
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        mAcceptor.join();
+        for (Link link : mLinks) {
+            link.close();
+        }
+    }
+
+    /*
+     * How many followers are connected
+     */
+    public int getFollowerNum() {
+        return mLinks.size();
+    }
+
+    /*
+     * How many changes the slowest follower has not applied yet
+     * 0 if there is no follower
+     */
+    public long getLag() {
+        long sequence = mJournal.getSequence();
+        long lag = 0;
+        for (Link link : mLinks) {
+            lag = Math.max(lag, sequence - link.mApplied);
+        }
+        return lag;
+    }
+
+    /*
+     * Send a frame of the journal to all the followers
+     * Called by the @{Journal} in the order the frames are written.
+     * @first: the sequence number of the first record
+     * @records: the records. Copied before this returns.
+     */
+    void send(long first, ByteBuffer records) {
+        if (mLinks.isEmpty()) {
+            return;
+        }
+        ByteBuffer message = ByteBuffer.allocate(13 + records.remaining()).order(ByteOrder.BIG_ENDIAN);
+        message.put(FRAME);
+        message.putLong(first);
+        message.putInt(records.remaining());
+        message.put(records.duplicate());
+        message.flip();
+        for (Link link : mLinks) {
+            link.enqueue(message.duplicate(), false);
+        }
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            SocketChannel channel;
+            try {
+                channel = mChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (ClosedChannelException e) {
+                // close() was called
+                return;
+            } catch (IOException e) {
+                if (mRunning) {
+                    System.out.println("ERROR: Could not accept a follower: " + e.getMessage());
+                }
+                continue;
+            }
+
+            // Frames written from now on are queued, and the snapshot
+            // has everything before them (the follower skips what it
+            // already has, see @{Journal.apply})
+            Link link = new Link(channel);
+            mLinks.add(link);
+            try {
+                sendSnapshot(link);
+            } catch (IOException e) {
+                System.out.println("ERROR: Could not send a snapshot to a follower: " + e.getMessage());
+                link.close();
+                continue;
+            }
+            link.start();
+        }
+    }
+
+    /*
+     * Queue a snapshot of the current state before everything else
+     * It is written to a temporary file and sent from there, mapped
+     * into memory, so it takes no heap whatever its size.
+     */
+    private void sendSnapshot(Link link) throws IOException {
+        Path file = Files.createTempFile("cw3-replica", ".snapshot");
+        try {
+            Snapshot snapshot = Snapshot.capture(mSorter, mJournal::getSequence);
+            long length = snapshot.write(file.toString());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // A buffer can't be larger than 2 GB. The last part
+                // is queued first, so that they go out in order.
+                ArrayDeque<ByteBuffer> parts = new ArrayDeque<>();
+                for (long position = 0; position < length; position += SNAPSHOT_PART) {
+                    parts.push(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(SNAPSHOT_PART, length - position)));
+                }
+                for (ByteBuffer part : parts) {
+                    link.enqueue(part, true);
+                }
+            }
+            ByteBuffer message = ByteBuffer.allocate(9).order(ByteOrder.BIG_ENDIAN);
+            message.put(SNAPSHOT);
+            message.putLong(length);
+            message.flip();
+            link.enqueue(message, true);
+        } finally {
+            // Still mapped until sent, but gone from the directory
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /*
+     * The connection to a follower
+     */
+    private final class Link {
+        private final SocketChannel mChannel;
+        private final Thread mSender;
+        private final Thread mReader;
+
+        // Messages not sent yet, and their size. Guarded by `this`.
+        private final ArrayDeque<ByteBuffer> mQueue = new ArrayDeque<>();
+        private long mQueued = 0;
+        private boolean mClosed = false;
+
+        // The last change the follower has applied
+        private volatile long mApplied = 0;
+
+        Link(SocketChannel channel) {
+            mChannel = channel;
+            mSender = new Thread(this::sendLoop, "replicator-sender");
+            mSender.setDaemon(true);
+            mReader = new Thread(this::readLoop, "replicator-reader");
+            mReader.setDaemon(true);
+        }
+
+        void start() {
+            mSender.start();
+            mReader.start();
+        }
+
+        /*
+         * Queue a message to send
+         * @first: whether to send it before everything queued
+         */
+        synchronized void enqueue(ByteBuffer message, boolean first) {
+            if (mClosed) {
+                return;
+            }
+            if (first) {
+                // The snapshot, which is not counted
+                mQueue.addFirst(message);
+                notifyAll();
+                return;
+            }
+            mQueued += message.remaining();
+            if (mQueued > MAX_QUEUED) {
+                System.out.println("Replication: a follower is too far behind. Disconnecting it.");
+                close();
+                return;
+            }
+            mQueue.addLast(message);
+            notifyAll();
+        }
+
+        /*
+         * Wait for something to send
+         * @return: what is queued, or null for a heartbeat, or an empty array when closed
+         */
+        private synchronized ByteBuffer[] take() throws InterruptedException {
+            if (mQueue.isEmpty() && !mClosed) {
+                wait(HEARTBEAT_INTERVAL);
+            }
+            if (mClosed) {
+                return new ByteBuffer[0];
+            } else if (mQueue.isEmpty()) {
+                return null;
+            }
+            ByteBuffer[] messages = mQueue.toArray(new ByteBuffer[0]);
+            mQueue.clear();
+            mQueued = 0;
+            return messages;
+        }
+
+        private void sendLoop() {
+            ByteBuffer heartbeat = ByteBuffer.allocate(9).order(ByteOrder.BIG_ENDIAN);
+            long lastHeartbeat = 0;
+            try {
+                while (true) {
+                    ByteBuffer[] messages = take();
+                    if (messages != null && messages.length == 0) {
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (messages == null || now - lastHeartbeat >= HEARTBEAT_INTERVAL) {
+                        heartbeat.clear();
+                        heartbeat.put(HEARTBEAT);
+                        heartbeat.putLong(mJournal.getSequence());
+                        heartbeat.flip();
+                        write(heartbeat);
+                        lastHeartbeat = now;
+                    }
+                    if (messages != null) {
+                        for (ByteBuffer message : messages) {
+                            write(message);
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // The follower is gone
+                close();
+            }
+        }
+
+        private void write(ByteBuffer message) throws IOException {
+            while (message.hasRemaining()) {
+                mChannel.write(message);
+            }
+        }
+
+        private void readLoop() {
+            ByteBuffer reply = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+            try {
+                while (true) {
+                    reply.clear();
+                    while (reply.hasRemaining()) {
+                        if (mChannel.read(reply) < 0) {
+                            throw new IOException("Follower disconnected");
+                        }
+                    }
+                    mApplied = reply.getLong(0);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                mClosed = true;
+                mQueue.clear();
+                notifyAll();
+            }
+            mLinks.remove(this);
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package coursework3;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static coursework3.Constants.SAVE_INTERVAL;
+
+/*
+ * Saves snapshots of a @{SkillSorter} on a background thread
+ *
+ * The state is captured on the calling thread, which is quick
+ * (see @{Snapshot.capture}), and the file is then written by
+ * a single background thread, so that saving never holds up commands.
+ * Saves are done one at a time, in order.
+ *
+ * With a @{Journal}, saving is a checkpoint of the journal, so that
+ * it also stops growing. See @{Journal.checkpoint}.
+ */
+final class Saver implements MutationListener {
+    /*
+     * The outcome of a save
+     */
+    public static final class Report {
+        // Size of the snapshot in bytes (0 if it was skipped
+        // because a newer one had already been written)
+        public final long size;
+        // Time taken to write it, in milliseconds
+        public final long time;
+        // What went wrong, or null if saved
+        public final IOException error;
+
+        Report(long size, long time, IOException error) {
+            this.size = size;
+            this.time = time;
+            this.error = error;
+        }
+    }
+
+    private final SkillSorter mSorter;
+    private final Journal mJournal;
+    private final String mPath;
+    private final ExecutorService mExecutor;
+
+    // Whether anything has changed since the last save
+    private volatile boolean mChanged = false;
+    private volatile long mLastSave = System.currentTimeMillis();
+
+    /*
+     * @sorter: the sorter
+     * @journal: the journal of the sorter, or null if there is none
+     * @path: the snapshot file
+     */
+    Saver(SkillSorter sorter, Journal journal, String path) {
+        mSorter = sorter;
+        mJournal = journal;
+        mPath = path;
+        mExecutor = Executors.newSingleThreadExecutor((r) -> {
+            Thread thread = new Thread(r, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sorter.addMutationListener(this);
+    }
+
+    /*
+     * Start saving a snapshot of the current state
+     * @callback: called on the background thread when done, or null
+     * @return: to wait for the save to finish
+     */
+    public Future<Report> save(Consumer<Report> callback) {
+        // Changes made while capturing will be in the next save
+        mChanged = false;
+        mLastSave = System.currentTimeMillis();
+        final Snapshot snapshot = mJournal != null
+            ? mJournal.prepareCheckpoint()
+            : Snapshot.capture(mSorter, 0);
+
+        return mExecutor.submit(() -> {
+            long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            Report report;
+            try {
+                long size = mJournal != null
+                    ? mJournal.finishCheckpoint(snapshot)
+                    : snapshot.write(mPath);
+                mSorter.getMetrics().record(Metrics.SAVE, startNanos);
+                report = new Report(size, System.currentTimeMillis() - start, null);
+            } catch (IOException e) {
+                // The last snapshot is still there, since a new one
+                // is only renamed over it once written in full
+                report = new Report(0, System.currentTimeMillis() - start, e);
+            }
+            if (callback != null) {
+                callback.accept(report);
+            }
+            return report;
+        });
+    }
+
+    /*
+     * Whether there are changes and the last save was SAVE_INTERVAL ago
+     */
+    public boolean isDue() {
+        return mChanged && System.currentTimeMillis() - mLastSave >= SAVE_INTERVAL;
+    }
+
+    /*
+     * Wait for the saves already started, then stop the background thread
+     */
+    public void close() throws InterruptedException {
+        mSorter.removeMutationListener(this);
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onAdd(int group, int code, int count, long firstId) {
+        mChanged = true;
+    }
+
+    @Override
+    public void onMove(int from, int to, int code, long id) {
+        mChanged = true;
+    }
+
+    @Override
+    public void onDelete(int group, int code, long id) {
+        mChanged = true;
+    }
+
+    @Override
+    public void onClear() {
+        mChanged = true;
+    }
+}
@@ -0,0 +1,147 @@
+package coursework3;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/*
+ * A buffered @{java.io.Reader} that can pretend to end at separators.
+ *
+ * This is what makes streaming deserialization of nested
+ * @{SerializableSet}s possible: each set pushes its separator before
+ * reading its items, so an item simply reads until the end of the stream,
+ * which comes at the next separator of any of the sets it is in.
+ * The set then decides whether the separator is its own
+ * (there are more items) or a parent's (the set itself has ended).
+ */
+final class SeparatedReader extends Reader {
+    private final Reader mSource;
+    private final char[] mBuffer = new char[8192];
+    private int mPosition = 0;
+    private int mLimit = 0;
+
+    /*
+     * The separators currently in effect
+     * (one for each level of @{SerializableSet} being read)
+     */
+    private char[] mStops = new char[4];
+    private int mStopNum = 0;
+
+    private SeparatedReader(Reader source) {
+        mSource = source;
+    }
+
+    /*
+     * Wrap a reader, unless it already is a SeparatedReader
+     * @reader: the reader
+     */
+    static SeparatedReader wrap(Reader reader) {
+        if (reader instanceof SeparatedReader) {
+            return (SeparatedReader) reader;
+        }
+        return new SeparatedReader(reader);
+    }
+
+    /*
+     * Start treating a character as the end of the stream
+     * @separator: the character
+     */
+    void pushSeparator(char separator) {
+        if (mStopNum == mStops.length) {
+            char[] stops = new char[mStops.length * 2];
+            System.arraycopy(mStops, 0, stops, 0, mStopNum);
+            mStops = stops;
+        }
+        mStops[mStopNum++] = separator;
+    }
+
+    /*
+     * Undo the last @{pushSeparator}
+     */
+    void popSeparator() {
+        mStopNum--;
+    }
+
+    /*
+     * Look at the next character, ignoring the separators
+     * @return: the character, or -1 at the real end of the stream
+     */
+    int peekRaw() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition];
+    }
+
+    /*
+     * Skip the next character, ignoring the separators
+     * Must only be called after @{peekRaw} returned a character.
+     */
+    void skipRaw() {
+        mPosition++;
+    }
+
+    /*
+     * Whether we are at the end of the stream
+     * (a separator, or the real end)
+     */
+    boolean atEnd() throws IOException {
+        int c = peekRaw();
+        return c < 0 || isSeparator((char) c);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (atEnd()) {
+            return -1;
+        }
+        return mBuffer[mPosition++];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        } else if (atEnd()) {
+            return -1;
+        }
+
+        // Copy until a separator or the end of the buffer
+        int count = 0;
+        while (count < len && mPosition < mLimit && !isSeparator(mBuffer[mPosition])) {
+            cbuf[off + count++] = mBuffer[mPosition++];
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSource.close();
+    }
+
+    private boolean isSeparator(char c) {
+        for (int i = 0; i < mStopNum; i++) {
+            if (mStops[i] == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Read more from the source into the buffer
+     * @return: false if the source has ended
+     */
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = mSource.read(mBuffer, 0, mBuffer.length);
+        } while (read == 0);
+
+        if (read < 0) {
+            return false;
+        }
+        mPosition = 0;
+        mLimit = read;
+        return true;
+    }
+}
@@ -1,12 +1,15 @@
 package coursework3;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
 /*
  * A serializable object is one that can be serialized
  * into a string and vice-versa.
- * 
- * NOTE: Each implementation of Serializable
- *  need to have a zero-argument constructor.
- *  This constraint is not currently allowed by Java.
+ * Large objects should also override the streaming versions
+ * (with @{java.io.Writer} and @{java.io.Reader}) so that
+ * they never need to be held as a whole String.
  */
 interface Serializable {
     /*
@@ -21,6 +24,29 @@ interface Serializable {
      */
     void deserialize(String str) throws DeserializationException;
 
+    /*
+     * Serialize this object into a Writer
+     * By default this simply writes the String from @{serialize()}
+     */
+    default void serialize(Writer writer) throws IOException {
+        writer.write(serialize());
+    }
+
+    /*
+     * Deserialize this object from everything left in a Reader
+     * By default this reads everything into a String
+     * and calls @{deserialize(String)}
+     */
+    default void deserialize(Reader reader) throws IOException, DeserializationException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[64];
+        int read;
+        while ((read = reader.read(buffer)) >= 0) {
+            sb.append(buffer, 0, read);
+        }
+        deserialize(sb.toString());
+    }
+
     public class DeserializationException extends Exception {
         // Needed by Java's exception system.
         // The number means nothing but just an ID.
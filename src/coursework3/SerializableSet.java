@@ -1,7 +1,12 @@
 package coursework3;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.function.Supplier;
 
 /*
  * A set (list) of serializable objects that is also serializable.
@@ -11,15 +16,18 @@ import java.util.regex.Pattern;
  * different separators.
  * If the project could grow large, this base class can be easily extended
  * to support auto-generated unique separators.
+ *
+ * Everything is done in a streaming way: items are written to / read from
+ * the stream one by one, so the whole set never needs to be a single String.
  */
 abstract class SerializableSet<T extends Serializable> implements Serializable {
     /*
      * It is not allowed in Java to create instance of generic types directly
      * e.g. new T() is invalid in Java
-     * Thus, we will need to store a Class object of that Class
-     * This should be passed over by the constructor
+     * Thus, we will need a factory that creates new (empty) items
+     * This should be given by @{setFactory()}
      */
-    private Class<T> mClazz = null;
+    private Supplier<T> mFactory = null;
 
     /*
      * The list of serializable objects
@@ -30,7 +38,7 @@ abstract class SerializableSet<T extends Serializable> implements Serializable {
      * The seprator
      * should be given in the constructor
      */
-    private String mSeparator = null;
+    private char mSeparator;
 
     /*
      * Whether to discard empty items while deserializing.
@@ -43,18 +51,17 @@ abstract class SerializableSet<T extends Serializable> implements Serializable {
      * This constructor should only be used from the subclasses
      * to give parameters needed by this base class.
      * Trying to give the most freedom to subclasses.
-     * Note: @{setList()} must be called right after construction.
+     * Note: @{setList()} and @{setFactory()} must be called right after construction.
      *   The list could not be given as a constructor parameter,
      *   because Java disallows the use of instance fields while
      *   calling super(), while in many cases the List will be 
-     *   an instance field.
+     *   an instance field. The same goes for the factory, which
+     *   often needs the fields of the subclass.
      * 
-     * @clazz: the Class object of the type of `T`.
      * @separator: the separator used to serialize / deserialize.
      * @discardEmpty: whether to discard empty items while deserializing
      */
-    protected SerializableSet(Class<T> clazz, String separator, boolean discardEmpty) {
-        mClazz = clazz;
+    protected SerializableSet(char separator, boolean discardEmpty) {
         mSeparator = separator;
         mDiscardEmpty = discardEmpty;
     }
@@ -67,6 +74,15 @@ abstract class SerializableSet<T extends Serializable> implements Serializable {
         mList = list;
     }
 
+    /*
+     * Set how new (empty) items are created while deserializing
+     * e.g. setFactory(Volunteer::new)
+     * @factory: the factory
+     */
+    protected void setFactory(Supplier<T> factory) {
+        mFactory = factory;
+    }
+
     /*
      * Clear the current List object.
      * Override this in case you need to hook into
@@ -91,20 +107,33 @@ abstract class SerializableSet<T extends Serializable> implements Serializable {
      */
     @Override
     public String serialize() {
-        if (mList.size() == 0)
-            return ""; // Special case: return nothing if there's just nothing
-
-        StringBuilder sb = new StringBuilder();
+        StringWriter writer = new StringWriter();
+        try {
+            serialize(writer);
+        } catch (IOException e) {
+            // A StringWriter never throws
+            throw new RuntimeException(e);
+        }
+        return writer.toString();
+    }
 
-        // Append all the serialized items to the string
+    /*
+     * Serialize this object into a Writer, item by item
+     * For persistency
+     */
+    @Override
+    public void serialize(Writer writer) throws IOException {
+        // Write all the serialized items
         // separated with the separator.
-        for (int i = 0; i < mList.size(); i++) {
-            sb.append(mSeparator);
-            sb.append(mList.get(i).serialize());
+        // (iterate instead of using get() because the list may be a view)
+        boolean first = true;
+        for (T item : mList) {
+            if (!first) {
+                writer.write(mSeparator);
+            }
+            first = false;
+            item.serialize(writer);
         }
-
-        // Remove the first unneeded separator
-        return sb.substring(mSeparator.length(), sb.length());
     }
     
     /*
@@ -113,29 +142,46 @@ abstract class SerializableSet<T extends Serializable> implements Serializable {
      */
     @Override
     public void deserialize(String str) throws Serializable.DeserializationException {
-        clear(); // Clear the list first.
-
-        // The special characters in mSeparator should be escaped
-        // because @{java.lang.String.split()} interprets the argument
-        // as a regular expression.
-        // The `-1` prevents it from stripping empty items at the end.
-        String[] items = str.split(Pattern.quote(mSeparator), -1);
+        try {
+            deserialize(new StringReader(str));
+        } catch (IOException e) {
+            // A StringReader never throws
+            throw new RuntimeException(e);
+        }
+    }
 
-        // Recreate each item from the serialized form
-        for (int i = 0; i < items.length; i++) {
-            if (!(mDiscardEmpty && items[i].equals(""))) {
-                T item = null;
+    /*
+     * Deserialize this object from a Reader, item by item
+     * Reads until the end of the stream, or a separator of a set
+     * that contains this set.
+     * For persistency
+     */
+    @Override
+    public void deserialize(Reader reader) throws IOException, Serializable.DeserializationException {
+        clear(); // Clear the list first.
 
-                try {
-                    item = mClazz.newInstance();
-                } catch (InstantiationException | IllegalAccessException e) {
-                    // Throw it as a fatal Error
-                    throw new RuntimeException("A Serializable must have a public zero-argument constructor.");
+        SeparatedReader in = SeparatedReader.wrap(reader);
+        in.pushSeparator(mSeparator);
+        try {
+            while (true) {
+                // Recreate each item from the serialized form
+                // The item sees the end of the stream at the next separator.
+                if (!(mDiscardEmpty && in.atEnd())) {
+                    T item = mFactory.get();
+                    item.deserialize(in);
+                    add(item);
                 }
 
-                item.deserialize(items[i]);
-                add(item);
+                // Either our separator (more items to come),
+                // a separator of our parent (we are done) or the real end
+                if (in.peekRaw() == mSeparator) {
+                    in.skipRaw();
+                } else {
+                    break;
+                }
             }
+        } finally {
+            in.popSeparator();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,637 @@
+package coursework3;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * TCP server to use a @{SkillSorter} from other programs
+ * Only listens on the loopback address.
+ *
+ * The protocol is line-based ASCII, one request per line ("\n" or "\r\n"),
+ * with the arguments in the same order as in the shell:
+ *
+ *   add <skills>                 OK <group> <id>
+ *   put <group> <skills> [<id>]  OK <group> <id>
+ *   move <from> <skills> <to>    OK
+ *   delete <group> <skills>      OK <id>
+ *   find <id>                    OK <group> <skills>
+ *   moveid <id> <to>             OK
+ *   deleteid <id>                OK
+ *   show <group>                 OK <n>, then n lines of "<skills> <count>"
+ *   overview                     OK <n>, then one line for each group:
+ *                                "<group> <total of each skill> <members>"
+ *
+ * The short names of the shell commands (a, m, d, f, mi, di, s, o) work, too.
+ * `put` adds to the given group without balancing, for a @{Coordinator}
+ * which chooses the group itself. It can also give the ID, which must
+ * not be in use, e.g. one from SkillSorter.EXTERNAL_IDS on for a
+ * volunteer that keeps its ID from another shard.
+ * While this process follows another one (see @{Follower}), the server
+ * is read-only: only `find`, `show` and `overview` are answered.
+ * A request that fails is answered with "ERR <message>".
+ * Requests can be pipelined: a client may send many requests without
+ * waiting, and the replies come back in the same order.
+ * A reply to a change is only sent once the @{Journal} has it on disk.
+ * The replies to all the requests received together are sent after one
+ * wait, and the journal writes the changes of all the connections
+ * waiting at the same time with one fsync (group commit).
+ * If the journal can't be written, the connection is closed without them.
+ *
+ * Connections are spread over a few threads, each running a
+ * @{java.nio.channels.Selector} over its own connections.
+ * Requests are parsed straight from the bytes received, and replies are
+ * written straight into the buffer to send, so there are no Strings
+ * on the way except for error messages.
+ */
+final class Server {
+    // Size of the buffers of each connection
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Longest request accepted. The connection is closed after a longer one.
+    private static final int MAX_LINE = 1024;
+
+    private static final byte[] ADD = ascii("add");
+    private static final byte[] ADD_SHORT = ascii("a");
+    private static final byte[] PUT = ascii("put");
+    private static final byte[] MOVE = ascii("move");
+    private static final byte[] MOVE_SHORT = ascii("m");
+    private static final byte[] DELETE = ascii("delete");
+    private static final byte[] DELETE_SHORT = ascii("d");
+    private static final byte[] FIND = ascii("find");
+    private static final byte[] FIND_SHORT = ascii("f");
+    private static final byte[] MOVE_ID = ascii("moveid");
+    private static final byte[] MOVE_ID_SHORT = ascii("mi");
+    private static final byte[] DELETE_ID = ascii("deleteid");
+    private static final byte[] DELETE_ID_SHORT = ascii("di");
+    private static final byte[] SHOW = ascii("show");
+    private static final byte[] SHOW_SHORT = ascii("s");
+    private static final byte[] OVERVIEW = ascii("overview");
+    private static final byte[] OVERVIEW_SHORT = ascii("o");
+    private static final byte[] OK = ascii("OK");
+    private static final byte[] ERR = ascii("ERR ");
+
+    private final SkillSorter mSorter;
+    private final SkillTable mTable;
+    private final Journal mJournal;
+    private final ServerSocketChannel mChannel;
+    private final Thread mAcceptor;
+    private final Loop[] mLoops;
+    private volatile boolean mRunning = true;
+    private volatile boolean mReadOnly = false;
+
+    /*
+     * Start listening. No connection is accepted before @{start()}.
+     * @sorter: the sorter
+     * @journal: the journal of the sorter, or null to reply without waiting
+     * @port: the port on the loopback address, or 0 for any free port
+     * @threads: how many threads serve the connections
+     */
+    Server(SkillSorter sorter, Journal journal, int port, int threads) throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread number must be positive");
+        }
+        mSorter = sorter;
+        mTable = sorter.getTable();
+        mJournal = journal;
+        mChannel = ServerSocketChannel.open();
+        mChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+
+        mLoops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            mLoops[i] = new Loop("server-" + i);
+        }
+        mAcceptor = new Thread(this::acceptLoop, "server-acceptor");
+        mAcceptor.setDaemon(true);
+    }
+
+    /*
+     * The port listened on
+     */
+    public int getPort() {
+        return mChannel.socket().getLocalPort();
+    }
+
+    /*
+     * Refuse (or accept again) the requests that change anything
+     */
+    public void setReadOnly(boolean readOnly) {
+        mReadOnly = readOnly;
+    }
+
+    public void start() {
+        for (Loop loop : mLoops) {
+            loop.mThread.start();
+        }
+        mAcceptor.start();
+    }
+
+    /*
+     * Stop serving and close all the connections
+     * Requests already received are finished first,
+     * so nothing changes the sorter after this returns.
+     */
+    public void close() throws InterruptedException {
+        mRunning = false;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        mAcceptor.join();
+        for (Loop loop : mLoops) {
+            loop.mSelector.wakeup();
+            loop.mThread.join();
+        }
+    }
+
+    /*
+     * Accept connections and hand them to the loops in turn
+     */
+    private void acceptLoop() {
+        int next = 0;
+        while (mRunning) {
+            try {
+                SocketChannel channel = mChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Loop loop = mLoops[next];
+                next = (next + 1) % mLoops.length;
+                loop.mPending.add(channel);
+                loop.mSelector.wakeup();
+            } catch (ClosedChannelException e) {
+                // close() was called
+                return;
+            } catch (IOException e) {
+                if (mRunning) {
+                    System.out.println("ERROR: Could not accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+     * A thread serving some of the connections
+     */
+    private final class Loop implements Runnable {
+        private final Selector mSelector;
+        private final Thread mThread;
+        // Accepted, but not registered with the selector yet
+        private final ConcurrentLinkedQueue<SocketChannel> mPending = new ConcurrentLinkedQueue<>();
+
+        Loop(String name) throws IOException {
+            mSelector = Selector.open();
+            mThread = new Thread(this, name);
+            mThread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mRunning) {
+                    mSelector.select();
+
+                    SocketChannel channel;
+                    while ((channel = mPending.poll()) != null) {
+                        SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+                        key.attach(new Connection(channel, key));
+                    }
+
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            // The client is gone
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR: Server stopped: " + e.getMessage());
+            } finally {
+                List<SelectionKey> keys = new ArrayList<>(mSelector.keys());
+                for (SelectionKey key : keys) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    /*
+     * A connection from a client
+     * Only used by the thread of its @{Loop}.
+     */
+    private final class Connection {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        // Received but not handled yet. Always ready to be read into.
+        private final ByteBuffer mIn = ByteBuffer.allocate(BUFFER_SIZE);
+        // Replies not sent yet. Always ready to be written into.
+        private ByteBuffer mOut = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // The line being parsed: position of the next token and the end
+        private int mPosition, mEnd;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            mChannel = channel;
+            mKey = key;
+        }
+
+        void read() throws IOException {
+            if (mChannel.read(mIn) < 0) {
+                close();
+                return;
+            }
+            handle();
+        }
+
+        /*
+         * Send what is left of the replies
+         * and go on with the requests that have been waiting for that
+         */
+        void write() throws IOException {
+            if (flush()) {
+                handle();
+            }
+        }
+
+        /*
+         * Handle all the complete requests received, then send the replies
+         * Stops early if the replies pile up (the client is not reading them),
+         * and carries on once they are sent.
+         */
+        private void handle() throws IOException {
+            byte[] bytes = mIn.array();
+            int start = 0;
+            int limit = mIn.position();
+            while (mOut.position() < BUFFER_SIZE) {
+                int end = start;
+                while (end < limit && bytes[end] != '\n') {
+                    end++;
+                }
+                if (end == limit) {
+                    if (limit - start > MAX_LINE) {
+                        // No end of line in sight
+                        close();
+                        return;
+                    }
+                    break;
+                }
+                execute(bytes, start, end);
+                start = end + 1;
+            }
+            // Keep the incomplete request
+            System.arraycopy(bytes, start, bytes, 0, limit - start);
+            mIn.position(limit - start);
+
+            if (mJournal != null) {
+                // Thrown on to close the connection
+                mJournal.awaitDurable();
+            }
+            flush();
+        }
+
+        /*
+         * Send as much of the replies as possible
+         * Stops reading until the rest is sent.
+         * @return: whether everything is sent
+         */
+        private boolean flush() throws IOException {
+            if (!mKey.isValid()) {
+                return false;
+            }
+            mOut.flip();
+            mChannel.write(mOut);
+            boolean done = !mOut.hasRemaining();
+            if (done && mOut.capacity() > BUFFER_SIZE) {
+                // Grown for a large reply. Don't keep it.
+                mOut = ByteBuffer.allocate(BUFFER_SIZE);
+            } else {
+                mOut.compact();
+            }
+            mKey.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+            return done;
+        }
+
+        void close() {
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+
+        /*
+         * Handle one request and write the reply
+         * @bytes: the request is bytes[start, end), without "\n"
+         */
+        private void execute(byte[] bytes, int start, int end) {
+            if (end > start && bytes[end - 1] == '\r') {
+                end--;
+            }
+            mPosition = start;
+            mEnd = end;
+            int mark = mOut.position();
+            try {
+                int from = nextToken(bytes);
+                int to = mPosition;
+                if (from == to) {
+                    throw new IllegalArgumentException("Empty request");
+                }
+
+                if (matches(bytes, from, to, ADD) || matches(bytes, from, to, ADD_SHORT)) {
+                    checkWritable();
+                    Volunteer vl = nextVolunteer(bytes);
+                    long id = mSorter.newId();
+                    int group = mSorter.addVolunteer(vl, id);
+                    putOk();
+                    put(' ');
+                    putInt(group);
+                    put(' ');
+                    putInt(id);
+                } else if (matches(bytes, from, to, PUT)) {
+                    checkWritable();
+                    CommunityGroup group = nextGroup(bytes);
+                    Volunteer vl = nextVolunteer(bytes);
+                    long id = hasNext(bytes) ? nextFreeId(bytes) : mSorter.newId();
+                    mSorter.addToGroup(vl, 1, group.getIndex(), id);
+                    putOk();
+                    put(' ');
+                    putInt(group.getIndex());
+                    put(' ');
+                    putInt(id);
+                } else if (matches(bytes, from, to, MOVE) || matches(bytes, from, to, MOVE_SHORT)) {
+                    checkWritable();
+                    CommunityGroup fromGroup = nextGroup(bytes);
+                    Volunteer vl = nextVolunteer(bytes);
+                    CommunityGroup toGroup = nextGroup(bytes);
+                    mSorter.moveVolunteer(vl, fromGroup, toGroup);
+                    putOk();
+                } else if (matches(bytes, from, to, DELETE) || matches(bytes, from, to, DELETE_SHORT)) {
+                    checkWritable();
+                    CommunityGroup group = nextGroup(bytes);
+                    Volunteer vl = nextVolunteer(bytes);
+                    long id = mSorter.deleteVolunteer(vl, group);
+                    putOk();
+                    put(' ');
+                    putInt(id);
+                } else if (matches(bytes, from, to, FIND) || matches(bytes, from, to, FIND_SHORT)) {
+                    long id = nextId(bytes);
+                    long found = mSorter.locate(id);
+                    if (found < 0) {
+                        throw new IllegalArgumentException("No volunteer with ID " + id);
+                    }
+                    putOk();
+                    put(' ');
+                    putInt(found >>> 32);
+                    put(' ');
+                    putSkills((int) found);
+                } else if (matches(bytes, from, to, MOVE_ID) || matches(bytes, from, to, MOVE_ID_SHORT)) {
+                    checkWritable();
+                    long id = nextId(bytes);
+                    CommunityGroup toGroup = nextGroup(bytes);
+                    mSorter.moveVolunteer(id, toGroup.getIndex());
+                    putOk();
+                } else if (matches(bytes, from, to, DELETE_ID) || matches(bytes, from, to, DELETE_ID_SHORT)) {
+                    checkWritable();
+                    mSorter.deleteVolunteer(nextId(bytes));
+                    putOk();
+                } else if (matches(bytes, from, to, SHOW) || matches(bytes, from, to, SHOW_SHORT)) {
+                    show(nextGroup(bytes));
+                } else if (matches(bytes, from, to, OVERVIEW) || matches(bytes, from, to, OVERVIEW_SHORT)) {
+                    overview();
+                } else {
+                    throw new IllegalArgumentException("Unknown command "
+                        + new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+                }
+            } catch (RuntimeException e) {
+                // Throw away a partial reply
+                mOut.position(mark);
+                ensure(ERR.length);
+                mOut.put(ERR);
+                byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.US_ASCII);
+                ensure(message.length);
+                mOut.put(message);
+            }
+            put('\n');
+        }
+
+        private void checkWritable() throws IllegalStateException {
+            if (mReadOnly) {
+                throw new IllegalStateException("This is a read-only follower of another process");
+            }
+        }
+
+        /*
+         * Reply to `show`
+         */
+        private void show(CommunityGroup group) {
+            int codeNum = mTable.getCombinationNum();
+            int[] counts = new int[codeNum];
+            mSorter.view(group.getIndex()).copyCounts(counts, 0);
+
+            int lines = 0;
+            for (int code = 0; code < codeNum; code++) {
+                if (counts[code] > 0) {
+                    lines++;
+                }
+            }
+            putOk();
+            put(' ');
+            putInt(lines);
+            for (int code = 0; code < codeNum; code++) {
+                if (counts[code] > 0) {
+                    put('\n');
+                    putSkills(code);
+                    put(' ');
+                    putInt(counts[code]);
+                }
+            }
+        }
+
+        /*
+         * Reply to `overview`
+         */
+        private void overview() {
+            GroupView[] groups = mSorter.view();
+            int skillNum = mTable.getSkillNum();
+            putOk();
+            put(' ');
+            putInt(groups.length);
+            for (int index = 0; index < groups.length; index++) {
+                put('\n');
+                putInt(index);
+                for (int i = 0; i < skillNum; i++) {
+                    put(' ');
+                    putInt(groups[index].getSkillPoint(i));
+                }
+                put(' ');
+                putInt(groups[index].howManyVolunteers());
+            }
+        }
+
+        // Whether there is another token in the request
+        private boolean hasNext(byte[] bytes) {
+            while (mPosition < mEnd && (bytes[mPosition] == ' ' || bytes[mPosition] == '\t')) {
+                mPosition++;
+            }
+            return mPosition < mEnd;
+        }
+
+        /*
+         * Skip to the next token of the request and return where it starts
+         * mPosition is left at the end of it.
+         */
+        private int nextToken(byte[] bytes) {
+            while (mPosition < mEnd && (bytes[mPosition] == ' ' || bytes[mPosition] == '\t')) {
+                mPosition++;
+            }
+            int start = mPosition;
+            while (mPosition < mEnd && bytes[mPosition] != ' ' && bytes[mPosition] != '\t') {
+                mPosition++;
+            }
+            return start;
+        }
+
+        private Volunteer nextVolunteer(byte[] bytes) throws IllegalArgumentException {
+            int start = nextToken(bytes);
+            if (mPosition - start != Constants.SKILLS_PER_VOLUNTEER) {
+                throw new IllegalArgumentException("A person can only have 3 skills");
+            }
+            return mTable.getVolunteer(mTable.parse(upper(bytes[start]),
+                upper(bytes[start + 1]), upper(bytes[start + 2])));
+        }
+
+        private CommunityGroup nextGroup(byte[] bytes) throws IllegalArgumentException {
+            long index = nextNumber(bytes, "Missing group index");
+            List<CommunityGroup> groups = mSorter.getCommunityGroups();
+            if (index >= groups.size()) {
+                throw new IllegalArgumentException("Illegal group index " + index);
+            }
+            return groups.get((int) index);
+        }
+
+        private long nextId(byte[] bytes) throws IllegalArgumentException {
+            return nextNumber(bytes, "Missing volunteer ID");
+        }
+
+        // An ID to give to a volunteer, see `put`
+        private long nextFreeId(byte[] bytes) throws IllegalArgumentException {
+            long id = nextId(bytes);
+            if (id == 0) {
+                throw new IllegalArgumentException("Illegal volunteer ID 0");
+            } else if (mSorter.locate(id) >= 0) {
+                throw new IllegalArgumentException("Volunteer ID " + id + " is taken");
+            }
+            return id;
+        }
+
+        // A non-negative number in decimal
+        private long nextNumber(byte[] bytes, String missing) throws IllegalArgumentException {
+            int start = nextToken(bytes);
+            if (start == mPosition) {
+                throw new IllegalArgumentException(missing);
+            }
+            long value = 0;
+            for (int i = start; i < mPosition; i++) {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                    throw new IllegalArgumentException("Need an integer.");
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        private void putOk() {
+            ensure(OK.length);
+            mOut.put(OK);
+        }
+
+        private void put(char c) {
+            ensure(1);
+            mOut.put((byte) c);
+        }
+
+        private void putSkills(int code) {
+            for (int j = 0; j < Constants.SKILLS_PER_VOLUNTEER; j++) {
+                put(mTable.getSkillName(mTable.getSkill(code, j)));
+            }
+        }
+
+        // Write a non-negative number in decimal
+        private void putInt(long value) {
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            ensure(digits);
+            int end = mOut.position() + digits;
+            for (int i = end - 1; i >= mOut.position(); i--) {
+                mOut.put(i, (byte) ('0' + value % 10));
+                value /= 10;
+            }
+            mOut.position(end);
+        }
+
+        /*
+         * Make room for a few more bytes of replies
+         * The buffer only grows for very large replies (e.g. `overview`
+         * with many groups), since @{handle()} stops at BUFFER_SIZE.
+         */
+        private void ensure(int size) {
+            if (mOut.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(mOut.capacity() * 2, mOut.position() + size));
+                mOut.flip();
+                grown.put(mOut);
+                mOut = grown;
+            }
+        }
+    }
+
+    private static boolean matches(byte[] bytes, int start, int end, byte[] word) {
+        if (end - start != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (bytes[start + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char upper(byte b) {
+        return Character.toUpperCase((char) (b & 0xff));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
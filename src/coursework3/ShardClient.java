@@ -0,0 +1,70 @@
+package coursework3;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * A connection to one shard of a @{Coordinator}, which is a @{Server}
+ * Each request waits for its reply.
+ * Not thread-safe; every connection to the coordinator has its own.
+ */
+final class ShardClient implements Closeable {
+    private final Socket mSocket;
+    private final BufferedReader mIn;
+    private final OutputStream mOut;
+
+    /*
+     * @port: the port of the shard on the loopback address
+     */
+    ShardClient(int port) throws IOException {
+        mSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+        mSocket.setTcpNoDelay(true);
+        mIn = new BufferedReader(new InputStreamReader(mSocket.getInputStream(), StandardCharsets.US_ASCII));
+        mOut = mSocket.getOutputStream();
+    }
+
+    /*
+     * Send a request and wait for the first line of the reply
+     * If the shard answers "ERR <message>", @{java.lang.IllegalStateException}
+     * will be thrown with the message.
+     * @line: the request, without "\n"
+     * @return: the reply after "OK " (empty for just "OK")
+     */
+    String request(String line) throws IOException, IllegalStateException {
+        mOut.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        mOut.flush();
+        String reply = nextLine();
+        if (reply.startsWith("ERR ")) {
+            throw new IllegalStateException(reply.substring(4));
+        } else if (!reply.startsWith("OK")) {
+            throw new IOException("Unexpected reply " + reply);
+        }
+        return reply.length() > 3 ? reply.substring(3) : "";
+    }
+
+    /*
+     * Read one more line of a reply that has several (`show`, `overview`)
+     */
+    String nextLine() throws IOException {
+        String line = mIn.readLine();
+        if (line == null) {
+            throw new IOException("Connection closed by the shard");
+        }
+        return line;
+    }
+
+    @Override
+    public void close() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
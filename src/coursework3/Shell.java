@@ -1,15 +1,28 @@
 package coursework3;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.out;
 
-import static coursework3.Constants.INDEX_SKILL_MAP;
 import static coursework3.Constants.DATA_FILE;
+import static coursework3.Constants.JOURNAL_FILE;
+import static coursework3.Constants.REBALANCE_TICK;
 
 /*
  * The Command-Line Interface (CLI, or Shell) of this program
@@ -32,7 +45,7 @@ class Shell {
          * This method will be called
          * when the specified command is invoked.
          */
-        abstract void execute(Scanner scanner);
+        abstract void execute(Input input);
 
         String getName() {
             return mName;
@@ -46,9 +59,20 @@ class Shell {
             return mDescription;
         }
 
+        /*
+         * Whether this command changes the groups
+         * Such commands are refused while following another process.
+         */
+        boolean changesData() {
+            return false;
+        }
+
         // Shorthand to print a message with format `command_name > ....`
+        // Nothing is printed in a quiet batch run, see @{runScript()}
         void print(String msg) {
-            out.print(mName + " > " + msg);
+            if (!sQuiet) {
+                out.print(mName + " > " + msg);
+            }
         }
 
         // Shorthand.
@@ -61,27 +85,169 @@ class Shell {
             out.print(mName + " >> ");
         }
 
+        /*
+         * Print a question to be answered with the next prompt
+         * Only when there is someone to answer it: in batch mode
+         * the answers are already given on the command line.
+         */
+        void ask(Input input, String question) {
+            if (input.isInteractive()) {
+                println(question);
+            }
+        }
+
         /*
          * Prompt for next available token
          */
-        String prompt(Scanner scanner) {
-            printPrompt();
-            return scanner.next().trim();
+        String prompt(Input input) {
+            if (input.isInteractive()) {
+                printPrompt();
+            }
+            return input.next().trim();
+        }
+
+        /*
+         * Prompt for a token that can be left out in batch mode
+         * @fallback: what to use if it is left out
+         */
+        String promptOptional(Input input, String fallback) {
+            if (!input.isInteractive() && !input.hasNext()) {
+                return fallback;
+            }
+            return prompt(input);
         }
 
         /*
          * Prompt for an Integer input
          * throw @{java.lang.IllegalArgumentException} if no integer given
          */
-        int promptInt(Scanner scanner) {
-            printPrompt();
-            if (scanner.hasNextInt()) {
-                return scanner.nextInt();
-            } else {
-                scanner.next(); // Discard the invalid input
+        int promptInt(Input input) {
+            String token = prompt(input); // The invalid input is discarded, too
+            try {
+                return Integer.parseInt(token);
+            } catch (NumberFormatException e) {
                 throw new IllegalArgumentException("Need an integer.");
             }
         }
+
+        /*
+         * Prompt for the ID of a volunteer (see @{AddCommand})
+         * throw @{java.lang.IllegalArgumentException} if no ID given
+         */
+        long promptId(Input input) {
+            ask(input, "Please input the ID of the volunteer, as given when it was added.");
+            String token = prompt(input);
+            try {
+                return Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Need a volunteer ID.");
+            }
+        }
+
+        /*
+         * Prompt for the seed of random data, which can be left out
+         * A new one is made up if it is, so it can be printed and used again.
+         */
+        long promptSeed(Input input) {
+            String token = promptOptional(input, "");
+            if (token.isEmpty()) {
+                return System.nanoTime();
+            }
+            try {
+                return Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Need an integer.");
+            }
+        }
+    }
+
+    /*
+     * Where commands read their arguments from
+     * Either the user, one prompt after another,
+     * or the rest of a line of a script.
+     */
+    private static abstract class Input {
+        /*
+         * The next token
+         * throw @{java.lang.IllegalArgumentException} if there is none
+         */
+        abstract String next() throws IllegalArgumentException;
+
+        abstract boolean hasNext();
+
+        // Whether the user is asked for each token
+        abstract boolean isInteractive();
+    }
+
+    /*
+     * Tokens typed in by the user
+     */
+    private static class ConsoleInput extends Input {
+        private final Scanner mScanner;
+
+        ConsoleInput(Scanner scanner) {
+            mScanner = scanner;
+        }
+
+        @Override
+        String next() throws IllegalArgumentException {
+            if (!mScanner.hasNext()) {
+                throw new IllegalArgumentException("End of input.");
+            }
+            return mScanner.next();
+        }
+
+        @Override
+        boolean hasNext() {
+            return mScanner.hasNext();
+        }
+
+        @Override
+        boolean isInteractive() {
+            return true;
+        }
+    }
+
+    /*
+     * Tokens of a line of a script, separated by whitespaces
+     * e.g. `move AAB 1 3`
+     * Splits the line by hand, since this runs for every line.
+     */
+    private static class LineInput extends Input {
+        private String mLine = "";
+        private int mPosition = 0;
+
+        // Start reading another line
+        void reset(String line) {
+            mLine = line;
+            mPosition = 0;
+        }
+
+        @Override
+        String next() throws IllegalArgumentException {
+            if (!hasNext()) {
+                throw new IllegalArgumentException("Missing argument.");
+            }
+            int start = mPosition;
+            while (mPosition < mLine.length() && !Character.isWhitespace(mLine.charAt(mPosition))) {
+                mPosition++;
+            }
+            return mLine.substring(start, mPosition);
+        }
+
+        @Override
+        boolean hasNext() {
+            // Skip to the start of the next token
+            while (mPosition < mLine.length() && Character.isWhitespace(mLine.charAt(mPosition))) {
+                mPosition++;
+            }
+            return mPosition < mLine.length();
+        }
+
+        @Override
+        boolean isInteractive() {
+            return false;
+        }
     }
 
     /*
@@ -89,10 +255,48 @@ class Shell {
      */
     private static final List<Command> sCommandList = new ArrayList<>();
 
+    // The same commands by their names and short names
+    private static final HashMap<String, Command> sCommands = new HashMap<>();
+
     /*
      * The main @{SkillSorter} instance. This is shared across all commands.
+     * Uses the default configuration unless @{configure()} is called.
      */
-    private static final SkillSorter sSorter = new SkillSorter();
+    private static SkillSorter sSorter = new SkillSorter();
+
+    // Records every change so that nothing is lost on a crash
+    // null if it could not be opened
+    private static Journal sJournal = null;
+
+    // Saves snapshots in the background. Created by @{loadData()}
+    private static Saver sSaver = null;
+
+    // Repairs the balance of the groups. Created by @{loadData()}
+    private static Rebalancer sRebalancer = null;
+
+    // Serves requests over TCP, or null if not started
+    private static Server sServer = null;
+
+    // Sends the changes to followers, or null if not started
+    private static Replicator sReplicator = null;
+
+    // Applies the changes of another process, or null if not following
+    // The replicator is only started once promoted (at sReplicationPort).
+    private static Follower sFollower = null;
+    private static int sReplicationPort = -1;
+
+    // Cleared by the `exit` command to stop reading commands
+    private static boolean sRunning = true;
+
+    // Don't print the messages of the commands (batch mode)
+    private static boolean sQuiet = false;
+
+    // Whether @{saveInBackground()} has been done
+    private static boolean sSavingInBackground = false;
+
+    // Whether @{shutdown()} has been done, and whether it saved the data
+    private static boolean sShutDown = false;
+    private static boolean sSaved = false;
 
     /*
      * Since the command list won't change during execution
@@ -104,26 +308,103 @@ class Shell {
         sCommandList.add(new ExitCommand());
         sCommandList.add(new OverviewCommand());
         sCommandList.add(new ShowCommand());
+        sCommandList.add(new QueryCommand());
+        sCommandList.add(new WhereCommand());
         sCommandList.add(new AddCommand());
         sCommandList.add(new DeleteCommand());
         sCommandList.add(new MoveCommand());
+        sCommandList.add(new FindCommand());
+        sCommandList.add(new DeleteIdCommand());
+        sCommandList.add(new MoveIdCommand());
         sCommandList.add(new ClearCommand());
         sCommandList.add(new RandomCommand());
+        sCommandList.add(new LoadCommand());
+        sCommandList.add(new ImportCommand());
+        sCommandList.add(new SaveCommand());
+        sCommandList.add(new MetricsCommand());
+        sCommandList.add(new RebalanceCommand());
+        sCommandList.add(new PlacementCommand());
+        sCommandList.add(new PromoteCommand());
+
+        for (Command cmd : sCommandList) {
+            sCommands.put(cmd.getName(), cmd);
+            sCommands.put(cmd.getShortName(), cmd);
+        }
+    }
+
+    /*
+     * Use a sorter with a different configuration
+     * Must be called before @{loadData()}
+     * See @{SkillSorter} for the parameters.
+     */
+    public static final void configure(int groupNum, String skills, int capacity) throws IllegalArgumentException {
+        sSorter = new SkillSorter(groupNum, skills, capacity);
+    }
+
+    /*
+     * Choose the groups of new volunteers another way
+     * See @{PlacementStrategy.parse} for the description.
+     */
+    public static final void usePlacement(String spec) throws IllegalArgumentException {
+        sSorter.setPlacement(PlacementStrategy.parse(spec));
     }
 
     /*
      * Load from saved data
-     * do nothing if no data found or could not load
+     * Start fresh if there is none. If there is but it can't be loaded,
+     * say why and do nothing else, so that nothing is saved over it.
+     * @return: whether the program can go on
      */
-    public static final void loadData() {
+    public static final boolean loadData() {
         out.println("Attempting to load saved data...");
 
+        long sequence = 0;
+        long start = System.currentTimeMillis();
+        try {
+            if (!new File(DATA_FILE).exists()) {
+                out.println("No saved data found. Starting fresh.");
+            } else {
+                if (Snapshot.isSnapshot(DATA_FILE)) {
+                    sequence = Snapshot.read(sSorter, DATA_FILE);
+                } else {
+                    // Data saved by older versions in the text format
+                    // This will be saved as a binary snapshot on exit.
+                    Utility.deserializeFromFile(sSorter, DATA_FILE);
+                    out.println("Migrating data from the old text format.");
+                }
+                // Members are paged in later, see @{Snapshot}
+                out.println("Data loaded in " + (System.currentTimeMillis() - start) + " ms.");
+            }
+        } catch (Exception e) {
+            out.println("ERROR: Could not load saved data from " + DATA_FILE + ": " + e.getMessage());
+            out.println("Nothing was changed. Check the options (e.g. --groups) or move the file away to start fresh.");
+            return false;
+        }
+
+        // Changes made after the data was saved (e.g. before a crash)
+        // Saving without all of them would lose them for good
         try {
-            Utility.deserializeFromFile(sSorter, DATA_FILE);
-            out.println("Data loaded.");
+            sJournal = Journal.open(sSorter, JOURNAL_FILE, DATA_FILE, sequence);
+            if (sJournal.getReplayed() > 0) {
+                out.println("Recovered " + sJournal.getReplayed() + " unsaved changes.");
+            }
+        } catch (IOException | Serializable.DeserializationException e) {
+            out.println("ERROR: Could not replay the journal " + JOURNAL_FILE + ": " + e.getMessage());
+            out.println("Nothing was changed. Check the options (e.g. --groups) or move the journal away to start without it.");
+            return false;
+        }
+
+        sSaver = new Saver(sSorter, sJournal, DATA_FILE);
+        sRebalancer = new Rebalancer(sSorter);
+
+        // Counting starts now, not including the loading above
+        sSorter.getMetrics().reset();
+        try {
+            Metrics.register(sSorter);
         } catch (Exception e) {
-            out.println("Could not load saved data. Starting fresh.");
+            out.println("Metrics are not available through JMX: " + e.getMessage());
         }
+        return true;
     }
 
     /*
@@ -133,73 +414,309 @@ class Shell {
      */
     public static final void startShell() {
         Scanner scanner = new Scanner(System.in); // Initialize the scanner for input
+        Input input = new ConsoleInput(scanner);
 
         // Print the help information on start
         out.println("> help"); // Mimick user input
-        new HelpCommand().execute(scanner); // Just using a newly-created @{HelpCommand} instance is fine here.
+        new HelpCommand().execute(input); // Just using a newly-created @{HelpCommand} instance is fine here.
 
-        // Loop forever waiting for command invocation
-        // Exit only when `exit` is given or being killed by OS
-        while (true) {
+        // Loop waiting for command invocation
+        // Exit when `exit` is given, at the end of input or being killed by OS
+        while (sRunning) {
             out.print("> "); // The command prompt
+            if (!scanner.hasNext()) {
+                out.println();
+                if (sServer != null || sReplicator != null || sFollower != null) {
+                    // Nothing more from the console, but the clients
+                    // (or the primary, or the followers) may carry on
+                    waitForServer();
+                }
+                break;
+            }
             String userCmd = scanner.next().trim(); // Wait for invoking a command
             
             if (!userCmd.equals("")) { // Skip if the command is empty.
                 // Find and invoke the corresponding command
-                boolean executed = false;
-                for (Command cmd : sCommandList) {
-                    if (cmd.getName().equals(userCmd) || cmd.getShortName().equals(userCmd)) {
-                        try {
-                            cmd.execute(scanner);
-                        } catch (Exception e) {
-                            // Error happend. Don't crash and just print the error
-                            out.println(cmd.getName() + " > ERROR: " + e.getMessage());
-                        }
-                        executed = true;
+                Command cmd = sCommands.get(userCmd);
+                if (cmd != null) {
+                    try {
+                        execute(cmd, input);
+                    } catch (Exception e) {
+                        // Error happend. Don't crash and just print the error
+                        out.println(cmd.getName() + " > ERROR: " + e.getMessage());
                     }
+                } else {
+                    // The given command is invalid
+                    out.println("> ERROR: Your command `" + userCmd + "` is invalid. Use `help` to retrieve a list of all available commands.");
                 }
+            }
 
-                // If executed = false, that means the given command is invalid
-                if (!executed) {
-                    out.println("> ERROR: Your command `" + userCmd + "` is invalid. Use `help` to retrieve a list of all available commands.");
+            saveIfDue();
+        }
+
+        shutdown();
+        out.println("Program terminated.");
+        System.exit(0);
+    }
+
+    /*
+     * Run the commands in a script without any prompts
+     * One command per line with its arguments after it, in the order
+     * they would be asked for, e.g. `add ABC` or `move 1 AAB 3`
+     * (`move AAB 1 3` and `delete AAB 1` work too).
+     * Empty lines and lines starting with `#` are skipped.
+     * Errors are printed with their line numbers and don't stop the script.
+     * Output is buffered, and the data is saved at the end
+     * (or at `exit`) like when exiting the shell.
+     * @path: the script, or "-" to read from the standard input
+     * @verbose: also print the messages of each command,
+     *   not only errors and what is asked for (e.g. `show`)
+     * @return: 0 if every command succeeded and the data is saved, 1 otherwise
+     */
+    public static final int runScript(String path, boolean verbose) {
+        BufferedReader reader;
+        try {
+            reader = path.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(path));
+        } catch (IOException e) {
+            out.println("ERROR: Could not read " + path + ": " + e.getMessage());
+            return 1;
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false));
+        sQuiet = !verbose;
+
+        LineInput input = new LineInput();
+        long start = System.currentTimeMillis();
+        int lineNum = 0, executed = 0, failed = 0;
+        try {
+            String line;
+            while (sRunning && (line = reader.readLine()) != null) {
+                lineNum++;
+                input.reset(line);
+                if (!input.hasNext() || line.trim().startsWith("#")) {
+                    continue;
+                }
+
+                String name = input.next();
+                Command cmd = sCommands.get(name);
+                executed++;
+                if (cmd == null) {
+                    out.println("line " + lineNum + ": ERROR: Unknown command `" + name + "`.");
+                    failed++;
+                    continue;
+                }
+                try {
+                    execute(cmd, input);
+                } catch (Exception e) {
+                    out.println("line " + lineNum + ": " + cmd.getName() + " > ERROR: " + e.getMessage());
+                    failed++;
                 }
+
+                saveIfDue();
+            }
+        } catch (IOException e) {
+            out.println("line " + lineNum + ": ERROR: Could not read " + path + ": " + e.getMessage());
+            failed++;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Everything is read already
             }
         }
+        long time = System.currentTimeMillis() - start;
+
+        boolean saved = shutdown();
+        out.println("Executed " + executed + " commands in " + time + " ms, "
+            + failed + " failed.");
+        out.flush();
+        System.setOut(console);
+        return failed == 0 && saved ? 0 : 1;
+    }
+
+    /*
+     * Serve requests over TCP in the background (see @{Server})
+     * The shell or the script runs as usual at the same time,
+     * and exiting it stops the server.
+     * @port: the port on the loopback address
+     * @threads: how many threads serve the connections
+     */
+    public static final void startServer(int port, int threads) throws IOException {
+        sServer = new Server(sSorter, sJournal, port, threads);
+        sServer.start();
+        out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + sServer.getPort());
+        saveInBackground();
+    }
+
+    /*
+     * Save on a timer and when killed, for a process that keeps running
+     * without anyone at the console (serving or replicating)
+     */
+    private static synchronized void saveInBackground() {
+        if (sSavingInBackground) {
+            return;
+        }
+        sSavingInBackground = true;
+
+        // The shell may wait for input for a long time, so save on a timer
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread thread = new Thread(r, "save-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(Shell::saveIfDue, 1, 1, TimeUnit.SECONDS);
+
+        // Also save when killed (e.g. Ctrl-C), since there may be no one at the console
+        Runtime.getRuntime().addShutdownHook(new Thread(Shell::shutdown));
     }
 
     /*
-     * FOR TESTING PURPOSE
-     * Feed random data to the sorter and print out the final distribution
+     * Serve until the program is killed
      */
-    private static void feedRandomData(int num, boolean extreme) {
-        for (int i = 0; i < num; i++) {
-            sSorter.addVolunteer(new Volunteer(extreme ? randomExtremeSkills() : randomSkills()));
+    private static void waitForServer() {
+        out.println("End of input. Serving until the program is stopped.");
+        out.flush();
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            // Stop waiting
         }
     }
 
     /*
-     * FOR TESTING PURPOSE
-     * Generate random skill set
+     * Send the changes to other processes following this one (see @{Replicator})
+     * If this process is a follower itself, this starts once promoted.
+     * Needs the journal, see @{loadData()}
+     * @port: the port on the loopback address
      */
-    private static String randomSkills() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 3; i++) {
-            sb.append(INDEX_SKILL_MAP[new Random().nextInt(INDEX_SKILL_MAP.length)]);
+    public static final void startReplication(int port) throws IOException {
+        if (sJournal == null) {
+            throw new IOException("The journal is not open");
+        }
+        if (sFollower != null) {
+            sReplicationPort = port;
+            return;
         }
-        return sb.toString();
+        sReplicator = new Replicator(sSorter, sJournal, port);
+        sReplicator.start();
+        out.println("Replicating to followers on " + InetAddress.getLoopbackAddress().getHostAddress()
+            + ":" + sReplicator.getPort());
+        saveInBackground();
     }
 
     /*
-     * FOR TESTING PURPOSE
-     * Generate random skill sets that are all "AAA" "BBB" "CCC" ....
+     * Keep the data a copy of another process (see @{Follower})
+     * Changes are refused until the `promote` command.
+     * Call after @{startServer}, if at all.
+     * @port: the port the other process replicates on, see @{startReplication}
      */
-    private static String randomExtremeSkills() {
-        char skill = INDEX_SKILL_MAP[new Random().nextInt(INDEX_SKILL_MAP.length)];
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 3; i++) {
-            sb.append(skill);
+    public static final void startFollowing(int port) {
+        sFollower = new Follower(sSorter, sJournal, port);
+        if (sServer != null) {
+            sServer.setReadOnly(true);
         }
-        return sb.toString();
+        sFollower.start();
+        saveInBackground();
+    }
+
+    /*
+     * Run a command, unless it changes the data of a follower
+     * At the console, a change is on disk (see @{Journal}) once this
+     * returns. A script only waits at the end, when the data is saved.
+     */
+    private static void execute(Command cmd, Input input) {
+        if (sFollower != null && cmd.changesData()) {
+            throw new IllegalStateException("This is a follower of another process. Use `promote` to take over first.");
+        }
+        cmd.execute(input);
+        if (cmd.changesData() && input.isInteractive() && sJournal != null) {
+            try {
+                sJournal.awaitDurable();
+            } catch (IOException e) {
+                throw new IllegalStateException("The change is not in the journal, and would be lost in a crash: " + e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Save in the background if it is time to
+     * This only captures the state here, and the file is written later.
+     */
+    private static void saveIfDue() {
+        if (sSaver.isDue()) {
+            sSaver.save((report) -> {
+                if (report.error != null) {
+                    out.println("ERROR: Could not save data: " + report.error.getMessage());
+                }
+            });
+        }
+    }
+
+    /*
+     * Save data to disk and close the files before exit
+     * @return: whether the data is saved
+     */
+    private static synchronized boolean shutdown() {
+        if (sShutDown) {
+            return sSaved;
+        }
+        sShutDown = true;
+
+        try {
+            if (sFollower != null) {
+                sFollower.close();
+            }
+            if (sReplicator != null) {
+                sReplicator.close();
+            }
+        } catch (InterruptedException e) {
+            out.println("Failed to stop replicating.");
+            return false;
+        }
+        if (sServer != null) {
+            try {
+                // No more changes from the clients
+                sServer.close();
+            } catch (InterruptedException e) {
+                out.println("Failed to stop the server.");
+                return false;
+            }
+        }
+        try {
+            sRebalancer.close();
+        } catch (InterruptedException e) {
+            out.println("Failed to stop rebalancing.");
+            return false;
+        }
+        out.println("Saving data...");
+
+        try {
+            // Everything in the journal goes into the snapshot
+            Saver.Report report = sSaver.save(null).get();
+            sSaver.close();
+            if (report.error != null) {
+                throw report.error;
+            }
+            if (sJournal != null) {
+                sJournal.close();
+            }
+            out.println("Data saved (" + report.size + " bytes in " + report.time + " ms).");
+            sSaved = true;
+            return true;
+        } catch (Exception e) {
+            out.println("Failed to save data.");
+            return false;
+        }
+    }
+
+    /*
+     * The range of valid group indexes, for prompts
+     * e.g. "[0-4]"
+     */
+    private static String groupRange() {
+        return "[0-" + (sSorter.getCommunityGroups().size() - 1) + "]";
     }
 
     /*
@@ -212,7 +729,7 @@ class Shell {
         }
 
         @Override
-        void execute(Scanner scanner) {
+        void execute(Input input) {
             // Print the information of all the available commands with a table
             // First print the header
             out.println("Command\t\t\tDescription");
@@ -243,19 +760,9 @@ class Shell {
         }
 
         @Override
-        void execute(Scanner scanner) {
-            // Save data to disk before exit.
-            out.println("Saving data...");
-
-            try {
-                Utility.serializeToFile(sSorter, DATA_FILE);
-                out.println("Data saved.");
-            } catch (Exception e) {
-                out.println("Failed to save data.");
-            }
-
-            out.println("Program terminated.");
-            System.exit(0);
+        void execute(Input input) {
+            // Stop reading commands. Data is saved after that.
+            sRunning = false;
         }
     }
 
@@ -271,7 +778,7 @@ class Shell {
         }
 
         @Override
-        void execute(Scanner scanner) {
+        void execute(Input input) {
             sSorter.printAll();
         }
     }
@@ -289,9 +796,9 @@ class Shell {
         }
 
         @Override
-        void execute(Scanner scanner) {
-            println("Please specify which group you would like to view. [0-4]");
-            int index = promptInt(scanner);
+        void execute(Input input) {
+            ask(input, "Please specify which group you would like to view. " + groupRange());
+            int index = promptInt(input);
             printStats(index);
         }
 
@@ -314,6 +821,86 @@ class Shell {
         }
     }
 
+    /*
+     * The Query command
+     * Print the groups with the least or the most of a skill
+     * (or of members), or with less or more than a limit,
+     * e.g. `query D lowest 3`, `query members below 100`
+     *
+     * `query` or `q` to invoke
+     */
+    private static class QueryCommand extends Command {
+        QueryCommand() {
+            super("query", "q", "Find the groups with the least or the most of a skill.");
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "Which skill? e.g. A, or `members` for the number of members");
+            String name = prompt(input).toUpperCase();
+            int skill;
+            if (name.equals("MEMBERS") || name.equals("M")) {
+                skill = SkillSorter.MEMBERS;
+            } else if (name.length() == 1) {
+                skill = sSorter.getTable().getSkillIndex(name.charAt(0));
+            } else {
+                throw new IllegalArgumentException("Illegal skill " + name);
+            }
+
+            ask(input, "lowest N, highest N, below N or atleast N?");
+            String mode = prompt(input).toLowerCase();
+            int n = promptInt(input);
+            List<SkillSorter.GroupTotal> groups;
+            switch (mode) {
+                case "lowest":
+                    groups = sSorter.lowestGroups(skill, n);
+                    break;
+                case "highest":
+                    groups = sSorter.highestGroups(skill, n);
+                    break;
+                case "below":
+                    groups = sSorter.groupsBelow(skill, n);
+                    break;
+                case "atleast":
+                    groups = sSorter.groupsAtLeast(skill, n);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query " + mode);
+            }
+
+            // Print it as a table
+            out.println("Group\tTotal");
+            for (SkillSorter.GroupTotal group : groups) {
+                out.println(group.group + "\t" + group.total);
+            }
+            println(groups.size() + " groups.");
+        }
+    }
+
+    /*
+     * The Where command
+     * Print which groups have volunteers with some skills
+     *
+     * `where` or `w` to invoke
+     */
+    private static class WhereCommand extends Command {
+        WhereCommand() {
+            super("where", "w", "Print which groups have volunteers with some skills.");
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "Please input the skill set. e.g. ABC, BBA, CDE");
+            String skillSet = prompt(input).toUpperCase();
+            int[] groups = sSorter.groupsWith(skillSet);
+            StringBuilder line = new StringBuilder();
+            for (int group : groups) {
+                line.append(line.length() > 0 ? ", " : "").append(group);
+            }
+            println("`" + skillSet + "` is in " + groups.length + " groups" + (groups.length > 0 ? ": " + line : "."));
+        }
+    }
+
     /*
      * The Add command.
      * Adds a volunteer to one of the groups
@@ -327,14 +914,20 @@ class Shell {
         }
 
         @Override
-        void execute(Scanner scanner) {
-            println("Please input the skill set of the new volunteer. e.g. ABC, BBA, CDE");
-            String skillSet = prompt(scanner).toUpperCase();
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "Please input the skill set of the new volunteer. e.g. ABC, BBA, CDE");
+            String skillSet = prompt(input).toUpperCase();
             
             if (!skillSet.equals("")) {
                 // Make sure that the skill set is not empty
-                int index = sSorter.myAddVolunteer(new Volunteer(skillSet));
-                println("The volunteer with skills `" + skillSet + "` has been added to group " + index);
+                long id = sSorter.newId();
+                int index = sSorter.addVolunteer(sSorter.getTable().getVolunteer(skillSet), id);
+                println("The volunteer with skills `" + skillSet + "` has been added to group " + index + " with ID " + id);
             } else {
                 // Error message.
                 throw new IllegalArgumentException("Illegal skill set.");
@@ -345,24 +938,68 @@ class Shell {
     /*
      * Base class for all manipulations on groups
      * Prints group information and waits for input
+     * The group can be `*` to let the program choose the best one,
+     * which is passed to the subclass as ANY_GROUP.
+     * In a script, the skills can also come before the group,
+     * e.g. `move AAB 1 3` as well as `move 1 AAB 3`.
      */
     private static abstract class ManipulationCommand extends Command {
+        static final int ANY_GROUP = -1;
+
         ManipulationCommand(String name, String shortName, String description) {
             super(name, shortName, description);
         }
 
         @Override
-        void execute(Scanner scanner) {
-            println("Choose a group to manipulate [0-4]");
-            int groupIndex = promptInt(scanner);
-            ShowCommand.printStats(groupIndex); // Re-use code from @{ShowCommand}
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "Choose a group to manipulate " + groupRange() + ", or * for the best one");
+            String token = prompt(input);
+            String skillSet = null;
+            if (!input.isInteractive() && !token.equals("*") && !isInteger(token)) {
+                skillSet = token.toUpperCase();
+                token = prompt(input);
+            }
+            int groupIndex;
+            if (token.equals("*")) {
+                groupIndex = ANY_GROUP;
+            } else {
+                try {
+                    groupIndex = Integer.parseInt(token);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Need an integer.");
+                }
+            }
+            if (input.isInteractive() && groupIndex != ANY_GROUP) {
+                ShowCommand.printStats(groupIndex); // Re-use code from @{ShowCommand}
+            }
 
             // Now that the group information is printed
             // let the subclass decide what to do.
-            manipulate(groupIndex, scanner);
+            manipulate(groupIndex, skillSet, input);
         }
 
-        abstract void manipulate(int groupIndex, Scanner scanner);
+        /*
+         * @skillSet: the skills given before the group, or null
+         */
+        abstract void manipulate(int groupIndex, String skillSet, Input input);
+
+        private static boolean isInteger(String token) {
+            int start = token.startsWith("-") ? 1 : 0;
+            if (start == token.length()) {
+                return false;
+            }
+            for (int i = start; i < token.length(); i++) {
+                if (!Character.isDigit(token.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     /*
@@ -382,12 +1019,14 @@ class Shell {
         }
 
         @Override
-        void manipulate(int groupIndex, Scanner scanner) {
-            println("Choose a volunteer from the table above.");
-            println("Note that we don't distinguish between volunteers with the same skills.");
-            println("Please input the skill set of the volunteer that you need to " + getName() + ".");
-            String skillSet = prompt(scanner).toUpperCase();
-            afterDelete(groupIndex, skillSet, scanner);
+        void manipulate(int groupIndex, String skillSet, Input input) {
+            if (skillSet == null) {
+                ask(input, "Choose a volunteer from the table above.");
+                ask(input, "Any volunteer with these skills will do. Use `" + DeleteIdCommand.NAME + "` for a specific one.");
+                ask(input, "Please input the skill set of the volunteer that you need to " + getName() + ".");
+                skillSet = prompt(input).toUpperCase();
+            }
+            afterDelete(groupIndex, skillSet, input);
             println("Operation completed.");
         }
 
@@ -395,7 +1034,12 @@ class Shell {
          * This method is to be overridden from the `move` command
          * because the two command shares everything before deleting
          */
-        void afterDelete(int groupIndex, String skillSet, Scanner scanner) {
+        void afterDelete(int groupIndex, String skillSet, Input input) {
+            if (groupIndex == ANY_GROUP) {
+                groupIndex = sSorter.deleteFromBest(skillSet);
+                println("A volunteer of skills `" + skillSet + "` has been deleted from group " + groupIndex);
+                return;
+            }
             println("A volunteer of skills `" + skillSet + "` will be deleted from group " + groupIndex);
             sSorter.deleteVolunteer(skillSet, groupIndex);
         }
@@ -420,14 +1064,94 @@ class Shell {
          * This differs from @{AddCommand} since it does not
          * find the best balance
          */
-        void afterDelete(int groupIndex, String skillSet, Scanner scanner) {
-            println("Please choose the target group to move to [0-4]");
-            int targetGroup = promptInt(scanner);
+        void afterDelete(int groupIndex, String skillSet, Input input) {
+            ask(input, "Please choose the target group to move to " + groupRange());
+            int targetGroup = promptInt(input);
+            if (groupIndex == ANY_GROUP) {
+                groupIndex = sSorter.moveFromBest(skillSet, targetGroup);
+                println("A volunteer of skills `" + skillSet + "` has been moved from group " + groupIndex + " to " + targetGroup);
+                return;
+            }
             println("A volunteer of skills `" + skillSet + "` will be moved from group " + groupIndex + " to " + targetGroup);
             sSorter.moveVolunteer(skillSet, groupIndex, targetGroup);
         }
     }
 
+    /*
+     * The Find command
+     * Print which group a volunteer is in, by its ID
+     *
+     * `find` or `f` to invoke
+     */
+    private static class FindCommand extends Command {
+        FindCommand() {
+            super("find", "f", "Find which group a volunteer is in by its ID.");
+        }
+
+        @Override
+        void execute(Input input) {
+            long id = promptId(input);
+            long found = sSorter.locate(id);
+            if (found < 0) {
+                throw new IllegalArgumentException("No volunteer with ID " + id);
+            }
+            Volunteer vl = sSorter.getTable().getVolunteer((int) found);
+            println("The volunteer " + id + " with skills `" + vl.getSkillSet() + "` is in group " + (found >>> 32));
+        }
+    }
+
+    /*
+     * The Delete by ID command
+     * delete a specific volunteer
+     *
+     * `deleteid` or `di` to invoke
+     */
+    private static class DeleteIdCommand extends Command {
+        static final String NAME = "deleteid";
+
+        DeleteIdCommand() {
+            super(NAME, "di", "Delete a volunteer by its ID.");
+        }
+
+        @Override
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            long id = promptId(input);
+            sSorter.deleteVolunteer(id);
+            println("The volunteer " + id + " has been deleted.");
+        }
+    }
+
+    /*
+     * The Move by ID command
+     * Move a specific volunteer to another group
+     *
+     * `moveid` or `mi` to invoke
+     */
+    private static class MoveIdCommand extends Command {
+        MoveIdCommand() {
+            super("moveid", "mi", "Move a volunteer to another group by its ID.");
+        }
+
+        @Override
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            long id = promptId(input);
+            ask(input, "Please choose the target group to move to " + groupRange());
+            int targetGroup = promptInt(input);
+            sSorter.moveVolunteer(id, targetGroup);
+            println("The volunteer " + id + " has been moved to group " + targetGroup);
+        }
+    }
+
     /*
      * The Clear command
      * delete everything and start fresh
@@ -440,7 +1164,12 @@ class Shell {
         }
 
         @Override
-        void execute(Scanner scanner) {
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
             sSorter.deleteAllVolunteers();
             println("Everything deleted.");
         }
@@ -459,20 +1188,359 @@ class Shell {
         }
 
         @Override
-        void execute(Scanner scanner) {
-            println("How many volunteers with random skill set would you like?");
-            int total = promptInt(scanner);
-            println("Would you like an extreme test set? [y/n] (default: n)");
-            String extremeStr = prompt(scanner);
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "How many volunteers with random skill set would you like?");
+            int total = promptInt(input);
+            ask(input, "Would you like an extreme test set? [y/n] (default: n)");
+            String extremeStr = promptOptional(input, "n");
             boolean extreme = extremeStr.equals("y");
+            ask(input, "Seed for the random skill sets? (default: a new one)");
+            long seed = promptSeed(input);
 
             if (total > 0) {
-                feedRandomData(total, extreme);
-                println("Added " + total + " random volunteers.");
+                LoadGenerator.Report report;
+                try {
+                    report = new LoadGenerator(sSorter, 1, 0, new int[]{100, 0, 0},
+                        extreme ? "extreme" : "uniform", seed).run(total);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                println("Added " + (total - report.getFailed()) + " random volunteers (seed " + seed + ").");
+                if (report.getFailed() > 0) {
+                    println("Rejected " + report.getFailed() + " because all the groups are full.");
+                }
                 println("Use `overview` to see how the groups are balanced.");
             } else {
                 throw new IllegalArgumentException("Volunteer count can't be 0 or minus.");
             }
         }
     }
-}
\ No newline at end of file
+
+    /*
+     * The Load command
+     * runs a mix of adds, deletes and moves from several threads,
+     * optionally at a target rate, and prints how fast they went.
+     * See @{LoadGenerator}
+     *
+     * `load` or `ld` to invoke.
+     * e.g. `load 100000 4 20000 60/30/10 zipf:1.2 42` in a batch run
+     */
+    private static class LoadCommand extends Command {
+        LoadCommand() {
+            super("load", "ld", "Generate a mix of operations from several threads and measure them.");
+        }
+
+        @Override
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "How many operations?");
+            int operations = promptInt(input);
+            if (operations <= 0) {
+                throw new IllegalArgumentException("Operation count can't be 0 or minus.");
+            }
+            ask(input, "How many threads? (default: 1)");
+            int threads = parseInt(promptOptional(input, ""), 1);
+            ask(input, "Operations per second? (default: 0, as many as possible)");
+            int rate = parseInt(promptOptional(input, ""), 0);
+            ask(input, "Percentages of adds/deletes/moves? (default: 100/0/0)");
+            int[] mix = parseMix(promptOptional(input, ""));
+            ask(input, "Skills of new volunteers: uniform, zipf[:S] or extreme[:BURST]? (default: uniform)");
+            String distribution = promptOptional(input, "");
+            if (distribution.isEmpty()) {
+                distribution = "uniform";
+            }
+            ask(input, "Seed? (default: a new one)");
+            long seed = promptSeed(input);
+
+            LoadGenerator.Report report;
+            try {
+                report = new LoadGenerator(sSorter, threads, rate, mix, distribution, seed).run(operations);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            println(String.format("%d operations in %d ms: %.1f ops/s%s, seed %d", report.getTotal(),
+                report.time / 1000000, report.getRate(), rate > 0 ? " (target " + rate + ")" : "", seed));
+            // Print it as a table, latencies from when the operations were due, in microseconds
+            out.println("Operation\tCount\tFailed\tp50\tp99\tp99.9\tMax (us)");
+            for (int i = 0; i < LoadGenerator.NAMES.length; i++) {
+                LatencyHistogram latencies = report.latencies[i];
+                out.println(String.format("%-8s\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f", LoadGenerator.NAMES[i],
+                    report.counts[i], report.failed[i], latencies.getPercentile(50) / 1e3,
+                    latencies.getPercentile(99) / 1e3, latencies.getPercentile(99.9) / 1e3,
+                    latencies.getMax() / 1e3));
+            }
+            println("Imbalance: " + sSorter.imbalance() + " (placement " + sSorter.getPlacement().getName() + ")");
+        }
+
+        // An integer that may be left empty
+        private static int parseInt(String token, int fallback) {
+            if (token.isEmpty()) {
+                return fallback;
+            }
+            try {
+                return Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Need an integer.");
+            }
+        }
+
+        // e.g. "60/30/10"
+        private static int[] parseMix(String token) {
+            if (token.isEmpty()) {
+                return new int[]{100, 0, 0};
+            }
+            String[] parts = token.split("/");
+            if (parts.length != LoadGenerator.NAMES.length) {
+                throw new IllegalArgumentException("Need 3 percentages, e.g. 60/30/10.");
+            }
+            int[] mix = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                mix[i] = parseInt(parts[i], 0);
+            }
+            return mix;
+        }
+    }
+
+    /*
+     * The Import command
+     * adds all the volunteers listed in a file
+     * (skill sets separated by new lines or commas)
+     * 
+     * `import` or `i` to invoke
+     */
+    private static class ImportCommand extends Command {
+        ImportCommand() {
+            super("import", "i", "Add all the volunteers listed in a file.");
+        }
+
+        @Override
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "Please input the path to the file. One skill set per line, or separated by commas.");
+            String path = prompt(input);
+
+            long start = System.currentTimeMillis();
+            SkillSorter.ImportResult result;
+            try {
+                result = Utility.importFromFile(sSorter, path);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not read " + path + ": " + e.getMessage());
+            }
+            long time = System.currentTimeMillis() - start;
+
+            println("Added " + result.imported + " volunteers in " + time + " ms.");
+            if (result.skipped > 0) {
+                println("Skipped " + result.skipped + " invalid skill sets.");
+            }
+            if (result.rejected > 0) {
+                println("Rejected " + result.rejected + " volunteers because all the groups are full.");
+            }
+        }
+    }
+
+    /*
+     * The Save command
+     * Save the data now, in the background.
+     * Data is also saved regularly, and on exit.
+     *
+     * `save` or `sv` to invoke.
+     */
+    private static class SaveCommand extends Command {
+        SaveCommand() {
+            super("save", "sv", "Save the data now, in the background.");
+        }
+
+        @Override
+        void execute(Input input) {
+            sSaver.save((report) -> {
+                if (report.error != null) {
+                    out.println(getName() + " > ERROR: Could not save data: " + report.error.getMessage());
+                } else {
+                    println("Saved " + report.size + " bytes in " + report.time + " ms.");
+                }
+            });
+            println("Saving in the background.");
+        }
+    }
+
+    /*
+     * The Metrics command
+     * Print how many operations there have been and how long they took
+     * (also available through JMX, see @{Metrics})
+     *
+     * `metrics` or `mt` to invoke.
+     */
+    private static class MetricsCommand extends Command {
+        MetricsCommand() {
+            super("metrics", "mt", "Print how many operations there have been and how long they took.");
+        }
+
+        @Override
+        void execute(Input input) {
+            Metrics metrics = sSorter.getMetrics();
+            out.println("Imbalance: " + sSorter.imbalance());
+            out.println("Rejected because the groups are full: " + metrics.getRejected());
+            if (sSorter.getUnpagedGroups() > 0) {
+                out.println("Groups whose members are not paged in yet: " + sSorter.getUnpagedGroups());
+            }
+            RecordStore records = sSorter.getRecords();
+            out.printf("Off-heap records: %d in use, %.1f MB%n",
+                records.getInUse(), records.getCapacityBytes() / 1048576.0);
+            if (metrics.getJournalFailure() != null) {
+                out.println("ERROR: " + metrics.getJournalFailure() + ". No changes are accepted, and what there is will be saved on exit.");
+            }
+            if (metrics.getReplicationLag() >= 0) {
+                out.println("Replication lag (changes): " + metrics.getReplicationLag());
+            }
+
+            // Print it as a table, latencies in microseconds
+            out.println("Operation\tCount\tOps/s\tp50\tp99\tp99.9\tMax (us)");
+            for (int i = 0; i < Metrics.NAMES.length; i++) {
+                out.println(String.format("%-8s\t%d\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f", Metrics.NAMES[i],
+                    metrics.getCount(i), metrics.getRate(i), metrics.getPercentile(i, 50) / 1e3,
+                    metrics.getPercentile(i, 99) / 1e3, metrics.getPercentile(i, 99.9) / 1e3,
+                    metrics.getMax(i) / 1e3));
+            }
+        }
+    }
+
+    /*
+     * The Placement command
+     * shows or changes how the groups of new volunteers are chosen,
+     * with how long choosing takes and how well the groups are balanced.
+     * See @{PlacementStrategy}
+     *
+     * `placement` or `pl` to invoke.
+     */
+    private static class PlacementCommand extends Command {
+        PlacementCommand() {
+            super("placement", "pl", "Show or change how the groups of new volunteers are chosen.");
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "Choose groups by: exact, sample[:K], skill or roundrobin[:T]? (default: keep "
+                + sSorter.getPlacement().getName() + ")");
+            String spec = promptOptional(input, "");
+            if (!spec.isEmpty()) {
+                usePlacement(spec);
+                println("New volunteers now go by " + sSorter.getPlacement().getName() + ".");
+            }
+
+            Metrics metrics = sSorter.getMetrics();
+            out.println("Placement: " + sSorter.getPlacement().getName());
+            out.println("Imbalance: " + sSorter.imbalance());
+            out.println(String.format("Decisions: %d, p50 %.1f us, p99 %.1f us, max %.1f us",
+                metrics.getCount(Metrics.PLACE), metrics.getPercentile(Metrics.PLACE, 50) / 1e3,
+                metrics.getPercentile(Metrics.PLACE, 99) / 1e3, metrics.getMax(Metrics.PLACE) / 1e3));
+        }
+    }
+
+    /*
+     * The Rebalance command
+     * Move volunteers around so that the groups are better balanced,
+     * either all at once or a few at a time in the background.
+     * See @{Rebalancer}
+     *
+     * `rebalance` or `rb` to invoke.
+     */
+    private static class RebalanceCommand extends Command {
+        RebalanceCommand() {
+            super("rebalance", "rb", "Move volunteers around so that the groups are better balanced.");
+        }
+
+        @Override
+        boolean changesData() {
+            return true;
+        }
+
+        @Override
+        void execute(Input input) {
+            ask(input, "How many volunteers to move every " + REBALANCE_TICK + " ms in the background? (0: all of them now)");
+            int movesPerTick = promptInt(input);
+            if (movesPerTick < 0) {
+                throw new IllegalArgumentException("Volunteer count can't be minus.");
+            }
+
+            long start = System.currentTimeMillis();
+            Rebalancer.Plan plan = sRebalancer.plan();
+            long time = System.currentTimeMillis() - start;
+            println("Planned to move " + plan.volunteers + " volunteers in " + time + " ms.");
+            println("Imbalance: " + plan.before + " -> " + plan.after);
+            if (plan.volunteers == 0) {
+                return;
+            }
+
+            if (movesPerTick == 0) {
+                report(sRebalancer.apply(plan));
+            } else {
+                sRebalancer.applyGradually(plan, movesPerTick, this::report);
+                println("Moving them in the background.");
+            }
+        }
+
+        private void report(Rebalancer.Result result) {
+            println((result.cancelled ? "Rebalance stopped. " : "Rebalanced. ")
+                + "Moved " + result.moved + " volunteers, skipped " + result.skipped
+                + ". Imbalance: " + sSorter.imbalance());
+        }
+    }
+
+    /*
+     * The Promote command
+     * Stop following another process and take over from it
+     * (e.g. after it has stopped). See @{Follower}
+     *
+     * `promote` or `pr` to invoke.
+     */
+    private static class PromoteCommand extends Command {
+        PromoteCommand() {
+            super("promote", "pr", "Stop following another process and accept changes.");
+        }
+
+        @Override
+        void execute(Input input) {
+            if (sFollower == null) {
+                throw new IllegalStateException("This process is not following another one.");
+            }
+            try {
+                sFollower.close();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Interrupted while stopping to follow.");
+            }
+            long lag = sFollower.getLag();
+            println("Promoted with the changes of the primary up to " + sFollower.getApplied() + ".");
+            if (lag > 0) {
+                println(lag + " later changes of the primary were never received.");
+            }
+            sFollower = null;
+            if (sServer != null) {
+                sServer.setReadOnly(false);
+            }
+
+            if (sReplicationPort >= 0) {
+                try {
+                    startReplication(sReplicationPort);
+                } catch (IOException e) {
+                    out.println(getName() + " > ERROR: Could not start replicating: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
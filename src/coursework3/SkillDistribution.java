@@ -0,0 +1,153 @@
+package coursework3;
+
+import java.util.SplittableRandom;
+
+import static coursework3.Constants.SKILLS_PER_VOLUNTEER;
+
+/*
+ * How the skills of generated volunteers are chosen (see @{LoadGenerator})
+ *
+ *   uniform      every skill is equally likely, each of the 3 on its own
+ *   zipf:S       the k-th skill is chosen with a weight of 1 / k^S,
+ *                each of the 3 on its own (S is 1 if left out)
+ *   extreme:B    all 3 skills the same (e.g. "AAA"), the same skill
+ *                for bursts of B volunteers on average (B is 1 if left out)
+ *
+ * An instance may keep some state (the current burst, scratch arrays),
+ * so each thread generating volunteers gets its own from @{parse}.
+ */
+abstract class SkillDistribution {
+    protected final SkillTable mTable;
+
+    protected SkillDistribution(SkillTable table) {
+        mTable = table;
+    }
+
+    /*
+     * The skill code of the next volunteer
+     * @random: where the randomness comes from
+     */
+    abstract int next(SplittableRandom random);
+
+    /*
+     * Make a distribution from its description
+     * throw @{java.lang.IllegalArgumentException} if it is not one of the above
+     * @spec: e.g. "uniform", "zipf:1.2", "extreme:100"
+     * @table: the skills
+     */
+    static SkillDistribution parse(String spec, SkillTable table) throws IllegalArgumentException {
+        int colon = spec.indexOf(':');
+        String name = (colon >= 0 ? spec.substring(0, colon) : spec).toLowerCase();
+        String parameter = colon >= 0 ? spec.substring(colon + 1) : null;
+        try {
+            switch (name) {
+                case "uniform":
+                    if (parameter != null) {
+                        break;
+                    }
+                    return new Uniform(table);
+                case "zipf":
+                    double exponent = parameter != null ? Double.parseDouble(parameter) : 1;
+                    if (!(exponent >= 0)) {
+                        throw new IllegalArgumentException("The exponent of zipf can't be minus.");
+                    }
+                    return new Zipf(table, exponent);
+                case "extreme":
+                    int burst = parameter != null ? Integer.parseInt(parameter) : 1;
+                    if (burst <= 0) {
+                        throw new IllegalArgumentException("Bursts must be at least 1 long.");
+                    }
+                    return new Extreme(table, burst);
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number in " + spec);
+        }
+        throw new IllegalArgumentException("Unknown distribution " + spec + ". Use uniform, zipf[:S] or extreme[:B].");
+    }
+
+    /*
+     * The skill code of a skill set given by skill indexes
+     */
+    protected int code(int a, int b, int c) {
+        return mTable.parse(mTable.getSkillName(a), mTable.getSkillName(b), mTable.getSkillName(c));
+    }
+
+    private static final class Uniform extends SkillDistribution {
+        Uniform(SkillTable table) {
+            super(table);
+        }
+
+        @Override
+        int next(SplittableRandom random) {
+            int n = mTable.getSkillNum();
+            return code(random.nextInt(n), random.nextInt(n), random.nextInt(n));
+        }
+    }
+
+    private static final class Zipf extends SkillDistribution {
+        // The weights of the skills added up, divided by the total
+        private final double[] mCumulative;
+        // Reused for every volunteer (an instance is used by one thread)
+        private final int[] mSkills = new int[SKILLS_PER_VOLUNTEER];
+
+        Zipf(SkillTable table, double exponent) {
+            super(table);
+            mCumulative = new double[table.getSkillNum()];
+            double total = 0;
+            for (int k = 0; k < mCumulative.length; k++) {
+                total += 1 / Math.pow(k + 1, exponent);
+                mCumulative[k] = total;
+            }
+            for (int k = 0; k < mCumulative.length; k++) {
+                mCumulative[k] /= total;
+            }
+        }
+
+        @Override
+        int next(SplittableRandom random) {
+            for (int j = 0; j < mSkills.length; j++) {
+                mSkills[j] = skill(random.nextDouble());
+            }
+            return code(mSkills[0], mSkills[1], mSkills[2]);
+        }
+
+        // The first skill whose cumulative weight is above u
+        private int skill(double u) {
+            int low = 0, high = mCumulative.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mCumulative[mid] > u) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static final class Extreme extends SkillDistribution {
+        private final int mBurst;
+        // The skill of the current burst, and how many are left in it
+        private int mSkill = 0;
+        private int mLeft = 0;
+
+        Extreme(SkillTable table, int burst) {
+            super(table);
+            mBurst = burst;
+        }
+
+        @Override
+        int next(SplittableRandom random) {
+            if (mLeft == 0) {
+                mSkill = random.nextInt(mTable.getSkillNum());
+                // From 1 to 2B - 1 long, B on average
+                mLeft = 1 + random.nextInt(2 * mBurst - 1);
+            }
+            mLeft--;
+            return code(mSkill, mSkill, mSkill);
+        }
+    }
+}
@@ -2,38 +2,239 @@ package coursework3;
 
 import cw3interfaces.SkillSorterInterface;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
 
-import static coursework3.Constants.SKILL_NUM;
+import static coursework3.Constants.GROUP_NUM;
+import static coursework3.Constants.IMPORT_BATCH_SIZE;
+import static coursework3.Constants.INDEX_SKILL_MAP;
+import static coursework3.Constants.MAX_GROUP_MEMBER;
+import static coursework3.Constants.SKILLS_PER_VOLUNTEER;
 
+/*
+ * Sorts volunteers into groups so that the groups are best balanced
+ *
+ * Adding, moving and deleting volunteers are safe to call from many
+ * threads at once. Every group has its own lock
+ * (see @{CommunityGroup.getLock()}) and a change only locks the groups
+ * it touches, so changes to different groups go on in parallel.
+ * Placing a volunteer looks for the best group without any lock
+ * (optimistic reads), then locks that group and checks that it is still
+ * the best before adding to it, looking again if another thread got there first.
+ * Operations on all the groups at once (clearing, loading, bulk adds)
+ * lock every group, in order of their indexes like everything else.
+ * Loading from text (@{deserialize}) replaces the groups themselves
+ * and must not be done while other threads use the sorter.
+ */
 public class SkillSorter extends SerializableSet<CommunityGroup> implements SkillSorterInterface {
-    private static final String SEPARATOR = "|";
+    private static final char SEPARATOR = '|';
+
+    /*
+     * Below this many volunteers, @{addVolunteers} just adds one by one
+     */
+    private static final int BULK_THRESHOLD = 8;
     private ArrayList<CommunityGroup> myGroups = new ArrayList<>();
-    
+
     /*
-     * Initialization and stuff needed by @{SerializableSet<T>}
+     * The configuration of this sorter. See the constructor.
+     */
+    private final int mGroupNum;
+    private final int mCapacity;
+    private final SkillTable mTable;
+
+    /*
+     * Running aggregates over all the groups, so that the variances
+     * never need to be recalculated from scratch.
+     * For every skill X (and for the group sizes, S) we keep
+     *   sum(X) = x1 + x2 + ... + xn
+     *   squares(X) = x1^2 + x2^2 + ... + xn^2
+     * which is enough to get V(X) = squares(X) / n - (sum(X) / n)^2
+     * These must be kept up to date on every change of the groups.
+     * They are @{LongAdder}s, so that changes to different groups
+     * can update them at the same time without a lock.
+     */
+    private final LongAdder[] mSkillSums;
+    private final LongAdder[] mSkillSquares;
+    private final LongAdder mSizeSum = new LongAdder();
+    private final LongAdder mSizeSquares = new LongAdder();
+
+    /*
+     * The indexes of the groups that are not full (in no order),
+     * so that full groups can be skipped without even looking at them.
+     * This changes only when a group becomes full or not full,
+     * so it is copied on every change and can be read without a lock.
+     * mOpen[i] is whether group i is in it. Both are guarded by mOpenLock.
+     */
+    private volatile int[] mOpenGroups = new int[0];
+    private final boolean[] mOpen;
+    private final Object mOpenLock = new Object();
+
+    /*
+     * Index to find the best group without a full scan
+     * null if there are too few groups for it to pay off
+     * See @{PlacementIndex}
+     */
+    private final PlacementIndex mIndex;
+
+    /*
+     * How to choose the group for a new volunteer, see @{PlacementStrategy}
+     */
+    private volatile PlacementStrategy mPlacement = PlacementStrategy.EXACT;
+
+    /*
+     * Index to rank the groups by their totals, see @{QueryIndex}
+     * Costs nothing until the first query.
+     */
+    private final QueryIndex mQueries;
+
+    /*
+     * Which groups have volunteers of each skill code, see @{HolderIndex}
+     */
+    private final HolderIndex mHolders;
+
+    /*
+     * Every volunteer gets a unique ID when added, from mNextId,
+     * which it keeps when moved. mIds tells where each one is.
+     * IDs are never reused.
+     * IDs from EXTERNAL_IDS on are never given out here: they are given
+     * with the volunteer (see @{addToGroup}) by a @{Coordinator}, for
+     * volunteers that come from another shard.
+     */
+    static final long EXTERNAL_IDS = 1L << 62;
+    private final AtomicLong mNextId = new AtomicLong(1);
+    private final IdIndex mIds = new IdIndex();
+
+    /*
+     * The records of the members of all the groups, off the heap
+     * See @{RecordStore}
+     */
+    private final RecordStore mRecords;
+
+    // Chunks of mRecords (65536 records, 1.5 MB)
+    private static final int RECORD_CHUNK_BITS = 16;
+
+    /*
+     * How many groups haven't paged in their members since they were
+     * loaded from a @{Snapshot}. Their IDs are not in mIds yet, but
+     * mIdTable tells which group to page in for an ID (if the snapshot
+     * has a table). See @{pageIn}
+     */
+    private final AtomicInteger mUnpaged = new AtomicInteger();
+    private volatile Snapshot.IdTable mIdTable = null;
+
+    /*
+     * Point-in-time views of the groups for readers, see @{view}
+     * Each view takes the next epoch, and a group keeps a copy of
+     * itself from before its first change in a new epoch.
+     * Views are taken one at a time, under mViewLock.
+     */
+    private final AtomicLong mEpoch = new AtomicLong(1);
+    private final Object mViewLock = new Object();
+
+    /*
+     * Everyone who needs to know about changes to the groups
+     * (e.g. @{Journal})
+     */
+    private final List<MutationListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /*
+     * How many operations there have been and how long they took
+     */
+    private final Metrics mMetrics = new Metrics();
+
+    /*
+     * Why changes are refused, or null if they are not
+     * See @{setReadOnly}
+     */
+    private volatile String mReadOnly = null;
+
+    /*
+     * Create a sorter with the default configuration
+     * (see @{Constants})
      */
     public SkillSorter() {
-        super(CommunityGroup.class, SEPARATOR, false);
+        this(GROUP_NUM, new String(INDEX_SKILL_MAP), MAX_GROUP_MEMBER);
+    }
+
+    /*
+     * Initialization and stuff needed by @{SerializableSet<T>}
+     * @groupNum: how many groups there are
+     * @skills: the name of every possible skill, e.g. "ABCDE"
+     * @capacity: maximum members of each group
+     */
+    public SkillSorter(int groupNum, String skills, int capacity) throws IllegalArgumentException {
+        this(groupNum, skills, capacity, new RecordStore(RECORD_CHUNK_BITS));
+    }
+
+    private SkillSorter(int groupNum, String skills, int capacity, RecordStore records) throws IllegalArgumentException {
+        super(SEPARATOR, false);
+        if (groupNum <= 0) {
+            throw new IllegalArgumentException("There must be at least one group");
+        } else if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of a group must be positive");
+        }
+
+        mGroupNum = groupNum;
+        mCapacity = capacity;
+        mTable = skills.equals(new String(INDEX_SKILL_MAP)) ? SkillTable.DEFAULT : new SkillTable(skills.toCharArray());
+        mSkillSums = new LongAdder[mTable.getSkillNum()];
+        mSkillSquares = new LongAdder[mTable.getSkillNum()];
+        for (int i = 0; i < mSkillSums.length; i++) {
+            mSkillSums[i] = new LongAdder();
+            mSkillSquares[i] = new LongAdder();
+        }
+        mOpen = new boolean[groupNum];
+        mRecords = records;
+
         setList(myGroups);
-        for (int i = 0; i < 5; i++) {
-            myGroups.add(new CommunityGroup());
+        setFactory(this::createGroup);
+        for (int i = 0; i < groupNum; i++) {
+            myGroups.add(createGroup());
         }
+        mIndex = PlacementIndex.worthwhile(mTable, groupNum) ? new PlacementIndex(mTable, myGroups) : null;
+        mQueries = new QueryIndex(mTable.getSkillNum(), myGroups);
+        mHolders = new HolderIndex(mTable.getCombinationNum(), groupNum);
+        recalculateAggregates();
+    }
+
+    /*
+     * Groups must be created with the same configuration as this sorter
+     * This is also used while deserializing.
+     */
+    private CommunityGroup createGroup() {
+        CommunityGroup group = new CommunityGroup(mTable, mCapacity, mRecords);
+        group.setIdSource(mNextId);
+        return group;
     }
 
     /*
      * Override the deserialize method to check the group number
-     * make sure we always have 5 groups
+     * make sure we always have the configured number of groups
+     * (deserializing from a String also ends up here)
      */
     @Override
-    public void deserialize(String str) throws Serializable.DeserializationException {
-        super.deserialize(str);
-        if (myGroups.size() != 5) {
-            throw new Serializable.DeserializationException("Group number isn't 5");
+    public void deserialize(Reader reader) throws IOException, Serializable.DeserializationException {
+        // The groups are replaced; give their records back first
+        clearGroups();
+        super.deserialize(reader);
+        if (myGroups.size() != mGroupNum) {
+            throw new Serializable.DeserializationException("Group number isn't " + mGroupNum);
         }
+        recalculateAggregates();
     }
-    
+
     /*
      * Add the volunteer to some group such that
      * the distribution of the skills and the total members of each group
@@ -46,14 +247,67 @@ public class SkillSorter extends SerializableSet<CommunityGroup> implements Skil
      * @vol: the volunteer
      */
     public int myAddVolunteer(Volunteer vol) throws IllegalStateException {
-        int best = bestGroup(vol);
+        return addVolunteer(vol, newId());
+    }
 
-        if (best < 0) {
-            throw new IllegalStateException("Could not find the best group. All the groups may be full. Aborting.");
-        }
+    /*
+     * Same, but returns the ID given to the volunteer
+     * Use @{getGroupOf} to find out which group it is in.
+     */
+    public long addVolunteerWithId(Volunteer vol) throws IllegalStateException {
+        long id = newId();
+        addVolunteer(vol, id);
+        return id;
+    }
+
+    /*
+     * Give out a new volunteer ID
+     */
+    long newId() {
+        return mNextId.getAndIncrement();
+    }
+
+    /*
+     * @{myAddVolunteer} with the ID to give
+     * when both the group and the ID are needed
+     * @id: from @{newId}
+     */
+    int addVolunteer(Volunteer vol, long id) throws IllegalStateException {
+        long start = System.nanoTime();
+        vol = canonical(vol);
+        PlacementStrategy placement = mPlacement;
+        while (true) {
+            long choice = choose(placement, vol.getCode());
+            if (choice < 0) {
+                mMetrics.rejected();
+                throw new IllegalStateException("Could not find the best group. All the groups may be full. Aborting.");
+            }
+
+            int best = (int) choice;
+            CommunityGroup group = myGroups.get(best);
+            StampedLock lock = group.getLock();
+            long stamp = lock.writeLock();
+            try {
+                changing(group);
+                // Another thread could have changed the group
+                // since we chose it. If so, choose again.
+                if (!placement.isStillValid(this, group, vol.getCode(), choice)) {
+                    continue;
+                }
 
-        myGroups.get(best).addVolunteer(vol);
-        return best;
+                int slot = group.addMember(vol, id);
+                mIds.put(id, IdIndex.location(best, slot));
+                countChanged(group, vol, 1);
+                groupChanged(group);
+                for (MutationListener listener : mListeners) {
+                    listener.onAdd(best, vol.getCode(), 1, id);
+                }
+                mMetrics.record(Metrics.ADD, start);
+                return best;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
     }
 
     /*
@@ -65,10 +319,296 @@ public class SkillSorter extends SerializableSet<CommunityGroup> implements Skil
         myAddVolunteer(vol);
     }
     
+    /*
+     * Add many volunteers with the same skills at once
+     * The result is exactly the same as calling @{myAddVolunteer} `count` times
+     * but it doesn't look for the best group for every single volunteer.
+     *
+     * When a volunteer is added to a group, its score (see @{bestGroup})
+     * for the same skills grows by a fixed step, so the scores a group
+     * will have are s, s + step, s + 2 * step, ... (until it is full).
+     * Adding one by one always takes the smallest of all these scores,
+     * so adding `count` volunteers takes the `count` smallest ones.
+     * We find the threshold T with a binary search: every group gets all its
+     * scores below T, and the rest go to the groups that have T itself,
+     * in the order of the groups (as @{bestGroup} prefers the first group).
+     *
+     * @vol: the volunteer
+     * @count: how many of this volunteer to add
+     * @return: how many were actually added. Less than `count` only if
+     *   all the groups have become full.
+     * throw @{java.lang.IllegalStateException} if changes are refused (see @{setReadOnly})
+     */
+    public int addVolunteers(Volunteer vol, int count) throws IllegalStateException {
+        vol = canonical(vol);
+        if (count <= BULK_THRESHOLD || !mPlacement.isExact()) {
+            // Not worth it (or not what the placement would do).
+            // Just add one by one.
+            for (int i = 0; i < count; i++) {
+                try {
+                    myAddVolunteer(vol);
+                } catch (IllegalStateException e) {
+                    if (mReadOnly != null) {
+                        throw e;
+                    }
+                    return i; // All full
+                }
+            }
+            return count;
+        }
+
+        long start = System.nanoTime();
+        long[] stamps = lockAll(true);
+        try {
+            checkWritable();
+            int added = addVolunteersLocked(vol, count);
+            if (added < count) {
+                mMetrics.rejected();
+            }
+            return added;
+        } finally {
+            unlockAll(stamps);
+            mMetrics.record(Metrics.BULK_ADD, start);
+        }
+    }
+
+    /*
+     * @{addVolunteers} with all the groups locked
+     */
+    private int addVolunteersLocked(Volunteer vol, int count) {
+        int code = vol.getCode();
+        int s1 = mTable.getSkill(code, 0);
+        int s2 = mTable.getSkill(code, 1);
+        int s3 = mTable.getSkill(code, 2);
+        // Each of the 3 skills of the volunteer adds its own points to the score
+        long step = 1 + vol.getSkillPoint(s1) + vol.getSkillPoint(s2) + vol.getSkillPoint(s3);
+
+        // The current score of every group, Long.MAX_VALUE if full
+        long[] scores = new long[myGroups.size()];
+        long lowest = Long.MAX_VALUE;
+        long room = 0;
+        for (int i = 0; i < myGroups.size(); i++) {
+            CommunityGroup group = myGroups.get(i);
+            if (group.isFull()) {
+                scores[i] = Long.MAX_VALUE;
+            } else {
+                scores[i] = group.howManyVolunteers() + group.getSkillPoint(s1)
+                        + group.getSkillPoint(s2) + group.getSkillPoint(s3);
+                lowest = Math.min(lowest, scores[i]);
+                room += group.getRoom();
+            }
+        }
+
+        if (room == 0) {
+            return 0;
+        }
+        count = (int) Math.min(count, room);
+
+        // Smallest T such that there are at least `count` scores <= T
+        // Taking `count` steps from the lowest score is always enough.
+        long low = lowest, high = lowest + step * count;
+        while (low < high) {
+            long mid = low + (high - low) / 2;
+            if (scoresBelow(scores, step, mid + 1) >= count) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        long threshold = low;
+
+        // Everything below T, then the groups that have exactly T
+        int left = count - (int) scoresBelow(scores, step, threshold);
+        int changed = 0;
+        for (int i = 0; i < myGroups.size(); i++) {
+            if (scores[i] > threshold) {
+                continue;
+            }
+
+            CommunityGroup group = myGroups.get(i);
+            long take = Math.min(group.getRoom(), (threshold - scores[i] + step - 1) / step);
+            if (left > 0 && take < group.getRoom() && (threshold - scores[i]) % step == 0) {
+                take++;
+                left--;
+            }
+
+            if (take > 0) {
+                long firstId = addMembers(group, vol, (int) take, 0);
+                countChanged(group, vol, (int) take);
+                updateOpenGroups(group);
+                changed++;
+                for (MutationListener listener : mListeners) {
+                    listener.onAdd(i, code, (int) take, firstId);
+                }
+            }
+        }
+
+        // Refreshing every changed group in the indexes can be more expensive
+        // than just rebuilding them when they are needed next time
+        if (changed > mGroupNum / 8) {
+            if (mIndex != null) {
+                mIndex.invalidate();
+            }
+            mQueries.invalidate();
+        } else {
+            for (int i = 0; i < myGroups.size(); i++) {
+                if (scores[i] <= threshold) {
+                    if (mIndex != null) {
+                        mIndex.update(i);
+                    }
+                    mQueries.update(i);
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /*
+     * Add volunteers with the same skills to a group and index their IDs
+     * (with the lock of the group held)
+     * @group: the group
+     * @vol: the volunteer
+     * @count: how many of them. They must fit.
+     * @firstId: the ID of the first one, the others follow,
+     *   or 0 to give them new IDs
+     * @return: the ID of the first one
+     */
+    private long addMembers(CommunityGroup group, Volunteer vol, int count, long firstId) {
+        pageIn(group);
+        if (firstId == 0) {
+            firstId = mNextId.getAndAdd(count);
+        } else if (firstId < EXTERNAL_IDS) {
+            // Never give these out again
+            long next = firstId + count;
+            mNextId.accumulateAndGet(next, Math::max);
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = group.addMember(vol, firstId + i);
+            mIds.put(firstId + i, IdIndex.location(group.getIndex(), slot));
+        }
+        return firstId;
+    }
+
+    /*
+     * Count how many scores below a limit all the groups have together
+     * Helper for @{addVolunteers}
+     * @scores: the current score of each group (Long.MAX_VALUE if full)
+     * @step: how much the score grows for each volunteer added
+     * @limit: only scores < limit are counted
+     */
+    private long scoresBelow(long[] scores, long step, long limit) {
+        long total = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] < limit) {
+                total += Math.min(myGroups.get(i).getRoom(), (limit - scores[i] + step - 1) / step);
+            }
+        }
+        return total;
+    }
+
+    /*
+     * Same but with the number of volunteers for each skill code
+     * @counts: how many volunteers to add for each skill code
+     * @return: how many were actually added
+     */
+    public long addVolunteers(int[] counts) {
+        long added = 0;
+        for (int code = 0; code < counts.length; code++) {
+            if (counts[code] > 0) {
+                added += addVolunteers(mTable.getVolunteer(code), counts[code]);
+            }
+        }
+        return added;
+    }
+
+    /*
+     * Add volunteers from a stream of skill sets
+     * The skill sets can be separated by new lines, commas or spaces
+     * e.g. "ABC\nBBA\n" or "ABC,BBA,CDE"
+     * The stream is read in small chunks and placed in batches
+     * (see @{addVolunteers(int[])}), so it can be as large as needed.
+     * Invalid skill sets are skipped, and if all the groups are full
+     * the rest of the volunteers are rejected.
+     * @reader: where to read the skill sets from
+     * @return: how many volunteers are imported, skipped and rejected
+     */
+    public ImportResult importVolunteers(Reader reader) throws IOException {
+        ImportResult result = new ImportResult();
+        int[] batch = new int[mTable.getCombinationNum()];
+        int batchSize = 0;
+
+        char[] buffer = new char[8192];
+        char[] token = new char[SKILLS_PER_VOLUNTEER];
+        int tokenLength = 0;
+        int read;
+        do {
+            read = reader.read(buffer);
+            for (int i = 0; i <= read; i++) {
+                // Treat the end of the stream as a separator
+                char c = i < read ? buffer[i] : ',';
+                if (c != ',' && c != ';' && !Character.isWhitespace(c)) {
+                    // Part of a skill set
+                    if (tokenLength < token.length) {
+                        token[tokenLength] = Character.toUpperCase(c);
+                    }
+                    tokenLength++;
+                    continue;
+                } else if (tokenLength == 0) {
+                    continue; // Multiple separators
+                }
+
+                // A whole skill set has been read
+                try {
+                    if (tokenLength != token.length) {
+                        throw new IllegalArgumentException("A person can only have 3 skills");
+                    }
+                    batch[mTable.parse(token[0], token[1], token[2])]++;
+                    batchSize++;
+                } catch (IllegalArgumentException e) {
+                    result.skipped++;
+                }
+                tokenLength = 0;
+
+                if (batchSize == IMPORT_BATCH_SIZE) {
+                    flushImport(batch, batchSize, result);
+                    batchSize = 0;
+                }
+            }
+        } while (read >= 0);
+
+        flushImport(batch, batchSize, result);
+        return result;
+    }
+
+    /*
+     * Place a batch of volunteers for @{importVolunteers}
+     * and reset the batch
+     */
+    private void flushImport(int[] batch, int batchSize, ImportResult result) {
+        long added = addVolunteers(batch);
+        result.imported += added;
+        result.rejected += batchSize - added;
+        Arrays.fill(batch, 0);
+    }
+
+    /*
+     * The outcome of @{importVolunteers}
+     */
+    public static final class ImportResult {
+        // Volunteers added to the groups
+        public long imported = 0;
+        // Invalid skill sets
+        public long skipped = 0;
+        // Valid volunteers that didn't fit because all groups were full
+        public long rejected = 0;
+    }
+
     /*
      * Delete a volunteer from a group and add to another group
      * If no such volunteer is found, @{java.lang.IllegalArgumentException} will be thrown
      * If the target group is full, @{java.lang.IllegalStateException} will be thrown
+     * Nothing is changed if either of them is thrown.
      * 
      * @skillSet: the skills the volunteer has. if invalid,
      *  @{java.lang.IllegalArgumentException} will be thrown.
@@ -77,10 +617,7 @@ public class SkillSorter extends SerializableSet<CommunityGroup> implements Skil
      */
     @Override
     public void moveVolunteer(String skillSet, CommunityGroup from, CommunityGroup to) throws IllegalArgumentException, IllegalStateException {
-        // We need to add first
-        // because if the target group is full, the whole operation can break here.
-        to.addVolunteer(new Volunteer(skillSet));
-        deleteVolunteer(skillSet, from);
+        moveVolunteer(mTable.getVolunteer(skillSet), from, to);
     }
 
     /*
@@ -89,7 +626,65 @@ public class SkillSorter extends SerializableSet<CommunityGroup> implements Skil
     public void moveVolunteer(String skillSet, int fromIndex, int toIndex) throws IllegalArgumentException, IllegalStateException {
         assertGroup(fromIndex);
         assertGroup(toIndex);
-        moveVolunteer(skillSet, myGroups.get(fromIndex), myGroups.get(toIndex));
+        moveVolunteer(mTable.getVolunteer(skillSet), myGroups.get(fromIndex), myGroups.get(toIndex));
+    }
+
+    /*
+     * Same but with a volunteer instead of a skill set
+     */
+    void moveVolunteer(Volunteer vl, CommunityGroup from, CommunityGroup to) throws IllegalArgumentException, IllegalStateException {
+        move(vl, from, to, false);
+    }
+
+    /*
+     * Move a volunteer only if that makes the groups better balanced
+     * (the cost, see @{costFunc}, goes down), checked and done at once.
+     * Used to apply a plan made earlier (see @{Rebalancer})
+     * while other changes may have been made since.
+     * @return: false if nothing is moved, because the volunteer is not
+     *   in `from` any more, `to` is full or the move doesn't help
+     */
+    boolean moveIfBetter(Volunteer vl, CommunityGroup from, CommunityGroup to) {
+        return move(vl, from, to, true);
+    }
+
+    /*
+     * @{moveVolunteer} and @{moveIfBetter}
+     */
+    private boolean move(Volunteer vl, CommunityGroup from, CommunityGroup to, boolean onlyIfBetter) throws IllegalArgumentException, IllegalStateException {
+        long start = System.nanoTime();
+        vl = canonical(vl);
+
+        // Lock in the order of the indexes, as everywhere else
+        CommunityGroup first = from.getIndex() <= to.getIndex() ? from : to;
+        CommunityGroup second = first == from ? to : from;
+        long firstStamp = first.getLock().writeLock();
+        long secondStamp = second != first ? second.getLock().writeLock() : 0;
+        try {
+            changing(first, second);
+            if (onlyIfBetter && (from == to || from.getCount(vl.getCode()) == 0
+                    || to.isFull() || !isBetterMove(vl, from, to))) {
+                return false;
+            }
+
+            // Check everything first
+            // so that we never end up with only half of the move done
+            if (from.getCount(vl.getCode()) == 0) {
+                throw new IllegalArgumentException("Skill set " + vl.getSkillSet() + " not found.");
+            } else if (from != to && to.isFull()) {
+                mMetrics.rejected();
+                throw new IllegalStateException("This group is full.");
+            }
+
+            moved(from.removeLast(vl.getCode()), from, to, vl);
+            mMetrics.record(Metrics.MOVE, start);
+            return true;
+        } finally {
+            if (second != first) {
+                second.getLock().unlockWrite(secondStamp);
+            }
+            first.getLock().unlockWrite(firstStamp);
+        }
     }
     
     /*
@@ -102,9 +697,7 @@ public class SkillSorter extends SerializableSet<CommunityGroup> implements Skil
      */
     @Override
     public void deleteVolunteer(String skillSet, CommunityGroup from) throws IllegalArgumentException {
-        if (!from.removeVolunteer(skillSet)) {
-            throw new IllegalArgumentException("Skill set " + skillSet + " not found.");
-        }
+        deleteVolunteer(mTable.getVolunteer(skillSet), from);
     }
 
     /*
@@ -112,162 +705,1213 @@ public class SkillSorter extends SerializableSet<CommunityGroup> implements Skil
      */
     public void deleteVolunteer(String skillSet, int fromIndex) throws IllegalArgumentException {
         assertGroup(fromIndex);
-        deleteVolunteer(skillSet, myGroups.get(fromIndex));
+        deleteVolunteer(mTable.getVolunteer(skillSet), myGroups.get(fromIndex));
     }
-    
+
     /*
-     * Remove all volunteers from all groups
+     * Same but with a volunteer instead of a skill set
+     * @return: the ID of the volunteer deleted
      */
-    @Override
-    public void deleteAllVolunteers() {
-        for (int i = 0; i < myGroups.size(); i++) {
-            myGroups.get(i).clearVolunteers();
+    long deleteVolunteer(Volunteer vl, CommunityGroup from) throws IllegalArgumentException {
+        long start = System.nanoTime();
+        vl = canonical(vl);
+        StampedLock lock = from.getLock();
+        long stamp = lock.writeLock();
+        try {
+            changing(from);
+            long id = from.removeLast(vl.getCode());
+            if (id == 0) {
+                throw new IllegalArgumentException("Skill set " + vl.getSkillSet() + " not found.");
+            }
+            deleted(id, from, vl);
+            mMetrics.record(Metrics.DELETE, start);
+            return id;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
-    @Override
-    public ArrayList<CommunityGroup> getCommunityGroups() {
-        //return an ArrayList of all this application's CommunityGroups
-        return myGroups;
+    /*
+     * Move a volunteer with some skills to a group, from whichever
+     * other group makes the groups best balanced
+     * (the one with the highest score, see @{bestSource})
+     * throw @{java.lang.IllegalArgumentException} if no other group has such a volunteer
+     * throw @{java.lang.IllegalStateException} if the new group is full
+     * @skillSet: the skills of the volunteer
+     * @toIndex: the new group
+     * @return: the group it was moved from
+     */
+    public int moveFromBest(String skillSet, int toIndex) throws IllegalArgumentException, IllegalStateException {
+        long start = System.nanoTime();
+        assertGroup(toIndex);
+        Volunteer vl = mTable.getVolunteer(skillSet);
+        CommunityGroup to = myGroups.get(toIndex);
+        while (true) {
+            int fromIndex = bestSource(vl, toIndex);
+            if (fromIndex < 0) {
+                throw new IllegalArgumentException("Skill set " + vl.getSkillSet() + " not found in other groups.");
+            }
+            CommunityGroup from = myGroups.get(fromIndex);
+
+            CommunityGroup first = from.getIndex() <= to.getIndex() ? from : to;
+            CommunityGroup second = first == from ? to : from;
+            long firstStamp = first.getLock().writeLock();
+            long secondStamp = second.getLock().writeLock();
+            try {
+                changing(first, second);
+                // It may have been taken before we got the locks
+                if (from.getCount(vl.getCode()) == 0) {
+                    continue;
+                } else if (to.isFull()) {
+                    mMetrics.rejected();
+                    throw new IllegalStateException("This group is full.");
+                }
+                moved(from.removeLast(vl.getCode()), from, to, vl);
+                mMetrics.record(Metrics.MOVE, start);
+                return fromIndex;
+            } finally {
+                second.getLock().unlockWrite(secondStamp);
+                first.getLock().unlockWrite(firstStamp);
+            }
+        }
     }
 
     /*
-     * Print all the statistics about all the groups
-     * One line for one group
+     * Delete a volunteer with some skills from whichever group
+     * makes the groups best balanced (see @{bestSource})
+     * throw @{java.lang.IllegalArgumentException} if no group has such a volunteer
+     * @skillSet: the skills of the volunteer
+     * @return: the group it was deleted from
      */
-    public void printAll() {
-        for (int i = 0; i < myGroups.size(); i++) {
-            System.out.println(i + ": " + myGroups.get(i).toString());
+    public int deleteFromBest(String skillSet) throws IllegalArgumentException {
+        long start = System.nanoTime();
+        Volunteer vl = mTable.getVolunteer(skillSet);
+        while (true) {
+            int index = bestSource(vl, -1);
+            if (index < 0) {
+                throw new IllegalArgumentException("Skill set " + vl.getSkillSet() + " not found.");
+            }
+            CommunityGroup from = myGroups.get(index);
+            StampedLock lock = from.getLock();
+            long stamp = lock.writeLock();
+            try {
+                changing(from);
+                long id = from.removeLast(vl.getCode());
+                if (id == 0) {
+                    continue;
+                }
+                deleted(id, from, vl);
+                mMetrics.record(Metrics.DELETE, start);
+                return index;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
         }
     }
 
     /*
-     * Retrieve status on how many volunteers
-     * the specified group has for each possible combination of skills
-     * @groupIndex: the group.
+     * The groups that have volunteers with some skills, in order
+     * @skillSet: the skills
      */
-    public HashMap<String, Integer> getStats(int groupIndex) {
-        assertGroup(groupIndex);
-        return myGroups.get(groupIndex).getStats();
+    public int[] groupsWith(String skillSet) throws IllegalArgumentException {
+        return mHolders.groups(mTable.getVolunteer(skillSet).getCode());
     }
 
     /*
-     * Return nothing if the index points to a valid group
-     * otherwise throw a @{java.lang.IllegalArgumentException}
+     * Move a volunteer by its ID, in constant time
+     * throw @{java.lang.IllegalArgumentException} if there is no such volunteer
+     * throw @{java.lang.IllegalStateException} if the new group is full
+     * @id: the ID of the volunteer
+     * @toIndex: the new group
      */
-    private void assertGroup(int index) throws IllegalArgumentException {
-        if (index >= myGroups.size()) {
-            throw new IllegalArgumentException("Illegal group index " + index);
+    public void moveVolunteer(long id, int toIndex) throws IllegalArgumentException, IllegalStateException {
+        long start = System.nanoTime();
+        assertGroup(toIndex);
+        CommunityGroup to = myGroups.get(toIndex);
+        while (true) {
+            long location = findId(id);
+            CommunityGroup from = myGroups.get(IdIndex.group(location));
+            int slot = IdIndex.slot(location);
+
+            CommunityGroup first = from.getIndex() <= to.getIndex() ? from : to;
+            CommunityGroup second = first == from ? to : from;
+            long firstStamp = first.getLock().writeLock();
+            long secondStamp = second != first ? second.getLock().writeLock() : 0;
+            try {
+                changing(first, second);
+                // It may have been moved before we got the locks
+                if (from.getIdAt(slot) != id) {
+                    continue;
+                }
+                if (from == to) {
+                    return;
+                } else if (to.isFull()) {
+                    mMetrics.rejected();
+                    throw new IllegalStateException("This group is full.");
+                }
+
+                Volunteer vl = mTable.getVolunteer(from.removeAt(slot));
+                moved(id, from, to, vl);
+                mMetrics.record(Metrics.MOVE, start);
+                return;
+            } finally {
+                if (second != first) {
+                    second.getLock().unlockWrite(secondStamp);
+                }
+                first.getLock().unlockWrite(firstStamp);
+            }
         }
     }
 
     /*
-     * Return an array of the points of skill X across all groups
+     * Delete a volunteer by its ID, in constant time
+     * throw @{java.lang.IllegalArgumentException} if there is no such volunteer
+     * @id: the ID of the volunteer
      */
-    private int[] getSkillPoints(int skillIndex) {
-        int[] ret = new int[myGroups.size()]; // The array is fixed-length
-        for (int i = 0; i < myGroups.size(); i++) {
-            ret[i] = myGroups.get(i).getSkillPoint(skillIndex);
+    public void deleteVolunteer(long id) throws IllegalArgumentException {
+        long start = System.nanoTime();
+        while (true) {
+            long location = findId(id);
+            CommunityGroup from = myGroups.get(IdIndex.group(location));
+            int slot = IdIndex.slot(location);
+
+            StampedLock lock = from.getLock();
+            long stamp = lock.writeLock();
+            try {
+                changing(from);
+                if (from.getIdAt(slot) != id) {
+                    continue;
+                }
+                Volunteer vl = mTable.getVolunteer(from.removeAt(slot));
+                deleted(id, from, vl);
+                mMetrics.record(Metrics.DELETE, start);
+                return;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
         }
-        return ret;
     }
 
     /*
-     * Return an array of the total members in each group
+     * Which group a volunteer is in
+     * throw @{java.lang.IllegalArgumentException} if there is no such volunteer
+     * @id: the ID of the volunteer
      */
-    private int[] getMemberTotals() {
-        int[] ret = new int[myGroups.size()];
-        for (int i = 0; i < myGroups.size(); i++) {
-            ret[i] = myGroups.get(i).howManyVolunteers();
-        }
-        return ret;
+    public int getGroupOf(long id) throws IllegalArgumentException {
+        return IdIndex.group(findId(id));
     }
 
     /*
-     * Determine which group to add a volunteer to
-     * that will make the cost function (defined below) be closest to 0
-     * return -1 if no such group could be found (e.g. all of them are full)
-     * @vl: the volunteer
+     * Where a volunteer is and its skills
+     * @id: the ID of the volunteer
+     * @return: (group << 32) | skill code, or -1 if there is no such volunteer
      */
-    private int bestGroup(Volunteer vl) {
-        double best = Double.MAX_VALUE;
-        int bestGroup = -1;
-        for (int i = 0; i < myGroups.size(); i++) {
-            double cost = costFunc(vl, i);
-            if (cost < best) { // Find the minimum possible value of the cost function
-                best = cost;
-                bestGroup = i;
+    long locate(long id) {
+        while (true) {
+            long location = lookup(id);
+            if (location < 0) {
+                return -1;
+            }
+            CommunityGroup group = myGroups.get(IdIndex.group(location));
+            int slot = IdIndex.slot(location);
+            long stamp = group.getLock().readLock();
+            try {
+                if (group.getIdAt(slot) == id) {
+                    return ((long) group.getIndex() << 32) | group.getCodeAt(slot);
+                }
+            } finally {
+                group.getLock().unlockRead(stamp);
             }
         }
-        return bestGroup;
     }
 
     /*
-     * Define a cost function to determine how well the groups are balanced
-     * after adding a volunteer to a group
-     * The closer the value is to 0, the better the distribution will be.
-     * This will not actually add the volunteer
-     * Formula:
-     *   (V(A) + V(B) + V(C) + V(D) + V(E) + V(S)) / 6
-     *  where
-     *   V(X) is the variance of skill X across all groups
-     *   V(S) is the variance of the sizes of all groups
-     * Exceptions: when a group is full, trying to add members to it
-     *   will always result in a cost of Double.MAX_VALUE
-     * 
-     * @vl: the volunteer
-     * @groupIndex: which group to add to
+     * The location of an ID in @{mIds}
+     * throw @{java.lang.IllegalArgumentException} if there is no such volunteer
      */
-    private double costFunc(Volunteer vl, int groupIndex) {
-        if (myGroups.get(groupIndex).isFull()) {
-            // If a group is full, set its cost to MAX_VALUE
-            // to avoid adding more members into it
-            // If every group is full, the program will
-            // throw an exception anyway.
-            return Double.MAX_VALUE;
+    private long findId(long id) throws IllegalArgumentException {
+        long location = lookup(id);
+        if (location < 0) {
+            throw new IllegalArgumentException("No volunteer with ID " + id);
         }
+        return location;
+    }
 
-        double cost = 0f;
-
-        // Add up all the cost caused by the distribution of skills
-        for (int i = 0; i < SKILL_NUM; i++) {
-            cost += varianceSkill(i, vl, groupIndex);
+    /*
+     * The location of an ID in @{mIds}, or -1 if there is no such volunteer
+     * If the group it was in when loaded hasn't paged in its members
+     * yet, it is paged in first (all of them without an ID table).
+     */
+    private long lookup(long id) {
+        long location = mIds.get(id);
+        if (location >= 0 || mUnpaged.get() == 0) {
+            return location;
         }
-
-        // and the cost caused by the distributon of sizes
-        cost += varianceSize(groupIndex);
-
-        return cost / (myGroups.size() + 1);
+        Snapshot.IdTable table = mIdTable;
+        if (table != null) {
+            int index = table.groupOf(id);
+            if (index < 0 || index >= myGroups.size()) {
+                return -1;
+            }
+            pageInLocking(myGroups.get(index));
+        } else {
+            for (CommunityGroup group : myGroups) {
+                pageInLocking(group);
+            }
+        }
+        return mIds.get(id);
     }
 
     /*
-     * Calculate the variance of a skill across all groups
-     * after adding a volunteer to a group
-     * This will not actually add the volunteer
-     * @skillIndex: which skill to calculate
-     * @vl: the new volunteer
-     * @groupIndex: the group to add to
+     * Same as @{pageIn}, taking the lock of the group
      */
-    private double varianceSkill(int skillIndex, Volunteer vl, int groupIndex) {
-        // Get the current skill points
-        int[] skillPoints = getSkillPoints(skillIndex);
-
-        // Pretend to add the volunteer to one group
-        skillPoints[groupIndex] += vl.getSkillPoint(skillIndex);
+    private void pageInLocking(CommunityGroup group) throws IllegalStateException {
+        if (group.isPagedIn()) {
+            return;
+        }
+        StampedLock lock = group.getLock();
+        long stamp = lock.writeLock();
+        try {
+            pageIn(group);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * Read the members of a group loaded lazily from a @{Snapshot}
+     * and index their IDs, if not done yet (with the write lock of the
+     * group held). Everything that changes a group does this first.
+     * throw @{java.lang.IllegalStateException} if they are corrupted
+     */
+    private void pageIn(CommunityGroup group) throws IllegalStateException {
+        if (group.isPagedIn()) {
+            return;
+        }
+        group.pageIn();
+        int index = group.getIndex();
+        group.forEachMember((slot, id) -> mIds.put(id, IdIndex.location(index, slot)));
+        if (mUnpaged.decrementAndGet() == 0) {
+            // Nothing is left to look up in the snapshot
+            mIdTable = null;
+        }
+    }
+
+    /*
+     * How many groups haven't paged in their members yet
+     */
+    int getUnpagedGroups() {
+        return mUnpaged.get();
+    }
+
+    /*
+     * Where the records of the members are
+     */
+    RecordStore getRecords() {
+        return mRecords;
+    }
+
+    /*
+     * Finish moving a volunteer, which has been taken out of its group:
+     * put it into the new one (with the locks of both held)
+     */
+    private void moved(long id, CommunityGroup from, CommunityGroup to, Volunteer vl) {
+        countChanged(from, vl, -1);
+        groupChanged(from);
+        int slot = to.addMember(vl, id);
+        mIds.put(id, IdIndex.location(to.getIndex(), slot));
+        countChanged(to, vl, 1);
+        groupChanged(to);
+
+        for (MutationListener listener : mListeners) {
+            listener.onMove(from.getIndex(), to.getIndex(), vl.getCode(), id);
+        }
+    }
+
+    /*
+     * Finish deleting a volunteer, which has been taken out of its group
+     * (with the lock of the group held)
+     */
+    private void deleted(long id, CommunityGroup from, Volunteer vl) {
+        mIds.remove(id);
+        countChanged(from, vl, -1);
+        groupChanged(from);
+
+        for (MutationListener listener : mListeners) {
+            listener.onDelete(from.getIndex(), vl.getCode(), id);
+        }
+    }
+
+    /*
+     * Add volunteers to a specific group, without balancing
+     * Used to replay changes that have been recorded (see @{Journal}),
+     * and for `put` requests (see @{Server})
+     * If the group is full, @{java.lang.IllegalStateException} will be thrown
+     * @vl: the volunteer
+     * @count: how many of them
+     * @groupIndex: the group
+     * @firstId: the ID of the first one, the others follow,
+     *   or 0 to give them new IDs
+     */
+    void addToGroup(Volunteer vl, int count, int groupIndex, long firstId) throws IllegalArgumentException, IllegalStateException {
+        assertGroup(groupIndex);
+        vl = canonical(vl);
+        CommunityGroup group = myGroups.get(groupIndex);
+        StampedLock lock = group.getLock();
+        long stamp = lock.writeLock();
+        try {
+            changing(group);
+            if (count > mCapacity - group.howManyVolunteers()) {
+                throw new IllegalStateException("This group doesn't have room for " + count + " volunteers.");
+            }
+            firstId = addMembers(group, vl, count, firstId);
+            countChanged(group, vl, count);
+            groupChanged(group);
+
+            for (MutationListener listener : mListeners) {
+                listener.onAdd(groupIndex, vl.getCode(), count, firstId);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /*
+     * Remove all volunteers from all groups
+     */
+    @Override
+    public void deleteAllVolunteers() {
+        long[] stamps = lockAll(true);
+        try {
+            checkWritable();
+            clearGroups();
+            for (MutationListener listener : mListeners) {
+                listener.onClear();
+            }
+        } finally {
+            unlockAll(stamps);
+        }
+    }
+
+    /*
+     * Start notifying a listener of every change
+     * @listener: the listener
+     */
+    void addMutationListener(MutationListener listener) {
+        mListeners.add(listener);
+    }
+
+    /*
+     * Stop notifying a listener
+     * @listener: the listener
+     */
+    void removeMutationListener(MutationListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /*
+     * Replace all the groups with counts read from a buffer
+     * Used to load binary snapshots, see @{Snapshot}
+     * If anything goes wrong, everything will be deleted.
+     * @counts: the counts of every skill code of every group, in order
+     * @ids: the IDs of the members of every group, in order
+     *   (see @{CommunityGroup.copyIds}), or null to give them new IDs
+     * @nextId: the next ID to give out, or 0 to continue after the IDs
+     */
+    void restore(IntBuffer counts, LongBuffer ids, long nextId) throws Serializable.DeserializationException {
+        long[] stamps = lockAll(true);
+        try {
+            mNextId.set(nextId > 0 ? nextId : 1);
+            for (int i = 0; i < myGroups.size(); i++) {
+                myGroups.get(i).restore(counts, ids);
+            }
+            recalculateAggregates();
+        } catch (BufferUnderflowException e) {
+            clearGroups();
+            throw new Serializable.DeserializationException("Not enough member counts or IDs");
+        } catch (Serializable.DeserializationException e) {
+            clearGroups();
+            throw e;
+        } finally {
+            unlockAll(stamps);
+        }
+    }
+
+    /*
+     * Same, but the IDs of each group are read when first needed
+     * (see @{pageIn})
+     * @segments: where the IDs of each group are, null for an empty group
+     * @table: which group each ID is in, or null if the snapshot has none
+     */
+    void restoreLazily(IntBuffer counts, Snapshot.Segment[] segments, Snapshot.IdTable table, long nextId)
+            throws Serializable.DeserializationException {
+        long[] stamps = lockAll(true);
+        try {
+            mNextId.set(nextId > 0 ? nextId : 1);
+            for (int i = 0; i < myGroups.size(); i++) {
+                myGroups.get(i).restoreLazily(counts, segments[i]);
+            }
+            recalculateAggregates();
+            mIdTable = mUnpaged.get() > 0 ? table : null;
+        } catch (BufferUnderflowException e) {
+            clearGroups();
+            throw new Serializable.DeserializationException("Not enough member counts");
+        } catch (Serializable.DeserializationException e) {
+            clearGroups();
+            throw e;
+        } finally {
+            unlockAll(stamps);
+        }
+    }
+
+    /*
+     * The next ID that will be given out
+     */
+    long getNextId() {
+        return mNextId.get();
+    }
+
+    @Override
+    public ArrayList<CommunityGroup> getCommunityGroups() {
+        //return an ArrayList of all this application's CommunityGroups
+        return myGroups;
+    }
+
+    /*
+     * Print all the statistics about all the groups
+     * One line for one group
+     */
+    public void printAll() {
+        GroupView[] groups = view();
+        for (int i = 0; i < groups.length; i++) {
+            System.out.println(i + ": " + groups[i].toString());
+        }
+    }
+
+    /*
+     * Retrieve status on how many volunteers
+     * the specified group has for each possible combination of skills
+     * @groupIndex: the group.
+     */
+    public HashMap<String, Integer> getStats(int groupIndex) {
+        assertGroup(groupIndex);
+        return view(groupIndex).getStats();
+    }
+
+    /*
+     * A consistent point-in-time view of all the groups
+     * as if every change had been made either before or after it
+     * (a move is never half-way), taken without blocking any change.
+     *
+     * How it works: the view takes the next epoch E, and every change
+     * made from then on is in epoch E + 1. A group that is about to be
+     * changed in a later epoch than its last change first keeps a copy
+     * of itself (@{CommunityGroup.beforeChange}), so the view reads
+     * either that copy or the group itself if it hasn't changed since.
+     * A change reads the epoch once, with all its groups locked,
+     * so it is in the same epoch for all of them. Writers pay for one
+     * copy per group per view, and only for the groups they change.
+     * @return: one view for each group, in order
+     */
+    public GroupView[] view() {
+        synchronized (mViewLock) {
+            long epoch = mEpoch.getAndIncrement();
+            GroupView[] views = new GroupView[myGroups.size()];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = myGroups.get(i).viewAt(epoch);
+            }
+            return views;
+        }
+    }
+
+    /*
+     * Same for one group
+     */
+    public GroupView view(int groupIndex) throws IllegalArgumentException {
+        assertGroup(groupIndex);
+        synchronized (mViewLock) {
+            return myGroups.get(groupIndex).viewAt(mEpoch.getAndIncrement());
+        }
+    }
+
+    /*
+     * Pin the members of every group for a @{Snapshot} (see
+     * @{CommunityGroup.pin}) and take a view of the groups at the same
+     * point, as @{view} does. The groups are locked only while they are
+     * pinned, which is O(groups), so no change is half-way done then.
+     * Changes that have already been made have also been passed to
+     * the listeners by then.
+     * @members: where the groups keep their IDs for the snapshot
+     * @during: called at that point, with the groups locked,
+     *   e.g. to read a sequence number that must match. It must not
+     *   change the groups.
+     * @return: one view for each group, in order
+     */
+    GroupView[] pin(Snapshot.Members members, Runnable during) {
+        synchronized (mViewLock) {
+            long epoch;
+            long[] stamps = lockAll(false);
+            try {
+                epoch = mEpoch.getAndIncrement();
+                during.run();
+                for (CommunityGroup group : myGroups) {
+                    group.pin(members);
+                }
+            } finally {
+                unlockAll(stamps);
+            }
+            GroupView[] views = new GroupView[myGroups.size()];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = myGroups.get(i).viewAt(epoch);
+            }
+            return views;
+        }
+    }
+
+    /*
+     * Pass as the skill to the queries below
+     * to rank the groups by their number of members
+     */
+    public static final int MEMBERS = -1;
+
+    /*
+     * A group and one of its totals, as returned by the queries below
+     */
+    public static final class GroupTotal {
+        public final int group;
+        public final int total;
+
+        GroupTotal(int group, int total) {
+            this.group = group;
+            this.total = total;
+        }
+    }
+
+    /*
+     * The groups with the least of a skill, fewest first
+     * Ties are ranked by the group index. O(k log(groups))
+     * @skill: the index of the skill, or MEMBERS
+     * @k: how many groups at most
+     */
+    public List<GroupTotal> lowestGroups(int skill, int k) throws IllegalArgumentException {
+        return toGroupTotals(mQueries.top(queryTotal(skill, k), k, false));
+    }
+
+    /*
+     * The groups with the most of a skill, most first
+     * Ties are ranked by the group index. O(k log(groups))
+     * @skill: the index of the skill, or MEMBERS
+     * @k: how many groups at most
+     */
+    public List<GroupTotal> highestGroups(int skill, int k) throws IllegalArgumentException {
+        return toGroupTotals(mQueries.top(queryTotal(skill, k), k, true));
+    }
+
+    /*
+     * The groups with less than `limit` of a skill, fewest first
+     * O(results * log(groups))
+     * @skill: the index of the skill, or MEMBERS
+     * @limit: the limit
+     */
+    public List<GroupTotal> groupsBelow(int skill, int limit) throws IllegalArgumentException {
+        return toGroupTotals(mQueries.range(queryTotal(skill, 0), limit, false));
+    }
+
+    /*
+     * The groups with at least `limit` of a skill, fewest first
+     * O(results * log(groups))
+     * @skill: the index of the skill, or MEMBERS
+     * @limit: the limit
+     */
+    public List<GroupTotal> groupsAtLeast(int skill, int limit) throws IllegalArgumentException {
+        return toGroupTotals(mQueries.range(queryTotal(skill, 0), limit, true));
+    }
+
+    /*
+     * Which total of @{QueryIndex} to query
+     * throw @{java.lang.IllegalArgumentException} if the arguments are wrong
+     */
+    private int queryTotal(int skill, int k) throws IllegalArgumentException {
+        if (skill != MEMBERS && (skill < 0 || skill >= mTable.getSkillNum())) {
+            throw new IllegalArgumentException("Illegal skill index " + skill);
+        } else if (k < 0) {
+            throw new IllegalArgumentException("Group count can't be minus.");
+        }
+        return skill == MEMBERS ? mTable.getSkillNum() : skill;
+    }
+
+    private List<GroupTotal> toGroupTotals(long[] keys) {
+        List<GroupTotal> result = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            result.add(new GroupTotal(mQueries.group(key), mQueries.value(key)));
+        }
+        return result;
+    }
+
+    /*
+     * Choose groups for new volunteers with another strategy
+     * from now on. The "place" latencies start again from 0.
+     * @placement: see @{PlacementStrategy}
+     */
+    void setPlacement(PlacementStrategy placement) {
+        mPlacement = placement;
+        mMetrics.reset(Metrics.PLACE);
+    }
+
+    PlacementStrategy getPlacement() {
+        return mPlacement;
+    }
+
+    /*
+     * Refuse every change from now on, e.g. because the changes can't be
+     * recorded any more (see @{Journal}). Reading and saving still work.
+     * @reason: what went wrong, told to everyone who tries to change something
+     */
+    void setReadOnly(String reason) {
+        mReadOnly = reason;
+    }
+
+    /*
+     * Why changes are refused, or null if they are not
+     */
+    String getReadOnly() {
+        return mReadOnly;
+    }
+
+    /*
+     * How many operations there have been and how long they took
+     */
+    Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /*
+     * The maximum members of each group
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /*
+     * The tables of skill codes used by this sorter
+     * Use this to create volunteers for this sorter.
+     */
+    SkillTable getTable() {
+        return mTable;
+    }
+
+    /*
+     * Return nothing if the index points to a valid group
+     * otherwise throw a @{java.lang.IllegalArgumentException}
+     */
+    private void assertGroup(int index) throws IllegalArgumentException {
+        if (index < 0 || index >= myGroups.size()) {
+            throw new IllegalArgumentException("Illegal group index " + index);
+        }
+    }
+
+    /*
+     * Get the instance of a volunteer that belongs to the tables of this sorter
+     * Volunteers created elsewhere (e.g. with the default tables) are converted
+     * by their skill set.
+     */
+    private Volunteer canonical(Volunteer vl) throws IllegalArgumentException {
+        if (vl.getTable() == mTable) {
+            return vl;
+        }
+        return mTable.getVolunteer(vl.getSkillSet());
+    }
+
+    /*
+     * Lock all the groups, in order
+     * @write: false to only prevent changes
+     * @return: the stamps to pass to @{unlockAll}
+     */
+    private long[] lockAll(boolean write) {
+        long[] stamps = new long[myGroups.size()];
+        for (int i = 0; i < stamps.length; i++) {
+            StampedLock lock = myGroups.get(i).getLock();
+            stamps[i] = write ? lock.writeLock() : lock.readLock();
+        }
+        if (write) {
+            long epoch = mEpoch.get();
+            for (CommunityGroup group : myGroups) {
+                group.beforeChange(epoch);
+            }
+        }
+        return stamps;
+    }
+
+    private void unlockAll(long[] stamps) {
+        for (int i = stamps.length - 1; i >= 0; i--) {
+            myGroups.get(i).getLock().unlock(stamps[i]);
+        }
+    }
+
+    /*
+     * Call these before changing groups, with their locks held
+     * See @{view}
+     */
+    private void changing(CommunityGroup group) throws IllegalStateException {
+        checkWritable();
+        pageIn(group);
+        group.beforeChange(mEpoch.get());
+    }
+
+    private void changing(CommunityGroup first, CommunityGroup second) throws IllegalStateException {
+        checkWritable();
+        pageIn(first);
+        pageIn(second);
+        long epoch = mEpoch.get();
+        first.beforeChange(epoch);
+        second.beforeChange(epoch);
+    }
+
+    /*
+     * throw @{java.lang.IllegalStateException} if changes are refused
+     */
+    private void checkWritable() throws IllegalStateException {
+        String reason = mReadOnly;
+        if (reason != null) {
+            throw new IllegalStateException("No changes can be made. " + reason);
+        }
+    }
+
+    /*
+     * Update the indexes after a group has been changed
+     * Call this after the running aggregates are updated,
+     * while still holding the lock of the group.
+     * @group: the group
+     */
+    private void groupChanged(CommunityGroup group) {
+        updateOpenGroups(group);
+        if (mIndex != null) {
+            mIndex.update(group.getIndex());
+        }
+        mQueries.update(group.getIndex());
+    }
+
+    /*
+     * Add or remove a group from the open groups
+     * according to whether it is full now
+     * @group: the group
+     */
+    private void updateOpenGroups(CommunityGroup group) {
+        int index = group.getIndex();
+        boolean open = !group.isFull();
+        synchronized (mOpenLock) {
+            if (mOpen[index] == open) {
+                return;
+            }
+            mOpen[index] = open;
+
+            int[] groups = mOpenGroups;
+            int[] updated;
+            if (open) {
+                updated = Arrays.copyOf(groups, groups.length + 1);
+                updated[groups.length] = index;
+            } else {
+                // Move the last one to where this one was
+                updated = Arrays.copyOf(groups, groups.length - 1);
+                for (int i = 0; i < updated.length; i++) {
+                    if (updated[i] == index) {
+                        updated[i] = groups[groups.length - 1];
+                        break;
+                    }
+                }
+            }
+            mOpenGroups = updated;
+        }
+    }
+
+    /*
+     * Update the running aggregates right AFTER some volunteers
+     * with the same skills are added to or removed from a group
+     * Adding p points to a group that had x gives
+     *   sum' = sum + p
+     *   squares' = squares - x^2 + (x + p)^2
+     * @group: the group
+     * @vl: the volunteer
+     * @count: how many were added (negative if removed)
+     */
+    private void countChanged(CommunityGroup group, Volunteer vl, int count) {
+        int code = vl.getCode();
+        int now = group.getCount(code);
+        if ((now == 0) != (now - count == 0)) {
+            mHolders.set(code, group.getIndex(), now > 0);
+        }
+
+        for (int j = 0; j < SKILLS_PER_VOLUNTEER; j++) {
+            int i = mTable.getSkill(code, j);
+            if (j > 0 && i == mTable.getSkill(code, j - 1)) {
+                continue; // Skills are sorted, so this one has been counted
+            }
+
+            long p = (long) vl.getSkillPoint(i) * count;
+            long after = group.getSkillPoint(i);
+            long before = after - p;
+            mSkillSums[i].add(p);
+            mSkillSquares[i].add(after * after - before * before);
+        }
+
+        long after = group.howManyVolunteers();
+        long before = after - count;
+        mSizeSum.add(count);
+        mSizeSquares.add(after * after - before * before);
+    }
+
+    /*
+     * Remove all volunteers from all groups, without telling anyone
+     * (with all the groups locked)
+     */
+    private void clearGroups() {
+        for (int i = 0; i < myGroups.size(); i++) {
+            myGroups.get(i).clearVolunteers();
+        }
+        recalculateAggregates();
+    }
+
+    /*
+     * Rebuild all the running aggregates and indexes from the groups
+     * Only needed when the groups are replaced as a whole
+     * (e.g. deserialization or clearing), with all the groups locked
+     */
+    private void recalculateAggregates() {
+        int skillNum = mTable.getSkillNum();
+        for (int i = 0; i < skillNum; i++) {
+            mSkillSums[i].reset();
+            mSkillSquares[i].reset();
+        }
+        mSizeSum.reset();
+        mSizeSquares.reset();
+        mIds.clear();
+        mHolders.clear();
+        // Written by the visitor below
+        long[] maxId = {0};
+        int unpaged = 0;
+        int codeNum = mTable.getCombinationNum();
+
+        int[] open = new int[myGroups.size()];
+        int openNum = 0;
+        for (int index = 0; index < myGroups.size(); index++) {
+            CommunityGroup group = myGroups.get(index);
+            group.setIndex(index);
+            if (!group.isFull()) {
+                open[openNum++] = index;
+            }
+
+            for (int i = 0; i < skillNum; i++) {
+                long x = group.getSkillPoint(i);
+                mSkillSums[i].add(x);
+                mSkillSquares[i].add(x * x);
+            }
+
+            long n = group.howManyVolunteers();
+            mSizeSum.add(n);
+            mSizeSquares.add(n * n);
+
+            for (int code = 0; code < codeNum; code++) {
+                if (group.getCount(code) > 0) {
+                    mHolders.set(code, index, true);
+                }
+            }
+
+            // Indexed when paged in
+            if (!group.isPagedIn()) {
+                unpaged++;
+                continue;
+            }
+            int at = index;
+            group.forEachMember((slot, id) -> {
+                mIds.put(id, IdIndex.location(at, slot));
+                if (id < EXTERNAL_IDS) {
+                    maxId[0] = Math.max(maxId[0], id);
+                }
+            });
+        }
+        mNextId.accumulateAndGet(maxId[0] + 1, Math::max);
+        mUnpaged.set(unpaged);
+        mIdTable = null;
+        synchronized (mOpenLock) {
+            Arrays.fill(mOpen, false);
+            for (int i = 0; i < openNum; i++) {
+                mOpen[open[i]] = true;
+            }
+            mOpenGroups = Arrays.copyOf(open, openNum);
+        }
+
+        if (mIndex != null) {
+            mIndex.invalidate();
+        }
+        mQueries.invalidate();
+    }
+
+    /*
+     * Determine which group to add a volunteer to
+     * that will make the cost function (defined below) be closest to 0
+     * return -1 if no such group could be found (e.g. all of them are full)
+     * 
+     * Adding p points to group i only changes squares(X) by 2 * p * x_i + p^2
+     * and everything else in @{costFunc} is the same whichever group we choose.
+     * Thus minimizing the cost is the same as minimizing
+     *   p_A * A_i + p_B * B_i + ... + p_E * E_i + S_i
+     * which is the sum of (at most) 4 numbers per group,
+     * since a volunteer only has 3 skills.
+     * With many groups, @{PlacementIndex} is used instead of a scan.
+     * Nothing is locked, so the answer must be checked with
+     * @{isStillBest} once the group is locked.
+     * This is the "exact" @{PlacementStrategy}.
+     * @code: the skill code of the volunteer
+     * @return: the group index in the lower 32 bits, and the score
+     *   of the group above them (only for @{isStillBest})
+     */
+    long bestGroup(int code) {
+        if (mIndex != null) {
+            return mIndex.bestGroup(code);
+        }
+
+        int s1 = mTable.getSkill(code, 0);
+        int s2 = mTable.getSkill(code, 1);
+        int s3 = mTable.getSkill(code, 2);
+        long best = Long.MAX_VALUE;
+        int bestGroup = -1;
+
+        // Full groups are never considered
+        // If every group is full, the program will
+        // throw an exception anyway.
+        int[] open = mOpenGroups;
+        for (int i = 0; i < open.length; i++) {
+            int index = open[i];
+            long cost = score(myGroups.get(index), s1, s2, s3);
+
+            // Find the minimum possible value of the cost function
+            // Prefer the first group if there are more than one
+            if (cost < best || (cost == best && index < bestGroup)) {
+                best = cost;
+                bestGroup = index;
+            }
+        }
+        return bestGroup < 0 ? -1 : (best << 32) | bestGroup;
+    }
 
-        // Calculate the variance
-        return Utility.variance(skillPoints);
+    /*
+     * Determine which group to take a volunteer from
+     * so that the groups are best balanced afterwards
+     * Taking points away is the reverse of adding them (see @{bestGroup}),
+     * so the best group is the one with the highest score.
+     * Only the groups that have such a volunteer are looked at
+     * (see @{HolderIndex}). Nothing is locked, so the group
+     * must be checked to still have one once it is locked.
+     * @vl: the volunteer
+     * @exclude: a group not to choose, or -1
+     * @return: the group index, or -1 if no group has such a volunteer
+     */
+    private int bestSource(Volunteer vl, int exclude) {
+        int code = vl.getCode();
+        int s1 = mTable.getSkill(code, 0);
+        int s2 = mTable.getSkill(code, 1);
+        int s3 = mTable.getSkill(code, 2);
+        long best = -1;
+        int bestGroup = -1;
+        for (int index = mHolders.next(code, 0); index >= 0; index = mHolders.next(code, index + 1)) {
+            if (index == exclude) {
+                continue;
+            }
+            // Prefer the first group if there are more than one
+            long score = score(myGroups.get(index), s1, s2, s3, false);
+            if (score > best) {
+                best = score;
+                bestGroup = index;
+            }
+        }
+        return bestGroup;
+    }
+
+    /*
+     * Choose the group for a volunteer with a placement strategy,
+     * recording how long it took
+     * @return: what @{PlacementStrategy.choose} returns
+     */
+    private long choose(PlacementStrategy placement, int code) {
+        long start = System.nanoTime();
+        long choice = placement.choose(this, code);
+        mMetrics.record(Metrics.PLACE, start);
+        return choice;
+    }
+
+    /*
+     * Same as @{score}, for a @{PlacementStrategy}
+     * @groupIndex: the group
+     * @code: the skill code of the volunteer
+     */
+    long readScore(int groupIndex, int code) {
+        return score(myGroups.get(groupIndex), mTable.getSkill(code, 0), mTable.getSkill(code, 1), mTable.getSkill(code, 2));
     }
 
     /*
-     * Calculate the variance of the size across the groups
+     * The score (see @{bestGroup}) an average group has for a volunteer,
+     * from the running aggregates
+     * @code: the skill code of the volunteer
+     */
+    double averageScore(int code) {
+        long total = mSizeSum.sum();
+        for (int j = 0; j < SKILLS_PER_VOLUNTEER; j++) {
+            total += mSkillSums[mTable.getSkill(code, j)].sum();
+        }
+        return (double) total / myGroups.size();
+    }
+
+    /*
+     * The indexes of the groups that are not full, in no order
+     * Must not be changed.
+     */
+    int[] getOpenGroups() {
+        return mOpenGroups;
+    }
+
+    /*
+     * The score of a group (see @{bestGroup}) read without locking it
+     * Long.MAX_VALUE if the group is full
+     */
+    private long score(CommunityGroup group, int s1, int s2, int s3) {
+        return score(group, s1, s2, s3, true);
+    }
+
+    /*
+     * Same, but full groups are scored as usual if `fullIsWorst` is false
+     * This reads optimistically, and reads again if the group
+     * was being changed meanwhile.
+     */
+    private long score(CommunityGroup group, int s1, int s2, int s3, boolean fullIsWorst) {
+        StampedLock lock = group.getLock();
+        while (true) {
+            long stamp = lock.tryOptimisticRead();
+            long score = fullIsWorst && group.isFull() ? Long.MAX_VALUE
+                    : group.howManyVolunteers() + group.getSkillPoint(s1)
+                    + group.getSkillPoint(s2) + group.getSkillPoint(s3);
+            if (stamp != 0 && lock.validate(stamp)) {
+                return score;
+            }
+
+            // Being changed. Wait for it to finish.
+            stamp = lock.readLock();
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * Whether a group chosen by @{bestGroup} can still take the volunteer
+     * (with the lock of the group held)
+     * With @{PlacementIndex}, the index must still say it's the best.
+     * Otherwise the score must be what it was when it was chosen.
+     * Groups that were not chosen may have changed meanwhile, in which
+     * case the result is what adding the volunteers one after another
+     * in some order would give, which is all that can be asked for.
+     * @group: the group
+     * @code: the skill code of the volunteer
+     * @choice: returned by @{bestGroup}
+     */
+    boolean isStillBest(CommunityGroup group, int code, long choice) {
+        if (group.isFull()) {
+            return false;
+        } else if (mIndex != null) {
+            return mIndex.isBest(code, group.getIndex());
+        }
+
+        long score = group.howManyVolunteers() + group.getSkillPoint(mTable.getSkill(code, 0))
+                + group.getSkillPoint(mTable.getSkill(code, 1)) + group.getSkillPoint(mTable.getSkill(code, 2));
+        return score == (choice >>> 32);
+    }
+
+    /*
+     * Whether moving a volunteer between two groups lowers the cost
+     * (with the locks of both groups held)
+     * Moving the points p (and 1 member) from group a to group b changes
+     * the sum of squares of every skill and of the sizes by
+     *   2 * (score_b - score_a) + 2 * (1 + p_A^2 + p_B^2 + ...)
+     * where score is what @{bestGroup} uses, and everything else in
+     * @{costFunc} stays the same. Skill X is p_X of the 3 skills of the
+     * volunteer, so p_A^2 + p_B^2 + ... is the same as p(s1) + p(s2) + p(s3).
+     * @vl: the volunteer
+     * @from: the group it is in
+     * @to: the group to move to
+     */
+    private boolean isBetterMove(Volunteer vl, CommunityGroup from, CommunityGroup to) {
+        int code = vl.getCode();
+        int s1 = mTable.getSkill(code, 0);
+        int s2 = mTable.getSkill(code, 1);
+        int s3 = mTable.getSkill(code, 2);
+        long step = 1 + vl.getSkillPoint(s1) + vl.getSkillPoint(s2) + vl.getSkillPoint(s3);
+        long fromScore = from.howManyVolunteers() + from.getSkillPoint(s1) + from.getSkillPoint(s2) + from.getSkillPoint(s3);
+        long toScore = to.howManyVolunteers() + to.getSkillPoint(s1) + to.getSkillPoint(s2) + to.getSkillPoint(s3);
+        return fromScore - toScore > step;
+    }
+
+    /*
+     * Define a cost function to determine how well the groups are balanced
      * after adding a volunteer to a group
+     * The closer the value is to 0, the better the distribution will be.
      * This will not actually add the volunteer
-     * @groupIndex: the group to add to
+     * Formula:
+     *   (V(A) + V(B) + V(C) + V(D) + V(E) + V(S)) / 6
+     *  (with more terms if there are more skills)
+     *  where
+     *   V(X) is the variance of skill X across all groups
+     *   V(S) is the variance of the sizes of all groups
+     * Each variance is calculated from the running aggregates in O(1)
+     * Exceptions: when a group is full, trying to add members to it
+     *   will always result in a cost of Double.MAX_VALUE
+     * 
+     * @vl: the volunteer
+     * @groupIndex: which group to add to
+     */
+    public double costFunc(Volunteer vl, int groupIndex) throws IllegalArgumentException {
+        assertGroup(groupIndex);
+        vl = canonical(vl);
+        CommunityGroup group = myGroups.get(groupIndex);
+        if (group.isFull()) {
+            return Double.MAX_VALUE;
+        }
+
+        int n = myGroups.size();
+        double cost = 0f;
+
+        // Add up all the cost caused by the distribution of skills
+        for (int i = 0; i < mTable.getSkillNum(); i++) {
+            long p = vl.getSkillPoint(i);
+            long x = group.getSkillPoint(i);
+            cost += Utility.variance(mSkillSums[i].sum() + p, mSkillSquares[i].sum() + 2 * p * x + p * p, n);
+        }
+
+        // and the cost caused by the distributon of sizes
+        long size = group.howManyVolunteers();
+        cost += Utility.variance(mSizeSum.sum() + 1, mSizeSquares.sum() + 2 * size + 1, n);
+
+        return cost / (mTable.getSkillNum() + 1);
+    }
+
+    /*
+     * How much the cost will change if the volunteer is added to a group
+     * Negative values mean the groups will become better balanced.
+     * @vl: the volunteer
+     * @groupIndex: which group to add to
      */
-    private double varianceSize(int groupIndex) {
-        int[] totals = getMemberTotals();
-        totals[groupIndex] += 1;
-        return Utility.variance(totals);
+    public double deltaCost(Volunteer vl, int groupIndex) throws IllegalArgumentException {
+        return costFunc(vl, groupIndex) - imbalance();
+    }
+
+    /*
+     * The current value of the cost function (see @{costFunc})
+     * i.e. how badly the groups are balanced right now.
+     * 0 means perfectly balanced.
+     */
+    public double imbalance() {
+        int n = myGroups.size();
+        double cost = 0f;
+        for (int i = 0; i < mTable.getSkillNum(); i++) {
+            cost += Utility.variance(mSkillSums[i].sum(), mSkillSquares[i].sum(), n);
+        }
+        cost += Utility.variance(mSizeSum.sum(), mSizeSquares.sum(), n);
+        return cost / (mTable.getSkillNum() + 1);
     }
 }
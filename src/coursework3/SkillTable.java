@@ -0,0 +1,226 @@
+package coursework3;
+
+import java.util.Arrays;
+
+import static coursework3.Constants.INDEX_SKILL_MAP;
+import static coursework3.Constants.SKILLS_PER_VOLUNTEER;
+
+/*
+ * Lookup tables for skills and combinations of skills.
+ *
+ * Since every volunteer has exactly 3 skills out of a small set,
+ * there is only a finite number of different volunteers
+ * (35 for 5 skills). Each of these combinations is given a
+ * small integer ID (the "skill code"), from 0 to getCombinationNum() - 1,
+ * in the order of "AAA", "AAB", ..., "EEE".
+ *
+ * Everything about a combination is precomputed here,
+ * so that converting between skill codes, strings and skill points
+ * only costs an array index.
+ * This also holds one shared @{Volunteer} for each combination (flyweight).
+ */
+final class SkillTable {
+    /*
+     * The default table, built from @{Constants.INDEX_SKILL_MAP}
+     */
+    public static final SkillTable DEFAULT = new SkillTable(INDEX_SKILL_MAP);
+
+    // Only ASCII characters can be used as the name of a skill
+    private static final int MAX_CHAR = 128;
+
+    /*
+     * Map from skill index to skill name
+     */
+    private final char[] mSkillNames;
+
+    /*
+     * Map from skill name (as a char) to skill index
+     * -1 for characters that are not a skill
+     */
+    private final int[] mSkillIndexes = new int[MAX_CHAR];
+
+    /*
+     * Map from (i, j, k) to the skill code of a volunteer
+     * having the skills i, j and k, in any order.
+     * The position in the array is (i * n + j) * n + k
+     * where n is the number of skills.
+     */
+    private final int[] mCodes;
+
+    /*
+     * The string representation of each skill code, e.g. "AAB"
+     */
+    private final String[] mStrings;
+
+    /*
+     * The skills (indexes) of each skill code, sorted
+     * The skills of code c are at [c * 3, c * 3 + 3)
+     */
+    private final int[] mSkills;
+
+    /*
+     * The skill points of each skill code
+     * The points of skill i for code c is at [c * n + i]
+     */
+    private final byte[] mPoints;
+
+    /*
+     * The shared instance of @{Volunteer} for each skill code
+     */
+    private final Volunteer[] mVolunteers;
+
+    /*
+     * Build the tables for a set of skills
+     * @skillNames: the name of each skill. must be distinct ASCII characters
+     */
+    public SkillTable(char[] skillNames) throws IllegalArgumentException {
+        int n = skillNames.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("There must be at least one skill");
+        }
+
+        mSkillNames = skillNames.clone();
+        Arrays.fill(mSkillIndexes, -1);
+        for (int i = 0; i < n; i++) {
+            char name = skillNames[i];
+            if (name >= MAX_CHAR || mSkillIndexes[name] != -1) {
+                throw new IllegalArgumentException("Illegal skill name " + name);
+            }
+            mSkillIndexes[name] = i;
+        }
+
+        // The number of multisets of size 3 out of n elements
+        int total = n * (n + 1) * (n + 2) / 6;
+        mCodes = new int[n * n * n];
+        mStrings = new String[total];
+        mSkills = new int[total * SKILLS_PER_VOLUNTEER];
+        mPoints = new byte[total * n];
+        mVolunteers = new Volunteer[total];
+
+        // Enumerate all the combinations in order
+        int code = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                for (int k = j; k < n; k++) {
+                    // Every order of the same skills maps to the same code
+                    mCodes[(i * n + j) * n + k] = code;
+                    mCodes[(i * n + k) * n + j] = code;
+                    mCodes[(j * n + i) * n + k] = code;
+                    mCodes[(j * n + k) * n + i] = code;
+                    mCodes[(k * n + i) * n + j] = code;
+                    mCodes[(k * n + j) * n + i] = code;
+
+                    mStrings[code] = new String(new char[]{mSkillNames[i], mSkillNames[j], mSkillNames[k]});
+                    mSkills[code * SKILLS_PER_VOLUNTEER] = i;
+                    mSkills[code * SKILLS_PER_VOLUNTEER + 1] = j;
+                    mSkills[code * SKILLS_PER_VOLUNTEER + 2] = k;
+                    mPoints[code * n + i]++;
+                    mPoints[code * n + j]++;
+                    mPoints[code * n + k]++;
+                    mVolunteers[code] = new Volunteer(this, code);
+                    code++;
+                }
+            }
+        }
+    }
+
+    /*
+     * Total number of possible skills
+     */
+    public int getSkillNum() {
+        return mSkillNames.length;
+    }
+
+    /*
+     * Total number of possible combinations of skills
+     * i.e. all skill codes are in [0, getCombinationNum())
+     */
+    public int getCombinationNum() {
+        return mStrings.length;
+    }
+
+    /*
+     * Get the index of skill
+     * @skillName: name of the skill
+     */
+    public int getSkillIndex(char skillName) throws IllegalArgumentException {
+        int index = skillName < MAX_CHAR ? mSkillIndexes[skillName] : -1;
+        if (index < 0) {
+            throw new IllegalArgumentException("Illegal skill " + skillName);
+        }
+        return index;
+    }
+
+    /*
+     * Get the skill corresponding to the index
+     * @index: the index
+     */
+    public char getSkillName(int index) throws IllegalArgumentException {
+        if (index < 0 || mSkillNames.length <= index) {
+            throw new IllegalArgumentException("Cannot find the " + index + "-th skill");
+        }
+        return mSkillNames[index];
+    }
+
+    /*
+     * Parse a skill set string into its skill code
+     * @skills: e.g. "ABC", "BBA". The order doesn't matter
+     */
+    public int parse(String skills) throws IllegalArgumentException {
+        if (skills.length() != SKILLS_PER_VOLUNTEER) {
+            throw new IllegalArgumentException("A person can only have 3 skills");
+        }
+        return parse(skills.charAt(0), skills.charAt(1), skills.charAt(2));
+    }
+
+    /*
+     * Same but with the three skills given separately
+     */
+    public int parse(char a, char b, char c) throws IllegalArgumentException {
+        int n = mSkillNames.length;
+        return mCodes[(getSkillIndex(a) * n + getSkillIndex(b)) * n + getSkillIndex(c)];
+    }
+
+    /*
+     * Get the string representation of a skill code
+     * The skills are always sorted, e.g. "ABC" instead of "BCA"
+     * @code: the skill code
+     */
+    public String format(int code) {
+        return mStrings[code];
+    }
+
+    /*
+     * Get the j-th skill (index) of a skill code
+     * Skills are sorted, and repeated skills appear multiple times.
+     * @code: the skill code
+     * @j: 0, 1 or 2
+     */
+    public int getSkill(int code, int j) {
+        return mSkills[code * SKILLS_PER_VOLUNTEER + j];
+    }
+
+    /*
+     * Get the points of a skill in a skill code
+     * @code: the skill code
+     * @skillIndex: the skill
+     */
+    public int getSkillPoint(int code, int skillIndex) {
+        return mPoints[code * mSkillNames.length + skillIndex];
+    }
+
+    /*
+     * Get the shared @{Volunteer} instance of a skill code
+     * @code: the skill code
+     */
+    public Volunteer getVolunteer(int code) {
+        return mVolunteers[code];
+    }
+
+    /*
+     * Same but parse from a skill set string first
+     */
+    public Volunteer getVolunteer(String skills) throws IllegalArgumentException {
+        return mVolunteers[parse(skills)];
+    }
+}
@@ -0,0 +1,813 @@
+package coursework3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/*
+ * Binary snapshots of a @{SkillSorter}
+ *
+ * The state is how many members each group has for each skill code,
+ * followed by the IDs of the members. The file is laid out as
+ * (all big-endian):
+ *
+ *   magic ("CW3S"), version                           int, int
+ *   number of groups, capacity of each group          int, int
+ *   number of skills                                  int
+ *   sequence number of the last change included       long (since version 2)
+ *   next volunteer ID to give out                     long (since version 3)
+ *   name of each skill                                one byte each
+ *   count of each skill code of group 0, group 1, ... int each
+ *   CRC32 of the IDs of group 0, group 1, ...         int each (since version 4)
+ *   bits of the group in the ID table (or -1 if none) int (since version 4)
+ *   CRC32 of everything above                         int (since version 4)
+ *   ID of each member, in the same order              long each (since version 3)
+ *   ID table: (ID << bits) | group, sorted            long each (since version 4)
+ *   CRC32 of everything above                         int (up to version 3)
+ *
+ * Volunteers loaded from older versions are given new IDs.
+ *
+ * The sequence number tells which changes in the @{Journal}
+ * are already in the snapshot.
+ * Loading maps the file into memory and reads the counts straight
+ * into the groups, without any Strings in between.
+ *
+ * Since version 4 the IDs of each group are a segment of their own,
+ * with its own checksum, and only the counts (and the index of the
+ * segments) are read at startup, which takes the same time whatever
+ * the number of members. The IDs of a group are read from the mapped
+ * file the first time they are needed (see @{CommunityGroup.pageIn}).
+ * The ID table tells which group to read for a volunteer looked up by
+ * ID, by a binary search in the file. It has no checksum of its own
+ * (that would mean reading all of it), but whatever it says is checked
+ * against the IDs of the group it points to.
+ *
+ * A Snapshot object is the state of a sorter at one point in time,
+ * so it can be written to disk while the sorter keeps changing.
+ * Capturing it copies the counts only. The IDs stay in the groups,
+ * which copy them for the snapshot before they next change
+ * (copy on write, see @{CommunityGroup.pin}), until it is written.
+ * Writing streams the IDs of one group at a time to the file, and
+ * sorts the ID table in the file itself (see @{writeTable}), so
+ * neither needs memory for all the members.
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x43573353; // "CW3S"
+    private static final int VERSION = 4;
+
+    // magic, version, groups, capacity, skills
+    private static final int HEADER_INTS = 5;
+
+    // Written a piece at a time (bytes)
+    private static final int WRITE_CHUNK = 1 << 16;
+
+    // The ID table is sorted in up to 2^BUCKET_BITS buckets of IDs
+    private static final int BUCKET_BITS = 16;
+
+    /*
+     * Where the IDs of the members of one group are in a snapshot,
+     * so that they can be read when first needed
+     */
+    static final class Segment {
+        private final ByteBuffer mIds;
+        private final int mCrc;
+
+        private Segment(ByteBuffer ids, int crc) {
+            mIds = ids;
+            mCrc = crc;
+        }
+
+        /*
+         * Read the IDs, by skill code as @{CommunityGroup.copyIds} lays them out
+         * throw @{Serializable.DeserializationException} if they don't match the checksum
+         */
+        LongBuffer read() throws Serializable.DeserializationException {
+            CRC32 crc = new CRC32();
+            crc.update(mIds.duplicate());
+            if ((int) crc.getValue() != mCrc) {
+                throw new Serializable.DeserializationException("Snapshot is corrupted (checksum mismatch)");
+            }
+            return mIds.duplicate().order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+        }
+    }
+
+    /*
+     * Which group each volunteer was in when a snapshot was written
+     */
+    static final class IdTable {
+        private final Mapping mFile;
+        private final long mPosition;
+        private final long mLength;
+        private final int mBits;
+
+        /*
+         * @file: the snapshot
+         * @position: where the table starts in the file
+         * @length: how many keys it has
+         * @bits: the bits of the group in each key
+         */
+        private IdTable(Mapping file, long position, long length, int bits) {
+            mFile = file;
+            mPosition = position;
+            mLength = length;
+            mBits = bits;
+        }
+
+        /*
+         * The group of a volunteer, or -1 if it isn't in the table
+         * O(log(volunteers))
+         */
+        int groupOf(long id) {
+            long low = 0, high = mLength - 1;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                long key = mFile.getLong(mPosition + mid * 8);
+                long found = key >>> mBits;
+                if (found < id) {
+                    low = mid + 1;
+                } else if (found > id) {
+                    high = mid - 1;
+                } else {
+                    return (int) (key & ((1L << mBits) - 1));
+                }
+            }
+            return -1;
+        }
+    }
+
+    /*
+     * A file mapped into memory
+     * It is mapped in chunks, since a buffer can't be larger than 2 GB.
+     * Each chunk also maps the first long of the next one, so that
+     * a long at any position is in a single chunk.
+     */
+    private static final class Mapping {
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK = 1L << CHUNK_BITS;
+
+        private final FileChannel mChannel;
+        private final FileChannel.MapMode mMode;
+        private final long mSize;
+        private final MappedByteBuffer[] mChunks;
+
+        /*
+         * Map the start of a file (which grows if it is shorter)
+         * @size: how much of it to map
+         */
+        Mapping(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+            mChannel = channel;
+            mMode = mode;
+            mSize = size;
+            mChunks = new MappedByteBuffer[(int) ((size + CHUNK - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < mChunks.length; i++) {
+                long position = (long) i << CHUNK_BITS;
+                mChunks[i] = channel.map(mode, position, Math.min(CHUNK + 8, size - position));
+            }
+        }
+
+        long size() {
+            return mSize;
+        }
+
+        /*
+         * Part of the file as a buffer of its own
+         * Parts across two chunks are mapped again,
+         * which needs the channel to be still open.
+         */
+        ByteBuffer slice(long position, int length) throws IOException {
+            int chunk = (int) (position >>> CHUNK_BITS);
+            int offset = (int) (position & (CHUNK - 1));
+            if (chunk < mChunks.length && offset + (long) length <= mChunks[chunk].capacity()) {
+                ByteBuffer slice = mChunks[chunk].duplicate();
+                slice.limit(offset + length);
+                slice.position(offset);
+                return slice.slice();
+            }
+            return mChannel.map(mMode, position, length);
+        }
+
+        long getLong(long position) {
+            return mChunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & (CHUNK - 1)));
+        }
+
+        void putLong(long position, long value) {
+            mChunks[(int) (position >>> CHUNK_BITS)].putLong((int) (position & (CHUNK - 1)), value);
+        }
+
+        /*
+         * Write what was put to the disk
+         */
+        void force() {
+            for (MappedByteBuffer chunk : mChunks) {
+                chunk.force();
+            }
+        }
+    }
+
+    /*
+     * The IDs of the members of each group for a snapshot, as they were
+     * when it was captured. Until the snapshot is written, a group that
+     * is about to change keeps its IDs here first (or the segment they
+     * are still in, see @{CommunityGroup.beforeChange}), and the IDs of
+     * the other groups are read from the groups themselves.
+     * Each group is guarded by its lock.
+     */
+    static final class Members {
+        private final long[][] mIds;
+        private final Segment[] mSegments;
+
+        private Members(int groupNum) {
+            mIds = new long[groupNum][];
+            mSegments = new Segment[groupNum];
+        }
+
+        /*
+         * Keep the IDs of a group before it changes
+         * (with its write lock held)
+         * @group: the index of the group
+         * @ids: the IDs as @{CommunityGroup.copyIds} lays them out, or null
+         * @segment: where they are if not paged in yet (then ids is null)
+         */
+        void keep(int group, long[] ids, Segment segment) {
+            mIds[group] = ids;
+            mSegments[group] = segment;
+        }
+    }
+
+    private final int mGroupNum;
+    private final int mCapacity;
+    private final SkillTable mTable;
+    private final long mSequence;
+    private final long mNextId;
+
+    /*
+     * The count of skill code c of group g is at [g * codes + c]
+     */
+    private final int[] mCounts;
+
+    /*
+     * The groups of the sorter, which keep the IDs of their members
+     * for this snapshot until it is written or @{release}d
+     */
+    private final ArrayList<CommunityGroup> mGroups;
+    private final Members mMembers;
+    private boolean mReleased = false;
+
+    private Snapshot(int capacity, SkillTable table, long sequence, long nextId, int[] counts,
+                     ArrayList<CommunityGroup> groups, Members members) {
+        mGroupNum = groups.size();
+        mCapacity = capacity;
+        mTable = table;
+        mSequence = sequence;
+        mNextId = nextId;
+        mCounts = counts;
+        mGroups = groups;
+        mMembers = members;
+    }
+
+    /*
+     * Take a copy of the current state of a sorter
+     * This is O(groups * skill codes), and the groups are locked only
+     * while they are pinned, which is O(groups). See @{SkillSorter.pin}
+     * The snapshot must then be written once, or released.
+     * @sorter: the sorter
+     * @sequence: the sequence number of the last change made to the sorter
+     *   (0 if changes are not numbered)
+     */
+    public static Snapshot capture(SkillSorter sorter, long sequence) {
+        return capture(sorter, () -> sequence);
+    }
+
+    /*
+     * Same, but the sequence number is asked for while the groups
+     * are locked, so that it matches the copy even if other threads
+     * keep changing the sorter.
+     * @sequence: gives the sequence number of the last change made
+     */
+    public static Snapshot capture(SkillSorter sorter, LongSupplier sequence) {
+        SkillTable table = sorter.getTable();
+        int codeNum = table.getCombinationNum();
+        ArrayList<CommunityGroup> groups = sorter.getCommunityGroups();
+        Members members = new Members(groups.size());
+        // The sequence number and the next ID, read at the same point
+        long[] numbers = new long[2];
+        GroupView[] views = sorter.pin(members, () -> {
+            numbers[0] = sequence.getAsLong();
+            numbers[1] = sorter.getNextId();
+        });
+        int[] counts = new int[views.length * codeNum];
+        for (int i = 0; i < views.length; i++) {
+            views[i].copyCounts(counts, i * codeNum);
+        }
+        return new Snapshot(sorter.getCapacity(), table, numbers[0], numbers[1], counts, groups, members);
+    }
+
+    /*
+     * The sequence number of the last change included in this snapshot
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /*
+     * Let the groups stop keeping their members for this snapshot
+     * Done by @{write}; call it for a snapshot that won't be written.
+     * Releasing it again does nothing.
+     */
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        for (int g = 0; g < mGroupNum; g++) {
+            CommunityGroup group = mGroups.get(g);
+            StampedLock lock = group.getLock();
+            long stamp = lock.writeLock();
+            try {
+                group.unpin(mMembers);
+                mMembers.keep(g, null, null);
+            } finally {
+                lock.unlock(stamp);
+            }
+        }
+    }
+
+    /*
+     * Whether a file is a binary snapshot (or some other format)
+     * @path: the file
+     */
+    public static boolean isSnapshot(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+        try {
+            return file.length() >= 4 && file.readInt() == MAGIC;
+        } finally {
+            file.close();
+        }
+    }
+
+    /*
+     * Write a snapshot of a sorter to a file
+     * Same as capture(sorter, 0).write(path)
+     * @sorter: the sorter
+     * @path: the file to write to
+     * @return: the size of the file in bytes
+     */
+    public static long write(SkillSorter sorter, String path) throws IOException {
+        return capture(sorter, 0).write(path);
+    }
+
+    /*
+     * Write this snapshot to a file
+     * The snapshot is written to "<path>.tmp" and synced to disk first,
+     * then renamed over `path`, so that `path` always holds either the
+     * old snapshot or the new one in full, even if we crash halfway.
+     * A snapshot can only be written once (see @{release}).
+     * throw @{java.lang.IllegalStateException} if it was written or released before
+     * @path: the file to write to
+     * @return: the size of the file in bytes
+     */
+    public long write(String path) throws IOException, IllegalStateException {
+        if (mReleased) {
+            throw new IllegalStateException("The snapshot has already been written");
+        }
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        long size;
+        try {
+            FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                size = write(channel);
+                channel.force(true);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            channel.close();
+        } finally {
+            release();
+        }
+
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(target.getParent());
+        return size;
+    }
+
+    /*
+     * Lay the snapshot out in an empty file, as described above
+     * The IDs are written one group at a time, each group locked only
+     * while its IDs are copied (unless it has already kept them).
+     * @return: the size of the file in bytes
+     */
+    private long write(FileChannel channel) throws IOException {
+        int skillNum = mTable.getSkillNum();
+        int codeNum = mTable.getCombinationNum();
+        int indexLength = size(VERSION, mGroupNum, skillNum, codeNum, 0);
+        long total = 0;
+        for (int count : mCounts) {
+            total += count;
+        }
+        // No table if the IDs are too large to share a long with the group
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(mGroupNum - 1, 1));
+        boolean table = mNextId < (1L << (63 - bits));
+
+        // The IDs of the table are counted into buckets of their top bits
+        int shift = Math.max(64 - Long.numberOfLeadingZeros(mNextId) - BUCKET_BITS, 0);
+        int[] buckets = new int[table ? (int) (mNextId >>> shift) + 1 : 0];
+
+        // The IDs go after the index, one segment for each group
+        int[] crcs = new int[mGroupNum];
+        long[] scratch = new long[0];
+        ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK);
+        channel.position(indexLength);
+        for (int g = 0; g < mGroupNum; g++) {
+            int members = 0;
+            for (int code = 0; code < codeNum; code++) {
+                members += mCounts[g * codeNum + code];
+            }
+
+            // Either kept by the group, or read from it now
+            CommunityGroup group = mGroups.get(g);
+            StampedLock lock = group.getLock();
+            long stamp = lock.writeLock();
+            long[] ids;
+            Segment segment;
+            try {
+                ids = mMembers.mIds[g];
+                segment = mMembers.mSegments[g];
+                if (group.unpin(mMembers)) {
+                    // Not changed since captured
+                    segment = group.getSegment();
+                    if (segment == null) {
+                        if (scratch.length < members) {
+                            scratch = new long[members];
+                        }
+                        group.copyIds(scratch, 0);
+                        ids = scratch;
+                    }
+                }
+                mMembers.keep(g, null, null);
+            } finally {
+                lock.unlock(stamp);
+            }
+
+            if (segment != null) {
+                // Already laid out this way, and checked when loaded
+                ByteBuffer bytes = segment.mIds.duplicate();
+                for (int i = 0; i < members; i++) {
+                    count(buckets, bytes.getLong(i * 8), shift);
+                }
+                crcs[g] = segment.mCrc;
+                writeFully(channel, bytes);
+                continue;
+            }
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < members; i++) {
+                if (!chunk.hasRemaining()) {
+                    drain(channel, chunk, crc);
+                }
+                chunk.putLong(ids[i]);
+                count(buckets, ids[i], shift);
+            }
+            drain(channel, chunk, crc);
+            crcs[g] = (int) crc.getValue();
+        }
+
+        long length = indexLength + total * 8;
+        if (table && total > 0) {
+            length += total * 8;
+            writeTable(channel, indexLength, total, bits, buckets, shift);
+        }
+
+        // Then the index, now that the checksums are known
+        ByteBuffer index = ByteBuffer.allocate(indexLength);
+        index.putInt(MAGIC);
+        index.putInt(VERSION);
+        index.putInt(mGroupNum);
+        index.putInt(mCapacity);
+        index.putInt(skillNum);
+        index.putLong(mSequence);
+        index.putLong(mNextId);
+        for (int i = 0; i < skillNum; i++) {
+            index.put((byte) mTable.getSkillName(i));
+        }
+        for (int count : mCounts) {
+            index.putInt(count);
+        }
+        for (int crc : crcs) {
+            index.putInt(crc);
+        }
+        index.putInt(table ? bits : -1);
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.position());
+        index.putInt((int) crc.getValue());
+        index.flip();
+        channel.position(0);
+        writeFully(channel, index);
+        return length;
+    }
+
+    /*
+     * Write the ID table after the IDs, which must be in the file
+     * The keys are put into the buckets of their IDs, in the file,
+     * then each bucket is sorted on its own. That takes memory
+     * for the largest bucket only.
+     * @idsAt: where the IDs start
+     * @total: how many IDs there are
+     * @bits: the bits of the group in each key
+     * @buckets: how many IDs there are in each bucket
+     * @shift: the bucket of an ID is its bits from `shift` up
+     */
+    private void writeTable(FileChannel channel, long idsAt, long total, int bits, int[] buckets, int shift)
+            throws IOException {
+        long tableAt = idsAt + total * 8;
+        Mapping file = new Mapping(channel, FileChannel.MapMode.READ_WRITE, tableAt + total * 8);
+
+        // Where the next key of each bucket goes
+        long[] next = new long[buckets.length];
+        int largest = 0;
+        for (int b = 1; b < buckets.length; b++) {
+            next[b] = next[b - 1] + buckets[b - 1];
+        }
+        for (int count : buckets) {
+            largest = Math.max(largest, count);
+        }
+
+        int codeNum = mTable.getCombinationNum();
+        long at = idsAt;
+        for (int g = 0; g < mGroupNum; g++) {
+            for (int code = 0; code < codeNum; code++) {
+                for (int i = mCounts[g * codeNum + code]; i > 0; i--) {
+                    long id = file.getLong(at);
+                    at += 8;
+                    int b = bucket(buckets, id, shift);
+                    file.putLong(tableAt + next[b]++ * 8, (id << bits) | g);
+                }
+            }
+        }
+
+        // The buckets are in order, so sorting each sorts the table
+        long[] keys = new long[largest];
+        long first = 0;
+        for (int count : buckets) {
+            if (count > 1) {
+                for (int i = 0; i < count; i++) {
+                    keys[i] = file.getLong(tableAt + (first + i) * 8);
+                }
+                Arrays.sort(keys, 0, count);
+                for (int i = 0; i < count; i++) {
+                    file.putLong(tableAt + (first + i) * 8, keys[i]);
+                }
+            }
+            first += count;
+        }
+        file.force();
+    }
+
+    /*
+     * The bucket of an ID in @{writeTable}
+     * (the last one for IDs at or above the next ID, which shouldn't be)
+     */
+    private static int bucket(int[] buckets, long id, int shift) {
+        return (int) Math.min(id >>> shift, buckets.length - 1);
+    }
+
+    private static void count(int[] buckets, long id, int shift) {
+        if (buckets.length > 0) {
+            buckets[bucket(buckets, id, shift)]++;
+        }
+    }
+
+    /*
+     * Write what is in a chunk and empty it
+     */
+    private static void drain(FileChannel channel, ByteBuffer chunk, CRC32 crc) throws IOException {
+        crc.update(chunk.array(), 0, chunk.position());
+        chunk.flip();
+        writeFully(channel, chunk);
+        chunk.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /*
+     * Make a rename in a directory durable
+     * Not every platform can open a directory, in which case
+     * the rename is left to the OS to write out.
+     */
+    private static void syncDirectory(Path dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Not supported (e.g. on Windows)
+        }
+    }
+
+    /*
+     * Load a snapshot from a file into a sorter
+     * Everything in the sorter will be replaced.
+     * The sorter must be configured in the same way as when the snapshot
+     * was written (same groups, capacity and skills).
+     * The file is mapped into memory, and the IDs are read from it later
+     * (see above), so it must not be changed while the sorter uses it.
+     * @sorter: the sorter
+     * @path: the file to read from
+     * @return: the sequence number of the snapshot
+     */
+    public static long read(SkillSorter sorter, String path) throws IOException, Serializable.DeserializationException {
+        long start = System.nanoTime();
+        RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long sequence = read(sorter, new Mapping(channel, FileChannel.MapMode.READ_ONLY, channel.size()));
+            sorter.getMetrics().record(Metrics.LOAD, start);
+            return sequence;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long read(SkillSorter sorter, Mapping file) throws IOException, Serializable.DeserializationException {
+        // Everything but the IDs is in the first 2 GB
+        ByteBuffer buffer = file.slice(0, (int) Math.min(file.size(), Integer.MAX_VALUE));
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.remaining() < HEADER_INTS * 4 || buffer.getInt() != MAGIC) {
+            throw new Serializable.DeserializationException("Not a snapshot");
+        }
+
+        // Older versions are the same without the sequence number and the IDs
+        int version = buffer.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new Serializable.DeserializationException("Unsupported snapshot version " + version);
+        }
+
+        // The configuration must match
+        SkillTable table = sorter.getTable();
+        int groupNum = buffer.getInt();
+        int capacity = buffer.getInt();
+        int skillNum = buffer.getInt();
+        if (groupNum != sorter.getCommunityGroups().size()) {
+            throw new Serializable.DeserializationException("Group number isn't " + sorter.getCommunityGroups().size());
+        } else if (capacity != sorter.getCapacity()) {
+            throw new Serializable.DeserializationException("Group capacity isn't " + sorter.getCapacity());
+        } else if (skillNum != table.getSkillNum()) {
+            throw new Serializable.DeserializationException("Skill number isn't " + table.getSkillNum());
+        }
+
+        int codeNum = table.getCombinationNum();
+        int length = size(version, groupNum, skillNum, codeNum, 0);
+        if (buffer.limit() < length) {
+            throw new Serializable.DeserializationException("Snapshot has a wrong size");
+        }
+        long sequence = version >= 2 ? buffer.getLong() : 0;
+        long nextId = version >= 3 ? buffer.getLong() : 0;
+        for (int i = 0; i < skillNum; i++) {
+            if (buffer.get() != table.getSkillName(i)) {
+                throw new Serializable.DeserializationException("Skills don't match");
+            }
+        }
+
+        if (version >= 4) {
+            readIndexed(sorter, file, buffer, length, nextId);
+            return sequence;
+        }
+
+        // There is one ID for each member
+        int countsAt = buffer.position();
+        int idNum = 0;
+        if (version >= 3) {
+            IntBuffer counts = buffer.duplicate().asIntBuffer();
+            long total = 0;
+            for (int i = 0; i < groupNum * codeNum; i++) {
+                total += Math.max(counts.get(), 0);
+            }
+            if (total > (Integer.MAX_VALUE - length) / 8) {
+                throw new Serializable.DeserializationException("Snapshot has a wrong size");
+            }
+            idNum = (int) total;
+            length = size(version, groupNum, skillNum, codeNum, idNum);
+        }
+        if (file.size() != length) {
+            throw new Serializable.DeserializationException("Snapshot has a wrong size");
+        }
+
+        // Verify the checksum before touching the sorter
+        ByteBuffer content = buffer.duplicate();
+        content.position(0);
+        content.limit(length - 4);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (buffer.getInt(length - 4) != (int) crc.getValue()) {
+            throw new Serializable.DeserializationException("Snapshot is corrupted (checksum mismatch)");
+        }
+
+        LongBuffer ids = null;
+        if (version >= 3) {
+            buffer.position(countsAt + groupNum * codeNum * 4);
+            ids = buffer.asLongBuffer();
+            buffer.position(countsAt);
+        }
+        sorter.restore(buffer.asIntBuffer(), ids, nextId);
+        return sequence;
+    }
+
+    /*
+     * The rest of @{read} since version 4, from the counts on
+     * Only the counts and the index are read; the IDs of each group
+     * are left in the file, which must not change any more.
+     * @buffer: the start of the file
+     * @length: the size of everything before the IDs
+     */
+    private static void readIndexed(SkillSorter sorter, Mapping file, ByteBuffer buffer, int length, long nextId)
+            throws IOException, Serializable.DeserializationException {
+        // Verify the checksum before touching the sorter
+        ByteBuffer index = buffer.duplicate();
+        index.position(0);
+        index.limit(length - 4);
+        CRC32 crc = new CRC32();
+        crc.update(index);
+        if (buffer.getInt(length - 4) != (int) crc.getValue()) {
+            throw new Serializable.DeserializationException("Snapshot is corrupted (checksum mismatch)");
+        }
+
+        int groupNum = sorter.getCommunityGroups().size();
+        int codeNum = sorter.getTable().getCombinationNum();
+        int countsAt = buffer.position();
+        int crcsAt = countsAt + groupNum * codeNum * 4;
+        IntBuffer counts = buffer.duplicate().asIntBuffer();
+        Segment[] segments = new Segment[groupNum];
+        long idsAt = length;
+        for (int g = 0; g < groupNum; g++) {
+            long members = 0;
+            for (int code = 0; code < codeNum; code++) {
+                members += Math.max(counts.get(), 0);
+            }
+            if (members > (file.size() - idsAt) / 8 || members > Integer.MAX_VALUE / 8) {
+                throw new Serializable.DeserializationException("Snapshot has a wrong size");
+            }
+            if (members > 0) {
+                segments[g] = new Segment(file.slice(idsAt, (int) members * 8), buffer.getInt(crcsAt + g * 4));
+            }
+            idsAt += members * 8;
+        }
+
+        // Then the table, as long as the IDs
+        int bits = buffer.getInt(length - 8);
+        long tableLength = bits >= 0 ? idsAt - length : 0;
+        if (bits > 31 || idsAt + tableLength != file.size()) {
+            throw new Serializable.DeserializationException("Snapshot has a wrong size");
+        }
+        IdTable table = bits >= 0 ? new IdTable(file, idsAt, tableLength / 8, bits) : null;
+
+        buffer.position(countsAt);
+        sorter.restoreLazily(buffer.asIntBuffer(), segments, table, nextId);
+    }
+
+    /*
+     * Size in bytes of a snapshot
+     */
+    private static int size(int version, int groupNum, int skillNum, int codeNum, int idNum) {
+        long size = (HEADER_INTS + (long) groupNum * codeNum + 1) * 4 + skillNum;
+        if (version >= 2) {
+            size += 8;
+        }
+        if (version >= 3) {
+            size += 8 + (long) idNum * 8;
+        }
+        if (version >= 4) {
+            // The checksum of each group, the bits of the table, and the
+            // checksum of the index (instead of the one at the end)
+            size += (long) groupNum * 4 + 4;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many groups for a snapshot");
+        }
+        return (int) size;
+    }
+}
@@ -1,25 +1,19 @@
 package coursework3;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 
-import static coursework3.Constants.SKILL_INDEX_MAP;
-import static coursework3.Constants.INDEX_SKILL_MAP;
-
 class Utility {
     /*
      * Get the index of skill
      * @skillName: name of the skill
      */
     public static int getSkillIndex(char skillName) throws IllegalArgumentException {
-        Integer index = SKILL_INDEX_MAP.get(skillName);
-        if (index == null) {
-            throw new IllegalArgumentException("Illegal skill " + skillName);
-        }
-        return index;
+        return SkillTable.DEFAULT.getSkillIndex(skillName);
     }
 
     /*
@@ -27,10 +21,7 @@ class Utility {
      * @index: the index
      */
     public static char getSkillName(int index) throws IllegalArgumentException {
-        if (INDEX_SKILL_MAP.length <= index) {
-            throw new IllegalArgumentException("Cannot find the " + index + "-th skill");
-        }
-        return INDEX_SKILL_MAP[index];
+        return SkillTable.DEFAULT.getSkillName(index);
     }
 
     /*
@@ -56,16 +47,36 @@ class Utility {
         return variance / data.length;
     }
 
+    /*
+     * Calculate the variance of a group of data
+     * from the sum and the sum of squares of the data
+     * V(x1, x2, ..., xn) = (x1^2 + x2^2 + ... + xn^2) / n - E^2
+     * This is O(1) and is used when the sums are maintained incrementally.
+     * @sum: x1 + x2 + ... + xn
+     * @squares: x1^2 + x2^2 + ... + xn^2
+     * @n: the number of data
+     */
+    public static double variance(long sum, long squares, int n) {
+        double average = (double) sum / n;
+        return (double) squares / n - average * average;
+    }
+
     /*
      * Serialize a @{Serializable} to a file
      * @s: the object
      * @path: the file to write to
      */
     public static void serializeToFile(Serializable s, String path) throws IOException {
-        FileWriter writer = new FileWriter(new File(path), false); // Overwrite any existing file
-        writer.write(s.serialize());
-        writer.flush();
-        writer.close();
+        long start = System.nanoTime();
+        // Overwrite any existing file
+        BufferedWriter writer = new BufferedWriter(new FileWriter(new File(path), false));
+        try {
+            s.serialize(writer); // Streamed, never held as a whole String
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+        record(s, Metrics.SAVE, start);
     }
 
     /*
@@ -74,22 +85,41 @@ class Utility {
      * @path: the file to read from
      */
     public static void deserializeFromFile(Serializable s, String path) throws IOException, Serializable.DeserializationException {
+        long start = System.nanoTime();
         BufferedReader reader = new BufferedReader(new FileReader(new File(path)));
-        String str = "";
-        String line;
-
-        // Read line by line and feed to str
-        while ((line = reader.readLine()) != null) {
-            str += "\n" + line;
+        try {
+            // Streamed, never held as a whole String
+            s.deserialize(reader);
+        } finally {
+            // Release the resource
+            reader.close();
         }
+        record(s, Metrics.LOAD, start);
+    }
 
-        // Remove the preceeding "\n"
-        str = str.substring(1, str.length());
-
-        // Call deserialization
-        s.deserialize(str);
+    /*
+     * Count a save or load in the metrics of a sorter (see @{Metrics})
+     * Other objects don't have metrics.
+     */
+    private static void record(Serializable s, int operation, long start) {
+        if (s instanceof SkillSorter) {
+            ((SkillSorter) s).getMetrics().record(operation, start);
+        }
+    }
 
-        // Release the resource
-        reader.close();
+    /*
+     * Import volunteers from a file of skill sets into a sorter
+     * See @{SkillSorter.importVolunteers()} for the format.
+     * @sorter: the sorter
+     * @path: the file to read from
+     */
+    public static SkillSorter.ImportResult importFromFile(SkillSorter sorter, String path) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(path)));
+        try {
+            return sorter.importVolunteers(reader);
+        } finally {
+            // Release the resource
+            reader.close();
+        }
     }
 }
\ No newline at end of file
@@ -2,15 +2,24 @@ package coursework3;
 
 import cw3interfaces.VolunteerInterface;
 
-import static coursework3.Constants.SKILL_NUM;
+import java.io.IOException;
+import java.io.Reader;
+
+import static coursework3.Constants.SKILLS_PER_VOLUNTEER;
 
 public class Volunteer implements VolunteerInterface, Serializable {
     /*
-     * Each entry of this array represents
-     * the number of 'instances' a person have for one specific skill
-     * See @{Constants.SKILL_INDEX_MAP} for how this array is arranged
+     * The tables this volunteer's skill code belongs to
+     */
+    private SkillTable mTable = SkillTable.DEFAULT;
+
+    /*
+     * The skill code of this volunteer,
+     * i.e. which combination of skills this person has
+     * See @{SkillTable} for how the codes are arranged
+     * -1 means the skills have not been set yet
      */
-    private int[] mSkillSet = new int[]{0, 0, 0, 0, 0};
+    private int mCode = -1;
 
     /*
      * Zero-argument constructor
@@ -24,44 +33,76 @@ public class Volunteer implements VolunteerInterface, Serializable {
 
     /*
      * Constructor of Volunteer class
+     * Prefer @{Volunteer.of()} which does not create new objects.
      * @skills: a string that represents the skills a person has
      *   Must have a length of 3. Must contain only A, B, C, D or E
      *   e.g. "AAB" "CCD" "ABE"
      */
     public Volunteer(String skills) throws IllegalArgumentException {
-        parseSkillStr(skills);
+        mCode = mTable.parse(skills);
+    }
+
+    /*
+     * Same as the zero-argument constructor
+     * but the skills will be parsed with other tables.
+     */
+    Volunteer(SkillTable table) {
+        mTable = table;
+    }
+
+    /*
+     * Used by @{SkillTable} to create the shared instances
+     */
+    Volunteer(SkillTable table, int code) {
+        mTable = table;
+        mCode = code;
+    }
+
+    /*
+     * Get the shared instance of the volunteer with some skills
+     * Volunteers are immutable, so this can be used in place of
+     * the constructor whenever possible.
+     * @skills: same as the constructor
+     */
+    public static Volunteer of(String skills) throws IllegalArgumentException {
+        return SkillTable.DEFAULT.getVolunteer(skills);
     }
 
     /*
      * Get the number of a skill based on its name
      */
     public int getSkillPoint(char skillName) throws IllegalArgumentException {
-        return getSkillPoint(Utility.getSkillIndex(skillName));
+        return getSkillPoint(mTable.getSkillIndex(skillName));
     }
 
     /*
      * Get the number of a skill based on its index
      */
     public int getSkillPoint(int index) {
-        return mSkillSet[index];
+        return mTable.getSkillPoint(mCode, index);
+    }
+
+    /*
+     * Get the skill code of this volunteer
+     * See @{SkillTable}
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    /*
+     * Get the tables that the skill code belongs to
+     */
+    SkillTable getTable() {
+        return mTable;
     }
-    
+
     /*
      * Returns the string representation of the skill set
      */
     @Override
     public String getSkillSet() {
-        StringBuilder setBuilder = new StringBuilder();
-        for (int i = 0; i < SKILL_NUM; i++) {
-            if (mSkillSet[i] > 0) {
-                // Append the corresponding char representation of the skill
-                // for each occurance
-                for (int j = 0; j < mSkillSet[i]; j++)
-                    setBuilder.append(Utility.getSkillName(i));
-            }
-        }
-
-        return setBuilder.toString();
+        return mTable.format(mCode);
     }
 
     /*
@@ -79,42 +120,69 @@ public class Volunteer implements VolunteerInterface, Serializable {
      * For persistency
      * This is basically equivalent to the one-parameter constructor
      * but this is needed to implement the Serializable interface.
+     * Volunteers are immutable, so this can only be called once
+     * on an object created with the zero-argument constructor.
      */
     @Override
     public void deserialize(String str) throws Serializable.DeserializationException {
+        if (mCode >= 0) {
+            throw new IllegalStateException("The skills of a volunteer cannot be changed.");
+        }
+
         try {
-            parseSkillStr(str);
+            mCode = mTable.parse(str);
         } catch (IllegalArgumentException e) {
             throw new Serializable.DeserializationException(e);
         }
     }
 
     /*
-     * Overrides @{java.lang.Object.equals()} for use in ArrayList (@{CommunityGroup})
+     * Same but reading from a stream, without creating a String
+     */
+    @Override
+    public void deserialize(Reader reader) throws IOException, Serializable.DeserializationException {
+        // Read one more than needed to know if there are too many skills
+        char[] skills = new char[SKILLS_PER_VOLUNTEER + 1];
+        int length = 0, read;
+        while (length < skills.length && (read = reader.read(skills, length, skills.length - length)) >= 0) {
+            length += read;
+        }
+
+        if (length != SKILLS_PER_VOLUNTEER) {
+            throw new Serializable.DeserializationException("A person can only have 3 skills");
+        } else if (mCode >= 0) {
+            throw new IllegalStateException("The skills of a volunteer cannot be changed.");
+        }
+
+        try {
+            mCode = mTable.parse(skills[0], skills[1], skills[2]);
+        } catch (IllegalArgumentException e) {
+            throw new Serializable.DeserializationException(e);
+        }
+    }
+
+    /*
+     * Overrides @{java.lang.Object.equals()}
      * Compare the equality of two volunteers based on the skill set
      * Note: the skill set is the only thing that matters in this program
      */
     @Override
     public boolean equals(Object obj) {
-        if (obj.getClass() != Volunteer.class) {
+        if (this == obj) {
+            return true;
+        } else if (obj == null || obj.getClass() != Volunteer.class) {
             return false;
         } else {
-            return this.getSkillSet().equals(((Volunteer) obj).getSkillSet());
+            Volunteer other = (Volunteer) obj;
+            return mCode == other.mCode && mTable == other.mTable;
         }
     }
 
     /*
-     * Parse the skills string into the mSkillSet array
-     * See @{mSkillSet} for details.
+     * Must be consistent with @{equals()}
      */
-    private void parseSkillStr(String str) throws IllegalArgumentException {
-        if (str.length() != 3) {
-            throw new IllegalArgumentException("A person can only have 3 skills");
-        }
-
-        for (int i = 0; i < 3; i++) {
-            mSkillSet[Utility.getSkillIndex(str.charAt(i))]++; // Increase the occurence by once
-        }
+    @Override
+    public int hashCode() {
+        return mCode;
     }
-    
 }
@@ -0,0 +1,69 @@
+package coursework3;
+
+/*
+ * Regression tests of @{LongMap}
+ * Run with `make test`.
+ */
+public class LongMapTest {
+    public static void main(String[] args) {
+        missingZero();
+        putGetRemove();
+        sorterZero();
+        System.out.println("LongMapTest passed");
+    }
+
+    /*
+     * Key 0 marks empty slots, so looking it up used to stop at the first
+     * empty slot as if it held the key: get returned whatever value was
+     * left there, and remove took one off the size.
+     */
+    private static void missingZero() {
+        LongMap map = new LongMap(4);
+        check(map.get(0, -1) == -1, "get(0) on an empty map");
+        check(map.remove(0, -1) == -1, "remove(0) on an empty map");
+        for (long key = 1; key <= 1000; key++) {
+            map.put(key, key * 2);
+        }
+        check(map.get(0, -1) == -1, "get(0) on a full map");
+        check(map.remove(0, -1) == -1, "remove(0) on a full map");
+        check(map.size() == 1000, "size after looking for 0");
+        try {
+            map.put(0, 1);
+            check(false, "put(0) must be refused");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void putGetRemove() {
+        LongMap map = new LongMap(4);
+        for (long key = 1; key <= 1000; key++) {
+            map.put(key * 7919, key);
+        }
+        for (long key = 1; key <= 1000; key += 2) {
+            check(map.remove(key * 7919, -1) == key, "remove " + key);
+        }
+        for (long key = 1; key <= 1000; key++) {
+            long expected = key % 2 == 0 ? key : -1;
+            check(map.get(key * 7919, -1) == expected, "get " + key);
+        }
+        check(map.size() == 500, "size after removing half");
+    }
+
+    /*
+     * Which made @{SkillSorter.locate} look at group 0 for ID 0
+     * (and try again forever once the group had members)
+     */
+    private static void sorterZero() {
+        SkillSorter sorter = new SkillSorter();
+        check(sorter.locate(0) == -1, "locate(0) in an empty sorter");
+        sorter.addVolunteerWithId(new Volunteer("ABC"));
+        check(sorter.locate(0) == -1, "locate(0) with a member");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+    }
+}
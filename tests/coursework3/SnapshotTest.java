@@ -0,0 +1,123 @@
+package coursework3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Regression tests of @{Snapshot}
+ * Run with `make test`.
+ */
+public class SnapshotTest {
+    private static final String[] SKILLS = {"ABC", "AAB", "CDE", "EEE", "BCD", "ABE"};
+    private static final int GROUPS = 8;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("snapshot-test").toFile();
+        try {
+            changedBeforeWritten(dir);
+            notPagedIn(dir);
+            writtenOnce(dir);
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        System.out.println("SnapshotTest passed");
+    }
+
+    /*
+     * The groups keep their members for a snapshot until it is written
+     * (copy on write), so it is written as it was when captured
+     */
+    private static void changedBeforeWritten(File dir) throws IOException {
+        Random random = new Random(1);
+        SkillSorter sorter = new SkillSorter(GROUPS, "ABCDE", 100000);
+        change(sorter, random, 20000);
+        Snapshot late = Snapshot.capture(sorter, 1);
+        Snapshot expected = Snapshot.capture(sorter, 1);
+        File want = new File(dir, "expected");
+        expected.write(want.getPath());
+        change(sorter, random, 20000);
+        File got = new File(dir, "late");
+        late.write(got.getPath());
+        check(same(want, got), "snapshot written after changes");
+    }
+
+    /*
+     * Same for groups whose members are still in the snapshot they
+     * were loaded from, and the ID table must still find them
+     */
+    private static void notPagedIn(File dir) throws Exception {
+        Random random = new Random(2);
+        SkillSorter sorter = new SkillSorter(GROUPS, "ABCDE", 100000);
+        change(sorter, random, 20000);
+        File first = new File(dir, "first");
+        Snapshot.write(sorter, first.getPath());
+
+        SkillSorter loaded = new SkillSorter(GROUPS, "ABCDE", 100000);
+        Snapshot.read(loaded, first.getPath());
+        Snapshot late = Snapshot.capture(loaded, 0);
+        change(loaded, random, 3000);
+        File got = new File(dir, "second");
+        late.write(got.getPath());
+        check(same(first, got), "snapshot of groups not paged in");
+
+        SkillSorter again = new SkillSorter(GROUPS, "ABCDE", 100000);
+        Snapshot.read(again, got.getPath());
+        for (CommunityGroup group : sorter.getCommunityGroups()) {
+            group.forEachMember((slot, id) ->
+                check((again.locate(id) >>> 32) == group.getIndex(), "locate " + id));
+        }
+    }
+
+    private static void writtenOnce(File dir) throws IOException {
+        SkillSorter sorter = new SkillSorter(GROUPS, "ABCDE", 100000);
+        change(sorter, new Random(3), 1000);
+        Snapshot snapshot = Snapshot.capture(sorter, 0);
+        snapshot.write(new File(dir, "once").getPath());
+        try {
+            snapshot.write(new File(dir, "twice").getPath());
+            check(false, "a snapshot must not be written twice");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    private static void change(SkillSorter sorter, Random random, int times) {
+        for (int i = 0; i < times; i++) {
+            String skills = SKILLS[random.nextInt(SKILLS.length)];
+            try {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        sorter.addVolunteer(new Volunteer(skills));
+                        break;
+                    case 1:
+                        sorter.moveVolunteer(skills, random.nextInt(GROUPS), random.nextInt(GROUPS));
+                        break;
+                    case 2:
+                        sorter.deleteVolunteer(skills, random.nextInt(GROUPS));
+                        break;
+                    default:
+                        sorter.addVolunteers(new Volunteer(skills), 5);
+                        break;
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // Nobody with these skills, or the groups are full
+            }
+        }
+    }
+
+    private static boolean same(File a, File b) throws IOException {
+        return Arrays.equals(Files.readAllBytes(a.toPath()), Files.readAllBytes(b.toPath()));
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+    }
+}